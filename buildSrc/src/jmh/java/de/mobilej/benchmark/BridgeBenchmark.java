@@ -0,0 +1,294 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.benchmark;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import de.mobilej.ABridgeGenerator;
+import de.mobilej.AsmEngine;
+import de.mobilej.CallRewrites;
+import de.mobilej.NativeBindings;
+import de.mobilej.RuleMatcher;
+
+/**
+ * The runtime cost of the code delegating to ABridge: the signature lookup, boxing the arguments
+ * into an Object[] (or not, with the specialized bridge) and unboxing or casting the result.
+ *
+ * A class with native methods is unmocked like a kept class of android-all and loaded together
+ * with the generated bridge, its methods are called through {@link Calls}. Without a handler the
+ * bridge returns default values, with one it returns what the handler gives - the path tests
+ * registering handlers take. "registered" handlers get the arguments as an Object[], "typed" ones
+ * as ABridgeArgs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BridgeBenchmark {
+
+    private static final String TARGET = "android/bench/Target";
+    private static final String HANDLER = "de/mobilej/benchmark/ConstantHandler";
+
+    // the result of the typed handler for each method, by its result type
+    private static final Map<Type, Object> TYPED_RESULTS = new LinkedHashMap<>();
+    private static final Map<Type, String> TYPED_SIGNATURES = new HashMap<>();
+
+    static {
+        TYPED_RESULTS.put(Type.INT_TYPE, 23);
+        TYPED_RESULTS.put(Type.VOID_TYPE, null);
+        TYPED_RESULTS.put(Type.getObjectType("java/lang/Object"), "value");
+        TYPED_RESULTS.put(Type.DOUBLE_TYPE, 0.75);
+        TYPED_SIGNATURES.put(Type.INT_TYPE, "android.bench.Target.getInt(long,int)");
+        TYPED_SIGNATURES.put(Type.VOID_TYPE, "android.bench.Target.setInt(long,int,int)");
+        TYPED_SIGNATURES.put(Type.getObjectType("java/lang/Object"), "android.bench.Target.getString(long)");
+        TYPED_SIGNATURES.put(Type.DOUBLE_TYPE, "android.bench.Target.ratio(double,double)");
+    }
+
+    /**
+     * The methods of the unmocked class, to call them without reflection.
+     */
+    public interface Calls {
+        int getInt(long ptr, int offset);
+
+        void setInt(long ptr, int offset, int value);
+
+        String getString(long ptr);
+
+        double ratio(double a, double b);
+    }
+
+    @Param({"objectArray", "specialized"})
+    public String bridge;
+
+    @Param({"none", "registered", "typed"})
+    public String handler;
+
+    private Calls calls;
+
+    // fields, so the JIT can't fold the arguments
+    private long ptr = 0x1234L;
+    private int offset = 8;
+    private int value = 42;
+    private double a = 3.0;
+    private double b = 4.0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        boolean specialized = bridge.equals("specialized");
+        byte[] target = target();
+
+        RuleMatcher matcher = new RuleMatcher(new String[]{"android.bench."}, new String[0]);
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        new AsmEngine(matcher, Collections.emptyList(), specialized, new NativeBindings(Collections.emptyMap()),
+                CallRewrites.of(Collections.emptyList()), LoggerFactory.getLogger(BridgeBenchmark.class))
+                .transform(Collections.singletonList(TARGET.replace('/', '.')), name -> target, classes);
+
+        if (specialized) {
+            Set<String> shapes = new TreeSet<>();
+            ABridgeGenerator.collectShapes(target, false, shapes);
+            classes.putAll(ABridgeGenerator.generate(shapes));
+        } else {
+            classes.putAll(ABridgeGenerator.generate());
+        }
+        classes.put(HANDLER.replace('/', '.'), constantHandler());
+        for (Map.Entry<Type, Object> typed : TYPED_RESULTS.entrySet()) {
+            classes.put(typedHandlerName(typed.getKey()).replace('/', '.'), typedHandler(typed.getKey(), typed.getValue()));
+        }
+
+        ClassLoader loader = new ClassLoader(BridgeBenchmark.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] bytecode = classes.get(name);
+                if (bytecode == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytecode, 0, bytecode.length);
+            }
+        };
+
+        if (handler.equals("registered")) {
+            Class<?> bridgeClass = loader.loadClass(ABridgeGenerator.BRIDGE_CLASS);
+            Class<?> handlerInterface = loader.loadClass(ABridgeGenerator.HANDLER_CLASS);
+            Class<?> handlerClass = loader.loadClass(HANDLER.replace('/', '.'));
+
+            Map<String, Object> results = new HashMap<>();
+            results.put("android.bench.Target.getInt(long,int)", 23);
+            results.put("android.bench.Target.setInt(long,int,int)", null);
+            results.put("android.bench.Target.getString(long)", "value");
+            results.put("android.bench.Target.ratio(double,double)", 0.75);
+            for (Map.Entry<String, Object> result : results.entrySet()) {
+                Object instance = handlerClass.getConstructor(Object.class).newInstance(result.getValue());
+                bridgeClass.getMethod("register", String.class, handlerInterface)
+                        .invoke(null, result.getKey(), instance);
+            }
+        } else if (handler.equals("typed")) {
+            Class<?> bridgeClass = loader.loadClass(ABridgeGenerator.BRIDGE_CLASS);
+            for (Map.Entry<Type, Object> typed : TYPED_RESULTS.entrySet()) {
+                Type returnType = typed.getKey();
+                Class<?> handlerInterface = loader.loadClass(ABridgeGenerator.typedHandlerClass(returnType));
+                Object instance = loader.loadClass(typedHandlerName(returnType).replace('/', '.'))
+                        .getConstructor().newInstance();
+                bridgeClass.getMethod("register" + ABridgeGenerator.bridgeMethod(returnType, true).substring("call".length()),
+                        String.class, handlerInterface).invoke(null, TYPED_SIGNATURES.get(returnType), instance);
+            }
+        }
+
+        calls = (Calls) loader.loadClass(TARGET.replace('/', '.')).getConstructor().newInstance();
+    }
+
+    @Benchmark
+    public int intResult() {
+        return calls.getInt(ptr, offset);
+    }
+
+    @Benchmark
+    public void voidResult() {
+        calls.setInt(ptr, offset, value);
+    }
+
+    @Benchmark
+    public String objectResult() {
+        return calls.getString(ptr);
+    }
+
+    @Benchmark
+    public double doubleArguments() {
+        return calls.ratio(a, b);
+    }
+
+    /**
+     * A class like e.g. Parcel: a constructor and native methods of different shapes.
+     */
+    private static byte[] target() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, TARGET, null, "java/lang/Object",
+                new String[]{Calls.class.getName().replace('.', '/')});
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_NATIVE;
+        cw.visitMethod(access, "getInt", "(JI)I", null, null).visitEnd();
+        cw.visitMethod(access, "setInt", "(JII)V", null, null).visitEnd();
+        cw.visitMethod(access, "getString", "(J)Ljava/lang/String;", null, null).visitEnd();
+        cw.visitMethod(access, "ratio", "(DD)D", null, null).visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * An ABridgeHandler returning the value given to its constructor.
+     */
+    private static byte[] constantHandler() {
+        String handlerInterface = ABridgeGenerator.HANDLER_CLASS.replace('.', '/');
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, HANDLER, null, "java/lang/Object",
+                new String[]{handlerInterface});
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "value", "Ljava/lang/Object;", null, null).visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(Ljava/lang/Object;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, HANDLER, "value", "Ljava/lang/Object;");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "call", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;",
+                null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, HANDLER, "value", "Ljava/lang/Object;");
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static String typedHandlerName(Type returnType) {
+        return HANDLER + ABridgeGenerator.bridgeMethod(returnType, true).substring("call".length());
+    }
+
+    /**
+     * A typed handler returning the given constant.
+     */
+    private static byte[] typedHandler(Type returnType, Object value) {
+        String name = typedHandlerName(returnType);
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object",
+                new String[]{ABridgeGenerator.typedHandlerClass(returnType).replace('.', '/')});
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        String args = "L" + ABridgeGenerator.ARGS_CLASS.replace('.', '/') + ";";
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "call", "(Ljava/lang/Object;" + args + ")" + returnType.getDescriptor(),
+                null, null);
+        mv.visitCode();
+        if (value != null) {
+            mv.visitLdcInsn(value);
+        }
+        mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
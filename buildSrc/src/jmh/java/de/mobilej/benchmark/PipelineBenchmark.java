@@ -0,0 +1,174 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.LoggerFactory;
+
+import de.mobilej.AsmEngine;
+import de.mobilej.CallRewrites;
+import de.mobilej.NativeBindings;
+import de.mobilej.RuleMatcher;
+import de.mobilej.UnmockEngine;
+import de.mobilej.UnmockedJarWriter;
+
+/**
+ * The steps of ProcessRealAndroidJar around the rewriting: scanning the entries of android-all,
+ * classifying the class names and writing the unmocked jar.
+ *
+ * Every invocation covers all classes of the {@link SyntheticAndroidAll} jar, so the throughput is
+ * in classes per second - and with "-prof gc" gc.alloc.rate.norm is the allocation per class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private File dir;
+    private File androidAll;
+    private List<String> classNames;
+    private RuleMatcher matcher;
+    private Map<String, byte[]> rewritten;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("unmock-jmh").toFile();
+        androidAll = new File(dir, "android-all.jar");
+        SyntheticAndroidAll.write(androidAll);
+
+        Map<String, byte[]> classes = SyntheticAndroidAll.classes();
+        classNames = new ArrayList<>(classes.keySet());
+        matcher = new RuleMatcher(keepRules(), delegateRules());
+
+        // what the transform writes with a keep rule for everything
+        RuleMatcher keepAll = new RuleMatcher(new String[]{"android."}, new String[0]);
+        UnmockEngine engine = new AsmEngine(keepAll, Collections.emptyList(), false,
+                new NativeBindings(Collections.emptyMap()), CallRewrites.of(Collections.emptyList()),
+                LoggerFactory.getLogger(PipelineBenchmark.class));
+        rewritten = new LinkedHashMap<>();
+        for (List<String> nest : SyntheticAndroidAll.nests(classNames)) {
+            if (keepAll.classify(nest.get(0)) != RuleMatcher.Outcome.NONE) {
+                engine.transform(nest, classes::get, rewritten);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * A mix like real configurations have: prefix rules for some packages, exact rules for single
+     * classes of the others.
+     */
+    private static String[] keepRules() {
+        List<String> rules = new ArrayList<>();
+        for (int p = 0; p < SyntheticAndroidAll.PACKAGES; p += 4) {
+            rules.add(SyntheticAndroidAll.packageName(p).replace('/', '.') + ".");
+        }
+        for (int p = 1; p < SyntheticAndroidAll.PACKAGES; p += 2) {
+            for (int c = 0; c < SyntheticAndroidAll.CLASSES_PER_PACKAGE; c += 10) {
+                rules.add("-" + SyntheticAndroidAll.className(p, c).replace('/', '.'));
+            }
+        }
+        return rules.toArray(new String[0]);
+    }
+
+    private static String[] delegateRules() {
+        List<String> rules = new ArrayList<>();
+        for (int c = 0; c < SyntheticAndroidAll.CLASSES_PER_PACKAGE; c += 5) {
+            rules.add(SyntheticAndroidAll.className(2, c).replace('/', '.'));
+        }
+        return rules.toArray(new String[0]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SyntheticAndroidAll.CLASS_COUNT)
+    public int scan(Blackhole blackhole) throws IOException {
+        int classes = 0;
+        try (ZipFile zip = ZipFile.builder().setFile(androidAll).get()) {
+            Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.endsWith(".class")) {
+                    blackhole.consume(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                    classes++;
+                } else {
+                    blackhole.consume(matcher.isKeptResource(name));
+                }
+            }
+        }
+        return classes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SyntheticAndroidAll.CLASS_COUNT)
+    public void ruleMatching(Blackhole blackhole) {
+        for (String className : classNames) {
+            blackhole.consume(matcher.classify(className));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SyntheticAndroidAll.CLASS_COUNT)
+    public long writeJar() throws IOException {
+        File jar = new File(dir, "unmocked.jar");
+        try (UnmockedJarWriter writer = new UnmockedJarWriter(jar)) {
+            for (Map.Entry<String, byte[]> clazz : rewritten.entrySet()) {
+                writer.addClass(clazz.getKey(), clazz.getValue());
+            }
+        }
+        return jar.length();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mobilej.AsmEngine;
+import de.mobilej.CallRewrites;
+import de.mobilej.JavassistEngine;
+import de.mobilej.NativeBindings;
+import de.mobilej.ProcessRealAndroidJar.Engine;
+import de.mobilej.RuleMatcher;
+import de.mobilej.UnmockEngine;
+
+/**
+ * Rewriting every class of the {@link SyntheticAndroidAll} jar, either kept (natives delegated,
+ * call sites rewritten) or delegated (every method and constructor delegated).
+ *
+ * A Javassist engine can't rewrite a class twice, so every invocation starts with a new engine -
+ * just like a run of the transform does. The throughput is in classes per second, with "-prof gc"
+ * gc.alloc.rate.norm is the allocation per class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class RewriteBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(RewriteBenchmark.class);
+
+    @Param({"ASM", "JAVASSIST"})
+    public Engine engine;
+
+    @Param({"keep", "delegate"})
+    public String rule;
+
+    private File dir;
+    private File androidAll;
+    private Map<String, byte[]> classes;
+    private List<List<String>> nests;
+    private RuleMatcher matcher;
+    private NativeBindings bindings;
+    private CallRewrites rewrites;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("unmock-jmh").toFile();
+        androidAll = new File(dir, "android-all.jar");
+        SyntheticAndroidAll.write(androidAll);
+        classes = SyntheticAndroidAll.classes();
+
+        nests = new ArrayList<>();
+        List<String> outerNames = new ArrayList<>();
+        for (List<String> nest : SyntheticAndroidAll.nests(classes.keySet())) {
+            if (nest.get(0).startsWith("android.")) {
+                nests.add(nest);
+                outerNames.add(nest.get(0));
+            }
+        }
+
+        if (rule.equals("keep")) {
+            matcher = new RuleMatcher(new String[]{"android."}, new String[0]);
+        } else {
+            matcher = new RuleMatcher(new String[0], outerNames.toArray(new String[0]));
+        }
+        bindings = new NativeBindings(Collections.emptyMap());
+        rewrites = CallRewrites.of(Collections.emptyList());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        androidAll.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SyntheticAndroidAll.CLASS_COUNT)
+    public void rewrite(Blackhole blackhole) throws Exception {
+        UnmockEngine unmockEngine = engine == Engine.ASM
+                ? new AsmEngine(matcher, Collections.emptyList(), false, bindings, rewrites, log)
+                : new JavassistEngine(androidAll, matcher, Collections.emptyList(), null, bindings, rewrites,
+                        false, log);
+
+        Map<String, byte[]> result = new HashMap<>();
+        for (List<String> nest : nests) {
+            unmockEngine.transform(nest, classes::get, result);
+            blackhole.consume(result);
+            result.clear();
+        }
+    }
+}
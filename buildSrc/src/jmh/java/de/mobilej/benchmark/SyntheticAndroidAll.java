@@ -0,0 +1,385 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import de.mobilej.UnmockedJarWriter;
+
+/**
+ * Generates a jar looking like android-all to the transform, so the benchmarks run without
+ * downloading anything.
+ *
+ * Every package has {@link #CLASSES_PER_PACKAGE} classes with a static nested builder and an
+ * anonymous Runnable, plus a few listener interfaces and a resource. The classes have fields,
+ * constructors, methods of all return types, static and instance natives, calls into their
+ * neighbours and - in every other class - the System.arraycopy/VMRuntime calls the call site
+ * rewriting looks for. All generated code is straight-line, so no stack map frames are needed.
+ */
+public class SyntheticAndroidAll {
+
+    public static final int PACKAGES = 20;
+    public static final int CLASSES_PER_PACKAGE = 100;
+    public static final int INTERFACES_PER_PACKAGE = 10;
+
+    /**
+     * The number of android.* classes, the unit the benchmarks report their throughput in.
+     */
+    public static final int CLASS_COUNT = PACKAGES * (CLASSES_PER_PACKAGE * 3 + INTERFACES_PER_PACKAGE);
+
+    public static final String VM_RUNTIME = "dalvik/system/VMRuntime";
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_ARRAY = "[Ljava/lang/Object;";
+
+    private SyntheticAndroidAll() {
+    }
+
+    /**
+     * The bytecode of all classes by class name (fully qualified, '.' separated).
+     */
+    public static Map<String, byte[]> classes() {
+        Map<String, byte[]> result = new TreeMap<>();
+        result.put(VM_RUNTIME.replace('/', '.'), vmRuntime());
+        for (int p = 0; p < PACKAGES; p++) {
+            for (int i = 0; i < INTERFACES_PER_PACKAGE; i++) {
+                String name = packageName(p) + "/Listener" + i;
+                result.put(name.replace('/', '.'), listener(name));
+            }
+            for (int c = 0; c < CLASSES_PER_PACKAGE; c++) {
+                String name = className(p, c);
+                result.put(name.replace('/', '.'), outerClass(p, c));
+                result.put(name.replace('/', '.') + "$Builder", builder(name));
+                result.put(name.replace('/', '.') + "$1", anonymousRunnable(name));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The classes grouped by outermost class, like the transform groups them.
+     */
+    public static List<List<String>> nests(Iterable<String> classNames) {
+        Map<String, List<String>> nests = new TreeMap<>();
+        for (String className : classNames) {
+            int indexOfDollar = className.indexOf('$');
+            String outerName = indexOfDollar > 0 ? className.substring(0, indexOfDollar) : className;
+            nests.computeIfAbsent(outerName, k -> new ArrayList<>()).add(className);
+        }
+        return new ArrayList<>(nests.values());
+    }
+
+    /**
+     * Writes the classes and resources to the given jar.
+     */
+    public static void write(File jar) throws IOException {
+        try (UnmockedJarWriter writer = new UnmockedJarWriter(jar)) {
+            for (Map.Entry<String, byte[]> clazz : classes().entrySet()) {
+                writer.addGeneratedClass(clazz.getKey(), clazz.getValue());
+            }
+            for (int p = 0; p < PACKAGES; p++) {
+                writer.addGeneratedFile(packageName(p) + "/strings.properties", resource(p));
+            }
+        }
+    }
+
+    static String packageName(int p) {
+        return "android/p" + p;
+    }
+
+    static String className(int p, int c) {
+        return packageName(p) + "/C" + c;
+    }
+
+    private static byte[] outerClass(int p, int c) {
+        String name = className(p, c);
+        String listener = packageName(p) + "/Listener" + (c % INTERFACES_PER_PACKAGE);
+        String neighbour = className(p, (c + 1) % CLASSES_PER_PACKAGE);
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | (c % 3 == 0 ? Opcodes.ACC_FINAL : 0);
+        cw.visit(Opcodes.V1_8, access, name, null, OBJECT, new String[]{listener});
+        cw.visitInnerClass(name + "$Builder", name, "Builder", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC);
+        cw.visitInnerClass(name + "$1", null, null, 0);
+
+        cw.visitField(Opcodes.ACC_PRIVATE, "mSize", "I", null, null).visitEnd();
+        cw.visitField(Opcodes.ACC_PRIVATE, "mPtr", "J", null, null).visitEnd();
+        cw.visitField(Opcodes.ACC_PRIVATE, "mValues", OBJECT_ARRAY, null, null).visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitIntInsn(Opcodes.BIPUSH, 10);
+        mv.visitTypeInsn(Opcodes.ANEWARRAY, OBJECT);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, name, "mValues", OBJECT_ARRAY);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitLdcInsn((long) c);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, name, "nativeCreate", "(J)J", false);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, name, "mPtr", "J");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        getter(cw, name, Opcodes.ACC_PUBLIC, "size", "mSize", "I", Opcodes.IRETURN);
+        getter(cw, name, Opcodes.ACC_PROTECTED, "getPtr", "mPtr", "J", Opcodes.LRETURN);
+        // the verifier takes an int for a boolean
+        getter(cw, name, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, "isEmpty", "mSize", "Z", Opcodes.IRETURN);
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "valueAt", "(I)Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, name, "mValues", OBJECT_ARRAY);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitInsn(Opcodes.AALOAD);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "setValueAt", "(ILjava/lang/Object;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, name, "mValues", OBJECT_ARRAY);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitInsn(Opcodes.AASTORE);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PRIVATE, "scale", "(F)F", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.FLOAD, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, name, "mSize", "I");
+        mv.visitInsn(Opcodes.I2F);
+        mv.visitInsn(Opcodes.FMUL);
+        mv.visitInsn(Opcodes.FRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "ratio", "(DD)D", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.DLOAD, 0);
+        mv.visitVarInsn(Opcodes.DLOAD, 2);
+        mv.visitInsn(Opcodes.DDIV);
+        mv.visitInsn(Opcodes.DRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "peer", "()J", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn((long) c);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, neighbour, "nativeCreate", "(J)J", false);
+        mv.visitInsn(Opcodes.LRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "onEvent", "(I)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, name, "mPtr", "J");
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, name, "nativeSetInt", "(JI)V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        if (c % 2 == 0) {
+            grow(cw, name);
+        }
+
+        nativeMethod(cw, Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "nativeCreate", "(J)J");
+        nativeMethod(cw, Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "nativeDestroy", "(J)V");
+        nativeMethod(cw, Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "nativeSetInt", "(JI)V");
+        nativeMethod(cw, Opcodes.ACC_PRIVATE, "nativeGetInt", "(JI)I");
+        if (c % 4 == 0) {
+            nativeMethod(cw, Opcodes.ACC_PRIVATE, "nativeGetString", "(J)Ljava/lang/String;");
+            nativeMethod(cw, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "nativeIsValid", "(J)Z");
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * mValues = VMRuntime.getRuntime().newUnpaddedArray(Object.class, size); System.arraycopy(...)
+     */
+    private static void grow(ClassWriter cw, String name) {
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PRIVATE, "grow", "(I)V", null, null);
+        mv.visitCode();
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, VM_RUNTIME, "getRuntime", "()L" + VM_RUNTIME + ";", false);
+        mv.visitLdcInsn(Type.getObjectType(OBJECT));
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VM_RUNTIME, "newUnpaddedArray",
+                "(Ljava/lang/Class;I)Ljava/lang/Object;", false);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, OBJECT_ARRAY);
+        mv.visitVarInsn(Opcodes.ASTORE, 2);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, name, "mValues", OBJECT_ARRAY);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, name, "mSize", "I");
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "arraycopy",
+                "(Ljava/lang/Object;ILjava/lang/Object;II)V", false);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, name, "mValues", OBJECT_ARRAY);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static byte[] builder(String outerName) {
+        String name = outerName + "$Builder";
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, OBJECT, null);
+        cw.visitInnerClass(name, outerName, "Builder", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC);
+        cw.visitField(Opcodes.ACC_PRIVATE, "mSize", "I", null, null).visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "setSize", "(I)L" + name + ";", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, name, "mSize", "I");
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "build", "()L" + outerName + ";", null, null);
+        mv.visitCode();
+        mv.visitTypeInsn(Opcodes.NEW, outerName);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, outerName, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] anonymousRunnable(String outerName) {
+        String name = outerName + "$1";
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_SUPER, name, null, OBJECT, new String[]{"java/lang/Runnable"});
+        cw.visitOuterClass(outerName, null, null);
+        cw.visitInnerClass(name, null, null, 0);
+        cw.visitField(Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC, "this$0", "L" + outerName + ";", null, null)
+                .visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(0, "<init>", "(L" + outerName + ";)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, name, "this$0", "L" + outerName + ";");
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "run", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, name, "this$0", "L" + outerName + ";");
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, outerName, "size", "()I", false);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] listener(String name) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, name, null,
+                OBJECT, null);
+        cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "onEvent", "(I)V", null, null).visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] vmRuntime() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, VM_RUNTIME, null,
+                OBJECT, null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "getRuntime",
+                "()L" + VM_RUNTIME + ";", null, null);
+        mv.visitCode();
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        nativeMethod(cw, Opcodes.ACC_PUBLIC, "newUnpaddedArray", "(Ljava/lang/Class;I)Ljava/lang/Object;");
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void getter(ClassWriter cw, String owner, int access, String name, String field,
+                               String descriptor, int returnOpcode) {
+        String fieldDescriptor = descriptor.equals("Z") ? "I" : descriptor;
+        MethodVisitor mv = cw.visitMethod(access, name, "()" + descriptor, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, owner, field, fieldDescriptor);
+        mv.visitInsn(returnOpcode);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void nativeMethod(ClassWriter cw, int access, String name, String descriptor) {
+        cw.visitMethod(access | Opcodes.ACC_NATIVE, name, descriptor, null, null).visitEnd();
+    }
+
+    private static byte[] resource(int p) {
+        StringBuilder properties = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            properties.append("string_").append(p).append('_').append(i).append("=Synthetic value ").append(i)
+                    .append('\n');
+        }
+        return properties.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
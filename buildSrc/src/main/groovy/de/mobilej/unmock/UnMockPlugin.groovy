@@ -17,10 +17,26 @@
 package de.mobilej.unmock
 
 import com.android.build.gradle.tasks.factory.AndroidUnitTest
+import de.mobilej.RuleMatcher
 import de.mobilej.UnMockTransform
+import de.mobilej.UnmockAgentArgumentProvider
+import de.mobilej.UnmockCdsArchiveTask
+import de.mobilej.UnmockCdsArgumentProvider
+import de.mobilej.UnmockMergeAndroidJarTask
+import de.mobilej.UnmockMetrics
+import de.mobilej.UnmockUsageScanTask
 import org.gradle.api.Plugin
 import org.gradle.api.Project
+import org.gradle.api.artifacts.Configuration
 import org.gradle.api.attributes.Attribute
+import org.gradle.api.file.FileCollection
+import org.gradle.api.file.RegularFile
+import org.gradle.api.provider.Provider
+import org.gradle.api.tasks.compile.JavaCompile
+import org.gradle.api.tasks.testing.Test
+import org.gradle.api.tasks.testing.junit.JUnitOptions
+import org.gradle.api.tasks.testing.junitplatform.JUnitPlatformOptions
+import org.gradle.api.tasks.testing.testng.TestNGOptions
 
 class UnMockPlugin implements Plugin<Project> {
     void apply(Project project) {
@@ -28,6 +44,14 @@ class UnMockPlugin implements Plugin<Project> {
 
         def unmockConfiguration = project.configurations.create("unmock")
         def unMockExt = project.extensions.create("unMock", UnMockExtension)
+        unMockExt.cacheDir = new File(project.gradle.gradleUserHomeDir, "caches/unmock-plugin")
+
+        // only wired to the transform in the keepUsed mode
+        def scanUsage = project.tasks.register("unmockScanUsage", UnmockUsageScanTask) { task ->
+            task.description = "Collects the classes referenced by the compiled main and unit test classes."
+            task.classesDirs.from(project.provider { unMockExt.keepUsed ? compiledClasses(project) : [] })
+            task.usedClasses.set(project.layout.buildDirectory.file("unmock/used-classes.txt"))
+        }
 
         project.dependencies {
             attributesSchema {
@@ -45,10 +69,26 @@ class UnMockPlugin implements Plugin<Project> {
                 to.attribute(unmockProcessedAttribute, true)
 
                 parameters {
-                    tmpDir = project.file("${project.buildDir}/intermediates/unmock_work")
-                    keepClasses = unMockExt.keep
-                    renameClasses = unMockExt.rename
-                    delegateClasses = unMockExt.delegateClasses
+                    keepClasses.set(project.provider { RuleMatcher.normalize(unMockExt.keep) })
+                    renameClasses.set(project.provider { unMockExt.rename })
+                    delegateClasses.set(project.provider { RuleMatcher.normalize(unMockExt.delegateClasses) })
+                    keepWithDependencies.set(project.provider { RuleMatcher.normalize(unMockExt.keepWithDependencies) })
+                    dependencyBoundaries.set(project.provider { RuleMatcher.normalize(unMockExt.dependencyBoundaries) })
+                    keepUsed.set(project.provider { unMockExt.keepUsed })
+                    // without keepUsed the transform doesn't depend on the scan at all
+                    usedClasses.set(project.provider { unMockExt.keepUsed }.flatMap { boolean used ->
+                        used ? scanUsage.flatMap { it.usedClasses } : project.provider { null }
+                    })
+                    outputMode.set(project.provider { unMockExt.outputMode })
+                    engine.set(project.provider { unMockExt.engine })
+                    specializedBridge.set(project.provider { unMockExt.specializedBridge })
+                    parcelNatives.set(project.provider { unMockExt.parcelNatives })
+                    callRewrites.set(project.provider { unMockExt.callRewrites })
+                    parallelism.set(project.provider { unMockExt.parallelism })
+                    heapBudgetMb.set(project.provider { unMockExt.heapBudgetMb })
+                    cacheDir.set(project.layout.dir(project.provider { unMockExt.cacheDir }))
+                    cacheRetentionDays.set(project.provider { unMockExt.cacheRetentionDays })
+                    metricsDir.set(project.layout.buildDirectory.dir("unmock/metrics"))
                 }
             }
         }
@@ -66,11 +106,292 @@ class UnMockPlugin implements Plugin<Project> {
 
         def unmockFiles = project.files(unmockConfiguration)
 
+        // the classpaths as the Android Gradle Plugin sets them, the matrix tasks start from these, too
+        def originalClasspaths = new HashMap<String, FileCollection>()
+        // what goes in front of the rest of the classpath of a unit test task and its CDS archive
+        def unmockedClasspaths = new HashMap<String, FileCollection>()
+        def cdsArchives = new HashMap<String, Provider<RegularFile>>()
+
+        // tasks can't be registered while another one is configured, so the merge and CDS tasks of a
+        // unit test task are registered along with its variant
+        onUnitTestTasks(project) { String taskName ->
+            def original = originalClasspath(project, originalClasspaths, taskName)
+            def unmocked = unmockedClasspath(project, unMockExt, taskName, unmockFiles, original)
+            unmockedClasspaths.put(taskName, unmocked)
+            cdsArchives.put(taskName, classDataSharing(project, unMockExt, taskName, unmocked))
+            createMatrix(project, unMockExt, unmockProcessedAttribute, originalClasspaths, taskName)
+        }
+
         project.afterEvaluate {
             project.tasks.withType(AndroidUnitTest.class).configureEach { task ->
-                task.classpath = unmockFiles + task.classpath
+                def original = task.classpath
+                originalClasspaths.put(task.name, original)
+                def unmocked = unmockedClasspaths.get(task.name)
+                if (unmocked == null) {
+                    // not a unit test task of a variant, nothing got registered for it
+                    task.classpath = unmockFiles + original
+                } else {
+                    task.classpath = unmocked + remainingClasspath(unMockExt, original)
+                }
+                def cdsArchive = cdsArchives.get(task.name)
+                if (cdsArchive != null) {
+                    task.dependsOn(cdsArchive)
+                    task.jvmArgumentProviders.add(new UnmockCdsArgumentProvider(cdsArchive))
+                }
+                if (unMockExt.outputMode == "agent") {
+                    task.jvmArgumentProviders.add(new UnmockAgentArgumentProvider(unmockFiles,
+                            unprocessedFiles(unmockConfiguration, unmockProcessedAttribute), unMockExt.cacheDir))
+                }
             }
         }
+
+        publishMetrics(project.rootProject)
+    }
+
+    /**
+     * Adds the metrics of the transforms run in this build as custom values to the build scan, if
+     * there is one. Every project applying the plugin gets here, the root project only needs it once.
+     */
+    private static void publishMetrics(Project rootProject) {
+        def buildScan = rootProject.extensions.findByName("buildScan")
+        if (buildScan == null || rootProject.extensions.extraProperties.has("unmockMetricsPublished")) {
+            return
+        }
+        rootProject.extensions.extraProperties.set("unmockMetricsPublished", true)
+
+        buildScan.buildFinished {
+            UnmockMetrics.drainReports().each { report ->
+                def prefix = "unmock " + report.androidAll + " "
+                buildScan.value(prefix + "wall ms", String.valueOf(report.wallMillis))
+                report.phases.each { phase, times ->
+                    buildScan.value(prefix + phase + " ms", times.wallMillis + " wall / " + times.cpuMillis + " cpu")
+                }
+                report.counts.each { counter, count ->
+                    buildScan.value(prefix + counter, String.valueOf(count))
+                }
+                buildScan.value(prefix + "peak heap bytes", String.valueOf(report.peakHeapBytes))
+            }
+        }
+    }
+
+    /**
+     * Calls the action with the name of the unit test task of every variant, before the Android
+     * Gradle Plugin registers the task.
+     */
+    private static void onUnitTestTasks(Project project, Closure action) {
+        ["com.android.application", "com.android.library"].each { pluginId ->
+            project.pluginManager.withPlugin(pluginId) {
+                def androidComponents = project.extensions.getByName("androidComponents")
+                androidComponents.onVariants(androidComponents.selector().all()) { variant ->
+                    if (hasUnitTest(variant)) {
+                        action.call("test" + variant.name.capitalize() + "UnitTest")
+                    }
+                }
+            }
+        }
+    }
+
+    // newer versions of the Android Gradle Plugin list the unit tests among the host tests
+    private static boolean hasUnitTest(Object variant) {
+        if (variant.metaClass.respondsTo(variant, "getHostTests")) {
+            return variant.hostTests.containsKey("UnitTest")
+        }
+        return !variant.metaClass.respondsTo(variant, "getUnitTest") || variant.unitTest != null
+    }
+
+    /**
+     * What goes in front of the classpath of a unit test task: the unmocked jars. With
+     * mergeAndroidJar they are merged into a copy of the mockable android.jar instead, which
+     * replaces the original one - a single jar to open and search instead of two.
+     */
+    private static FileCollection unmockedClasspath(Project project, UnMockExtension unMockExt, String taskName,
+                                                    FileCollection unmocked, FileCollection classpath) {
+        if (!mergesAndroidJar(unMockExt)) {
+            return unmocked
+        }
+
+        def merge = project.tasks.register("unmockMerge" + taskName.capitalize(), UnmockMergeAndroidJarTask) { task ->
+            task.description = "Merges the unmocked classes into the android.jar of ${taskName}."
+            task.unmockedJars.from(unmocked)
+            task.androidJar.from(classpath.filter { isMockableAndroidJar(it) })
+            task.mergedJar.set(project.layout.buildDirectory.file("unmock/" + taskName + "/android-unmocked.jar"))
+        }
+        return project.files(merge.flatMap { it.mergedJar })
+    }
+
+    /**
+     * The rest of the classpath of a unit test task, behind the unmocked classes.
+     */
+    private static FileCollection remainingClasspath(UnMockExtension unMockExt, FileCollection classpath) {
+        return mergesAndroidJar(unMockExt) ? classpath.filter { !isMockableAndroidJar(it) } : classpath
+    }
+
+    // the agent jar isn't meant to replace anything
+    private static boolean mergesAndroidJar(UnMockExtension unMockExt) {
+        return unMockExt.mergeAndroidJar && unMockExt.outputMode != "agent"
+    }
+
+    /**
+     * With classDataSharing, registers the task dumping the archive of the unmocked classes for the
+     * given test task and returns the archive, otherwise null.
+     */
+    private static Provider<RegularFile> classDataSharing(Project project, UnMockExtension unMockExt, String taskName,
+                                                          FileCollection unmocked) {
+        if (!unMockExt.classDataSharing || unMockExt.outputMode == "agent") {
+            return null
+        }
+
+        def cds = project.tasks.register("unmockCds" + taskName.capitalize(), UnmockCdsArchiveTask) { task ->
+            task.description = "Dumps a class data sharing archive of the unmocked classes of ${taskName}."
+            // where Gradle keeps the main jar of its workers, it comes first on their classpath - not a
+            // public contract, the task warns if it isn't there
+            task.workerJar.from(new File(project.gradle.gradleUserHomeDir,
+                    "caches/${project.gradle.gradleVersion}/workerMain/gradle-worker.jar"))
+            task.unmockedJars.from(unmocked)
+            task.javaLauncher.set(project.tasks.named(taskName, Test).flatMap { it.javaLauncher })
+            task.archive.set(project.layout.buildDirectory.file("unmock/" + taskName + "/unmocked.jsa"))
+        }
+        return cds.flatMap { it.archive }
+    }
+
+    /**
+     * The classpath of the given unit test task before the plugin changed it, resolved lazily.
+     */
+    private static FileCollection originalClasspath(Project project, Map<String, FileCollection> originalClasspaths,
+                                                    String taskName) {
+        return project.files({
+            // configuring the task records it
+            project.tasks.getByName(taskName)
+            originalClasspaths.get(taskName)
+        })
+    }
+
+    /**
+     * The Android Gradle Plugin's mockable android.jar keeps the name of the android.jar it's made
+     * from (older versions called it mockable-android-<api>.jar).
+     */
+    private static boolean isMockableAndroidJar(File file) {
+        return file.name == "android.jar" || (file.name.startsWith("mockable-android-") && file.name.endsWith(".jar"))
+    }
+
+    /**
+     * The android-all jar of the configuration as it is, without unmocking it.
+     */
+    private static FileCollection unprocessedFiles(Configuration configuration, Attribute<Boolean> unmockProcessedAttribute) {
+        return configuration.incoming.artifactView { view ->
+            view.attributes { it.attribute(unmockProcessedAttribute, false) }
+        }.files
+    }
+
+    /**
+     * The outputs of the Java and Kotlin compilations of main and unit test classes. The unit test
+     * classpath can't be used, it contains the unmocked jar. Only the names of the tasks are looked
+     * at, they aren't created or configured before the scan needs their outputs.
+     */
+    private static FileCollection compiledClasses(Project project) {
+        return project.files(
+                project.tasks.withType(JavaCompile.class).named { !it.contains("AndroidTest") },
+                project.tasks.named { it ==~ /compile.*Kotlin/ && !it.contains("AndroidTest") })
+    }
+
+    /**
+     * Every matrix entry gets a configuration of its own and a copy of the given unit test task running
+     * against it. Each android-all jar is transformed separately (into its own output), so Gradle is
+     * free to run the transforms and test tasks concurrently.
+     */
+    private static void createMatrix(Project project, UnMockExtension unMockExt, Attribute<Boolean> unmockProcessedAttribute,
+                                     Map<String, FileCollection> originalClasspaths, String unitTestTaskName) {
+        if (unMockExt.matrixEntries.isEmpty()) {
+            return
+        }
+
+        if (!project.tasks.names.contains("unmockMatrixTest")) {
+            project.tasks.register("unmockMatrixTest") { task ->
+                task.group = "verification"
+                task.description = "Runs the unit tests against every android-all of the unMock matrix."
+            }
+        }
+
+        unMockExt.matrixEntries.each { String entryName, Object dependencyNotation ->
+            def suffix = entryName.capitalize()
+            def configuration = project.configurations.findByName("unmock" + suffix)
+            if (configuration == null) {
+                configuration = project.configurations.create("unmock" + suffix)
+                configuration.attributes.attribute(unmockProcessedAttribute, true)
+                project.dependencies.add(configuration.name, dependencyNotation)
+            }
+            def matrixFiles = project.files(configuration)
+
+            // the same classpath, just with the android-all of this entry
+            def original = originalClasspath(project, originalClasspaths, unitTestTaskName)
+            def unmocked = unmockedClasspath(project, unMockExt, unitTestTaskName + suffix, matrixFiles, original)
+            def cdsArchive = classDataSharing(project, unMockExt, unitTestTaskName + suffix, unmocked)
+            def matrixTask = project.tasks.register(unitTestTaskName + suffix, Test) { task ->
+                def unitTest = project.tasks.named(unitTestTaskName, AndroidUnitTest).get()
+                task.group = "verification"
+                task.description = "Runs the tests of ${unitTestTaskName} against ${dependencyNotation}."
+                copyTestOptions(unitTest, task)
+                task.classpath = unmocked + remainingClasspath(unMockExt, original)
+                if (cdsArchive != null) {
+                    task.dependsOn(cdsArchive)
+                    task.jvmArgumentProviders.add(new UnmockCdsArgumentProvider(cdsArchive))
+                }
+                if (unMockExt.outputMode == "agent") {
+                    task.jvmArgumentProviders.add(new UnmockAgentArgumentProvider(matrixFiles,
+                            unprocessedFiles(configuration, unmockProcessedAttribute), unMockExt.cacheDir))
+                }
+            }
+            project.tasks.named("unmockMatrixTest").configure { it.dependsOn(matrixTask) }
+        }
+    }
+
+    /**
+     * Makes the matrix task run the tests of the unit test task the same way - everything but the
+     * classpath, the report locations and what the plugin added for the unmocked classes.
+     */
+    private static void copyTestOptions(Test unitTest, Test task) {
+        def options = unitTest.options
+        if (options instanceof JUnitPlatformOptions) {
+            task.useJUnitPlatform { it.copyFrom(options) }
+        } else if (options instanceof TestNGOptions) {
+            task.useTestNG { it.copyFrom(options) }
+        } else if (options instanceof JUnitOptions) {
+            task.useJUnit { it.copyFrom(options) }
+        }
+
+        task.testClassesDirs = unitTest.testClassesDirs
+        task.include(unitTest.includes)
+        task.exclude(unitTest.excludes)
+        task.filter { filter ->
+            filter.includePatterns = unitTest.filter.includePatterns as String[]
+            filter.excludePatterns = unitTest.filter.excludePatterns as String[]
+            filter.failOnNoMatchingTests = unitTest.filter.failOnNoMatchingTests
+        }
+        task.failOnNoDiscoveredTests.set(unitTest.failOnNoDiscoveredTests)
+        task.ignoreFailures = unitTest.ignoreFailures
+        task.failFast = unitTest.failFast
+        task.maxParallelForks = unitTest.maxParallelForks
+        task.forkEvery = unitTest.forkEvery
+
+        task.javaLauncher.set(unitTest.javaLauncher)
+        task.workingDir = unitTest.workingDir
+        task.minHeapSize = unitTest.minHeapSize
+        task.maxHeapSize = unitTest.maxHeapSize
+        task.enableAssertions = unitTest.enableAssertions
+        task.defaultCharacterEncoding = unitTest.defaultCharacterEncoding
+        task.jvmArgs(unitTest.jvmArgs)
+        task.jvmArgumentProviders.addAll(unitTest.jvmArgumentProviders.findAll {
+            !(it instanceof UnmockCdsArgumentProvider || it instanceof UnmockAgentArgumentProvider)
+        })
+        task.systemProperties(unitTest.systemProperties)
+        task.environment = unitTest.environment
+
+        task.reports.html.required.set(unitTest.reports.html.required)
+        task.reports.junitXml.required.set(unitTest.reports.junitXml.required)
+        task.reports.junitXml.outputPerTestCase = unitTest.reports.junitXml.outputPerTestCase
+        task.reports.junitXml.mergeReruns.set(unitTest.reports.junitXml.mergeReruns)
+        task.reports.html.outputLocation.set(task.project.layout.buildDirectory.dir("reports/tests/" + task.name))
+        task.reports.junitXml.outputLocation.set(task.project.layout.buildDirectory.dir("test-results/" + task.name))
     }
 }
 
@@ -86,6 +407,36 @@ class UnMockExtension {
 
     List<String> delegateClasses = new ArrayList<>()
 
+    List<String> keepWithDependencies = new ArrayList<>()
+
+    List<String> dependencyBoundaries = new ArrayList<>()
+
+    List<String> callRewrites = new ArrayList<>()
+
+    String outputMode = "single"
+
+    String engine = "javassist"
+
+    boolean specializedBridge = false
+
+    boolean parcelNatives = false
+
+    boolean keepUsed = false
+
+    boolean mergeAndroidJar = false
+
+    boolean classDataSharing = false
+
+    int parallelism = 1
+
+    int heapBudgetMb = 0
+
+    Map<String, Object> matrixEntries = new LinkedHashMap<>()
+
+    File cacheDir
+
+    int cacheRetentionDays = 30
+
     boolean usingDefaults = false
 
     public UnMockExtension() {
@@ -118,6 +469,14 @@ class UnMockExtension {
         usingDefaults = true
     }
 
+    /**
+     * Additionally runs the unit tests against the given android-all, e.g.
+     * matrix "api21", "org.robolectric:android-all:5.0.2_r3-robolectric-r0"
+     */
+    void matrix(final String name, final Object dependencyNotation) {
+        matrixEntries.put(name, dependencyNotation)
+    }
+
     DownloadTo downloadFrom(final String allAndroidUrl) {
         allAndroid = allAndroidUrl
         return new DownloadTo(this)
@@ -133,6 +492,34 @@ class UnMockExtension {
         delegateClasses.add(clazz)
     }
 
+    /**
+     * Keeps the class together with every class it refers to (transitively), e.g.
+     * keepWithDependencies "android.os.Bundle"
+     */
+    void keepWithDependencies(final String clazz) {
+        clearDefaultIfNecessary()
+        keepWithDependencies.add(clazz)
+    }
+
+    /**
+     * Keeps the classes of android-all the compiled main and unit test classes refer to, together
+     * with everything they need - instead of a hand-maintained list, e.g. keepUsed = true
+     */
+    void setKeepUsed(final boolean keepUsed) {
+        if (keepUsed) {
+            clearDefaultIfNecessary()
+        }
+        this.@keepUsed = keepUsed
+    }
+
+    /**
+     * keepWithDependencies doesn't follow references into classes starting with the given string,
+     * e.g. dependencyBoundary "android.app." leaves these to the stubs in android.jar
+     */
+    void dependencyBoundary(final String clazz) {
+        dependencyBoundaries.add(clazz)
+    }
+
     void keepStartingWith(final String clazz) {
         clearDefaultIfNecessary()
         keep.add(clazz)
@@ -143,6 +530,15 @@ class UnMockExtension {
         return new KeepMapping(clazzToKeep, this)
     }
 
+    /**
+     * Replaces the calls of a method in the kept classes, e.g.
+     * rewriteCall "android.os.SystemClock.uptimeMillis" to "java.lang.System.currentTimeMillis"
+     * - see de.mobilej.CallRewrites for the details
+     */
+    CallRewrite rewriteCall(final String method) {
+        return new CallRewrite(method, this)
+    }
+
     private void clearDefaultIfNecessary() {
         if (usingDefaults) {
             usingDefaults = false
@@ -166,6 +562,20 @@ class KeepMapping {
     }
 }
 
+class CallRewrite {
+    String method
+    UnMockExtension extension
+
+    CallRewrite(final String method, UnMockExtension extension) {
+        this.method = method
+        this.extension = extension
+    }
+
+    void to(final String target) {
+        extension.callRewrites.add(method + "=" + target)
+    }
+}
+
 class DownloadTo {
     String to
     UnMockExtension extension
@@ -0,0 +1,522 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates de.mobilej.ABridge - the class all delegated methods call into.
+ *
+ * Every call gets the signature of the delegated method, the instance (or null for static methods)
+ * and the arguments. The bridge dispatches to the handler registered for the signature - a single
+ * hash lookup - and returns default values if there is none. Tests give natives behavior by
+ * registering handlers, e.g.
+ *
+ * <pre>
+ * ABridge.register("android.os.Parcel.nativeReadInt(long)", (thiz, args) -&gt; 42);
+ * ABridge.registerInt("android.os.Parcel.nativeReadInt(long)", (thiz, args) -&gt; 42);
+ * </pre>
+ *
+ * A de.mobilej.ABridgeHandler gets the arguments as an Object[] and returns its result boxed. The
+ * typed handlers (de.mobilej.ABridgeIntHandler, ... one per result type, registered with registerInt,
+ * ...) get them as de.mobilej.ABridgeArgs - read with getLong(0), getInt(1), ... - and return the
+ * result as it is. The ABridgeArgs instance is reused per thread, so it's only valid until the
+ * handler returns.
+ *
+ * Mocking the bridge statically (e.g. with PowerMock) keeps working as before.
+ *
+ * By default the arguments are passed as an Object[], boxing primitives. With the specialized
+ * calling convention the bridge additionally gets one overload per shape of the delegated methods
+ * - the bridge method for the return type plus the parameters, primitives as they are and
+ * everything else as Object. E.g. Parcel.nativeWriteInt(long,int) calls
+ * callVoid(String signature, Object thiz, long a0, int a1), so a call neither allocates nor boxes -
+ * with no handler or a typed one. An ABridgeHandler still gets an Object[] of boxed arguments.
+ * Char and short results get callChar and callShort in that mode. A shape is written like
+ * "callVoid(JI)": the bridge method followed by the parameter descriptors.
+ */
+public class ABridgeGenerator {
+
+    public static final String BRIDGE_CLASS = "de.mobilej.ABridge";
+
+    public static final String BRIDGE_INTERNAL_NAME = "de/mobilej/ABridge";
+
+    public static final String HANDLER_CLASS = "de.mobilej.ABridgeHandler";
+
+    public static final String ARGS_CLASS = "de.mobilej.ABridgeArgs";
+
+    private static final Type OBJECT_TYPE = Type.getObjectType("java/lang/Object");
+
+    private static final Type[] GENERIC_RETURN_TYPES = {
+            OBJECT_TYPE, Type.INT_TYPE, Type.LONG_TYPE, Type.BOOLEAN_TYPE,
+            Type.BYTE_TYPE, Type.FLOAT_TYPE, Type.DOUBLE_TYPE, Type.VOID_TYPE
+    };
+
+    // the results of the typed handlers, the ones of the specialized bridge methods
+    private static final Type[] TYPED_RETURN_TYPES = {
+            OBJECT_TYPE, Type.INT_TYPE, Type.LONG_TYPE, Type.BOOLEAN_TYPE, Type.BYTE_TYPE,
+            Type.FLOAT_TYPE, Type.DOUBLE_TYPE, Type.CHAR_TYPE, Type.SHORT_TYPE, Type.VOID_TYPE
+    };
+
+    /**
+     * Returns the bytecode of the bridge and its handler interfaces by class name, as they end up in
+     * the unmocked jar.
+     */
+    public static Map<String, byte[]> generate() throws CannotCompileException, NotFoundException, IOException {
+        return generate(Collections.<String>emptySet());
+    }
+
+    /**
+     * Same as {@link #generate()} including the specialized overloads for the given shapes.
+     */
+    public static Map<String, byte[]> generate(Collection<String> shapes)
+            throws CannotCompileException, NotFoundException, IOException {
+        ClassPool pool = new ClassPool(null);
+        pool.appendSystemPath();
+        CtClass bridge = createHelperClasses(pool, shapes);
+
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        classes.put(HANDLER_CLASS, pool.get(HANDLER_CLASS).toBytecode());
+        classes.put(ARGS_CLASS, pool.get(ARGS_CLASS).toBytecode());
+        for (Type returnType : TYPED_RETURN_TYPES) {
+            classes.put(typedHandlerClass(returnType), pool.get(typedHandlerClass(returnType)).toBytecode());
+        }
+        classes.put(BRIDGE_CLASS, bridge.toBytecode());
+        return classes;
+    }
+
+    /**
+     * Creates the bridge in the given pool, e.g. to be able to compile code calling it.
+     */
+    public static CtClass createHelperClasses(ClassPool pool) throws CannotCompileException {
+        return createHelperClasses(pool, Collections.<String>emptySet());
+    }
+
+    public static CtClass createHelperClasses(ClassPool pool, Collection<String> shapes)
+            throws CannotCompileException {
+        CtClass handler = pool.makeInterface(HANDLER_CLASS);
+        handler.addMethod(CtMethod.make(
+                "public abstract Object call(Object thiz, Object[] args);", handler));
+
+        createArgs(pool);
+        for (Type returnType : TYPED_RETURN_TYPES) {
+            CtClass typedHandler = pool.makeInterface(typedHandlerClass(returnType));
+            typedHandler.addMethod(CtMethod.make("public abstract " + returnType.getClassName()
+                    + " call(Object thiz, " + ARGS_CLASS + " args);", typedHandler));
+        }
+
+        CtClass bridge = pool.makeClass(BRIDGE_CLASS);
+
+        bridge.addField(CtField.make(
+                "private static final java.util.Map handlers = new java.util.concurrent.ConcurrentHashMap();",
+                bridge));
+
+        bridge.addMethod(CtMethod.make(
+                "public static void register(String signature, " + HANDLER_CLASS + " handler){" +
+                        "handlers.put(signature, handler);" +
+                        "}", bridge));
+
+        for (Type returnType : TYPED_RETURN_TYPES) {
+            bridge.addMethod(CtMethod.make(
+                    "public static void register" + typedName(returnType) + "(String signature, "
+                            + typedHandlerClass(returnType) + " handler){" +
+                            "handlers.put(signature, handler);" +
+                            "}", bridge));
+        }
+
+        bridge.addMethod(CtMethod.make(
+                "public static void unregister(String signature){" +
+                        "handlers.remove(signature);" +
+                        "}", bridge));
+
+        bridge.addMethod(CtMethod.make(
+                "public static void clearHandlers(){" +
+                        "handlers.clear();" +
+                        "}", bridge));
+
+        for (Type returnType : GENERIC_RETURN_TYPES) {
+            // char and short results go through callObject here
+            List<Type> typed = returnType.equals(OBJECT_TYPE)
+                    ? Arrays.asList(OBJECT_TYPE, Type.CHAR_TYPE, Type.SHORT_TYPE)
+                    : Collections.singletonList(returnType);
+            bridge.addMethod(CtMethod.make(callSource(
+                    bridgeMethod(returnType, false), returnType, ", Object[] args", "args",
+                    "args.length", "for (int i = 0; i < args.length; i++) { %1$s.setBoxed(i, args[i]); }",
+                    typed), bridge));
+        }
+
+        for (String shape : shapes) {
+            bridge.addMethod(CtMethod.make(specializedSource(shape), bridge));
+        }
+
+        return bridge;
+    }
+
+    /**
+     * The name of the typed handler interface for methods with the given result, e.g.
+     * de.mobilej.ABridgeIntHandler.
+     */
+    public static String typedHandlerClass(Type returnType) {
+        return "de.mobilej.ABridge" + typedName(returnType) + "Handler";
+    }
+
+    private static String typedName(Type returnType) {
+        return bridgeMethod(returnType, true).substring("call".length());
+    }
+
+    /**
+     * The arguments of a call as the typed handlers get them. Primitives are kept in a long[]
+     * (floating point values by their bits), references in an Object[]. There is one free instance
+     * per thread, a call made while it's in use - by a handler calling a delegated method - gets a
+     * new one.
+     */
+    private static void createArgs(ClassPool pool) throws CannotCompileException {
+        CtClass args = pool.makeClass(ARGS_CLASS);
+        args.setModifiers(Modifier.PUBLIC | Modifier.FINAL);
+
+        args.addField(CtField.make("private static final ThreadLocal free = new ThreadLocal();", args));
+        args.addField(CtField.make("private long[] primitives = new long[8];", args));
+        args.addField(CtField.make("private Object[] objects = new Object[8];", args));
+        args.addField(CtField.make("private int size;", args));
+        args.addConstructor(CtNewConstructor.make("private ABridgeArgs(){}", args));
+
+        args.addMethod(CtMethod.make(
+                "static " + ARGS_CLASS + " acquire(int size){" +
+                        ARGS_CLASS + " args = (" + ARGS_CLASS + ")free.get();" +
+                        "if (args == null) { args = new " + ARGS_CLASS + "(); } else { free.set(null); }" +
+                        "if (size > args.objects.length) {" +
+                        "args.primitives = new long[size]; args.objects = new Object[size];" +
+                        "}" +
+                        "args.size = size;" +
+                        "return args;" +
+                        "}", args));
+        args.addMethod(CtMethod.make(
+                "static void release(" + ARGS_CLASS + " args){" +
+                        "for (int i = 0; i < args.size; i++) { args.objects[i] = null; }" +
+                        "free.set(args);" +
+                        "}", args));
+
+        args.addMethod(CtMethod.make("void setBoolean(int i, boolean value){ primitives[i] = value ? 1L : 0L; }", args));
+        for (String type : new String[]{"byte", "char", "short", "int", "long"}) {
+            args.addMethod(CtMethod.make("void " + setter(type) + "(int i, " + type + " value){ primitives[i] = (long)value; }", args));
+        }
+        args.addMethod(CtMethod.make("void setFloat(int i, float value){ primitives[i] = (long)Float.floatToRawIntBits(value); }", args));
+        args.addMethod(CtMethod.make("void setDouble(int i, double value){ primitives[i] = Double.doubleToRawLongBits(value); }", args));
+        args.addMethod(CtMethod.make("void setObject(int i, Object value){ objects[i] = value; }", args));
+        args.addMethod(CtMethod.make(
+                "void setBoxed(int i, Object value){" +
+                        "objects[i] = value;" +
+                        "if (value instanceof Boolean) { setBoolean(i, ((Boolean)value).booleanValue()); }" +
+                        "else if (value instanceof Character) { setChar(i, ((Character)value).charValue()); }" +
+                        "else if (value instanceof Float) { setFloat(i, ((Float)value).floatValue()); }" +
+                        "else if (value instanceof Double) { setDouble(i, ((Double)value).doubleValue()); }" +
+                        "else if (value instanceof Number) { setLong(i, ((Number)value).longValue()); }" +
+                        "}", args));
+
+        args.addMethod(CtMethod.make("public int size(){ return size; }", args));
+        args.addMethod(CtMethod.make("public boolean getBoolean(int i){ return primitives[i] != 0L; }", args));
+        for (String type : new String[]{"byte", "char", "short", "int", "long"}) {
+            args.addMethod(CtMethod.make("public " + type + " get" + capitalized(type)
+                    + "(int i){ return (" + type + ")primitives[i]; }", args));
+        }
+        args.addMethod(CtMethod.make("public float getFloat(int i){ return Float.intBitsToFloat((int)primitives[i]); }", args));
+        args.addMethod(CtMethod.make("public double getDouble(int i){ return Double.longBitsToDouble(primitives[i]); }", args));
+        // the boxed values, too, if the call came through the Object[] convention
+        args.addMethod(CtMethod.make("public Object get(int i){ return objects[i]; }", args));
+    }
+
+    private static String setter(String type) {
+        return "set" + capitalized(type);
+    }
+
+    private static String capitalized(String type) {
+        return Character.toUpperCase(type.charAt(0)) + type.substring(1);
+    }
+
+    private static String specializedSource(String shape) {
+        Type returnType = Type.getReturnType(descriptor(shape));
+        // without the signature and thiz
+        Type[] parameterTypes = Type.getArgumentTypes(shape.substring(shape.indexOf('(')) + "V");
+
+        StringBuilder parameters = new StringBuilder();
+        StringBuilder args = new StringBuilder(parameterTypes.length == 0 ? "new Object[0]" : "new Object[]{");
+        StringBuilder typedArgs = new StringBuilder();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            parameters.append(", ").append(parameterTypes[i].getClassName()).append(" a").append(i);
+            if (i > 0) {
+                args.append(", ");
+            }
+            args.append(boxed(parameterTypes[i], "a" + i));
+            String type = parameterTypes[i].getSort() == Type.OBJECT ? "object" : parameterTypes[i].getClassName();
+            typedArgs.append("%1$s.").append(setter(type)).append('(').append(i).append(", a").append(i).append(");");
+        }
+        if (parameterTypes.length > 0) {
+            args.append('}');
+        }
+
+        return callSource(methodName(shape), returnType, parameters.toString(), args.toString(),
+                String.valueOf(parameterTypes.length), typedArgs.toString(), Collections.singletonList(returnType));
+    }
+
+    /**
+     * A bridge method looks up the handler for the signature and returns the default value if
+     * there is none - only calls with an ABridgeHandler pay for boxing the arguments and the result.
+     *
+     * @param typedCount  source of the number of arguments
+     * @param typedFill   source filling the ABridgeArgs named by %1$s
+     * @param typedReturn the results of the typed handlers the method calls
+     */
+    private static String callSource(String method, Type returnType, String parameters, String args,
+                                     String typedCount, String typedFill, List<Type> typedReturn) {
+        StringBuilder source = new StringBuilder("public static ")
+                .append(returnType.getClassName()).append(' ').append(method)
+                .append("(String signature, Object thiz").append(parameters).append("){")
+                .append("Object handler = handlers.get(signature);");
+
+        String defaultValue = returnType.getSort() == Type.VOID ? "" : defaultValue(returnType);
+        source.append("if (handler == null) { return ").append(defaultValue).append("; }");
+
+        for (Type typed : typedReturn) {
+            String handlerClass = typedHandlerClass(typed);
+            String local = "args" + typedName(typed);
+            source.append("if (handler instanceof ").append(handlerClass).append(") {")
+                    .append(ARGS_CLASS).append(' ').append(local).append(" = ").append(ARGS_CLASS)
+                    .append(".acquire(").append(typedCount).append(");")
+                    .append(String.format(typedFill, local));
+            String call = "((" + handlerClass + ")handler).call(thiz, " + local + ")";
+            if (typed.getSort() == Type.VOID) {
+                source.append(call).append(';')
+                        .append(ARGS_CLASS).append(".release(").append(local).append(");")
+                        .append("return; }");
+            } else {
+                source.append(typed.getClassName()).append(" result").append(typedName(typed)).append(" = ")
+                        .append(call).append(';')
+                        .append(ARGS_CLASS).append(".release(").append(local).append(");")
+                        .append("return ").append(typed.equals(returnType)
+                                ? "result" + typedName(typed)
+                                : boxed(typed, "result" + typedName(typed)))
+                        .append("; }");
+            }
+        }
+
+        source.append("if (!(handler instanceof ").append(HANDLER_CLASS).append(")) {")
+                .append("throw new IllegalStateException(\"The handler registered for \" + signature")
+                .append(" + \" doesn't fit its result type\"); }");
+
+        String call = "((" + HANDLER_CLASS + ")handler).call(thiz, " + args + ")";
+        if (returnType.getSort() == Type.VOID) {
+            return source.append(call).append(";}").toString();
+        }
+
+        source.append("Object result = ").append(call).append(';')
+                .append("if (result == null) { return ").append(defaultValue).append("; }")
+                .append("return ").append(unboxed(returnType, "result")).append(';');
+        return source.append('}').toString();
+    }
+
+    private static String defaultValue(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                return "false";
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return "(Object)null";
+            default:
+                return "(" + type.getClassName() + ")0";
+        }
+    }
+
+    private static String boxed(Type type, String value) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                return "Boolean.valueOf(" + value + ")";
+            case Type.CHAR:
+                return "Character.valueOf(" + value + ")";
+            case Type.BYTE:
+                return "Byte.valueOf(" + value + ")";
+            case Type.SHORT:
+                return "Short.valueOf(" + value + ")";
+            case Type.INT:
+                return "Integer.valueOf(" + value + ")";
+            case Type.LONG:
+                return "Long.valueOf(" + value + ")";
+            case Type.FLOAT:
+                return "Float.valueOf(" + value + ")";
+            case Type.DOUBLE:
+                return "Double.valueOf(" + value + ")";
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Numbers are converted, so a handler may e.g. return an Integer for a long result.
+     */
+    private static String unboxed(Type type, String value) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                return "((Boolean)" + value + ").booleanValue()";
+            case Type.CHAR:
+                return "((Character)" + value + ").charValue()";
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return value;
+            default:
+                return "((Number)" + value + ")." + type.getClassName() + "Value()";
+        }
+    }
+
+    /**
+     * Returns the shape of the bridge method a delegated method or constructor calls in the
+     * specialized mode.
+     */
+    public static String shapeOf(String name, String descriptor) {
+        Type returnType = name.equals("<init>") ? Type.VOID_TYPE : Type.getReturnType(descriptor);
+
+        StringBuilder shape = new StringBuilder(bridgeMethod(returnType, true)).append('(');
+        for (Type parameterType : Type.getArgumentTypes(descriptor)) {
+            shape.append(erased(parameterType).getDescriptor());
+        }
+        return shape.append(')').toString();
+    }
+
+    public static String methodName(String shape) {
+        return shape.substring(0, shape.indexOf('('));
+    }
+
+    /**
+     * The JVM descriptor of the bridge method of the given shape.
+     */
+    public static String descriptor(String shape) {
+        String method = methodName(shape);
+        String returnDescriptor;
+        switch (method) {
+            case "callVoid":
+                returnDescriptor = "V";
+                break;
+            case "callBoolean":
+                returnDescriptor = "Z";
+                break;
+            case "callInt":
+                returnDescriptor = "I";
+                break;
+            case "callLong":
+                returnDescriptor = "J";
+                break;
+            case "callByte":
+                returnDescriptor = "B";
+                break;
+            case "callFloat":
+                returnDescriptor = "F";
+                break;
+            case "callDouble":
+                returnDescriptor = "D";
+                break;
+            case "callChar":
+                returnDescriptor = "C";
+                break;
+            case "callShort":
+                returnDescriptor = "S";
+                break;
+            default:
+                returnDescriptor = "Ljava/lang/Object;";
+                break;
+        }
+        return "(Ljava/lang/String;Ljava/lang/Object;" + shape.substring(method.length() + 1) + returnDescriptor;
+    }
+
+    /**
+     * The bridge method called for a return type. Char and short results only have a method of their
+     * own in the specialized mode, otherwise they go through callObject.
+     */
+    public static String bridgeMethod(Type returnType, boolean specialized) {
+        switch (returnType.getSort()) {
+            case Type.VOID:
+                return "callVoid";
+            case Type.BOOLEAN:
+                return "callBoolean";
+            case Type.INT:
+                return "callInt";
+            case Type.LONG:
+                return "callLong";
+            case Type.BYTE:
+                return "callByte";
+            case Type.FLOAT:
+                return "callFloat";
+            case Type.DOUBLE:
+                return "callDouble";
+            case Type.CHAR:
+                return specialized ? "callChar" : "callObject";
+            case Type.SHORT:
+                return specialized ? "callShort" : "callObject";
+            default:
+                return "callObject";
+        }
+    }
+
+    /**
+     * Primitives are passed as they are, everything else as Object.
+     */
+    public static Type erased(Type type) {
+        return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY
+                ? Type.getObjectType("java/lang/Object")
+                : type;
+    }
+
+    /**
+     * Adds the shapes of the methods in the given class which get delegated to the bridge - all
+     * methods and constructors of delegated classes, just the native methods of kept classes.
+     */
+    public static void collectShapes(byte[] bytecode, final boolean delegate, final Set<String> shapes) {
+        ClassReader reader = new ClassReader(bytecode);
+        if ((reader.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
+            return;
+        }
+
+        reader.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                boolean isNative = (access & Opcodes.ACC_NATIVE) != 0;
+                if (!name.equals("<clinit>") && (delegate || isNative)) {
+                    shapes.add(shapeOf(name, descriptor));
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+}
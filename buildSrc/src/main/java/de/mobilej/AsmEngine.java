@@ -0,0 +1,643 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.slf4j.Logger;
+
+import de.mobilej.ProcessRealAndroidJar.ClassMapping;
+
+import static de.mobilej.ABridgeGenerator.BRIDGE_INTERNAL_NAME;
+
+/**
+ * Rewrites classes with ASM in a single streaming pass per class - nothing but the class itself is
+ * ever read, there is no class pool and no source level compiler involved.
+ *
+ * The output matches what {@link JavassistEngine} produces: classes and methods are widened, native
+ * methods (and every method and constructor of delegated classes) get a body calling into
+ * de.mobilej.ABridge with the same signature strings, the calls of {@link CallRewrites} are rewritten
+ * and the class mappings are applied. Interfaces are left alone, except
+ * for the InnerClasses entries of nested classes which got widened.
+ *
+ * The generated method bodies don't branch, so the existing stack map frames stay valid and
+ * nothing has to be loaded to compute new ones. One difference remains: delegated constructors
+ * always call the no-arg constructor of the super class, a missing one shows up when the class is
+ * loaded instead of being reported while transforming.
+ *
+ * With the specialized bridge the arguments are passed as they are to the overload matching the
+ * method's shape, see {@link ABridgeGenerator}.
+ */
+public class AsmEngine implements UnmockEngine {
+
+    private static final String OBJECT = "java/lang/Object";
+
+    private static final String BRIDGE_DESCRIPTOR_PREFIX = "(Ljava/lang/String;Ljava/lang/Object;[Ljava/lang/Object;)";
+
+    private static final int WIDENED = Opcodes.ACC_FINAL | Opcodes.ACC_PRIVATE | Opcodes.ACC_PROTECTED;
+
+    private final RuleMatcher matcher;
+    private final SimpleRemapper remapper;
+    private final boolean specialized;
+    private final NativeBindings bindings;
+    private final CallRewrites callRewrites;
+    private final Logger logger;
+
+    public AsmEngine(RuleMatcher matcher,
+                     List<ClassMapping> classesToMap,
+                     boolean specialized,
+                     NativeBindings bindings,
+                     CallRewrites callRewrites,
+                     Logger logger) {
+        this.matcher = matcher;
+        this.remapper = new SimpleRemapper(internalMappings(classesToMap));
+        this.specialized = specialized;
+        this.bindings = bindings;
+        this.callRewrites = callRewrites;
+        this.logger = logger;
+    }
+
+    /**
+     * The mappings are applied one after another, so a class renamed by one mapping is subject to
+     * the following ones.
+     */
+    private static Map<String, String> internalMappings(List<ClassMapping> classesToMap) {
+        Map<String, String> mappings = new HashMap<>();
+        for (int i = 0; i < classesToMap.size(); i++) {
+            String from = classesToMap.get(i).from.replace('.', '/');
+            if (mappings.containsKey(from)) {
+                continue;
+            }
+
+            String to = from;
+            for (int j = i; j < classesToMap.size(); j++) {
+                if (classesToMap.get(j).from.replace('.', '/').equals(to)) {
+                    to = classesToMap.get(j).to.replace('.', '/');
+                }
+            }
+            mappings.put(from, to);
+        }
+        return mappings;
+    }
+
+    @Override
+    public boolean transform(List<String> nest, ClassSource classes, Map<String, byte[]> result)
+            throws Exception {
+        Map<String, ClassReader> readers = new HashMap<>();
+        // nested classes we widen, their entries in the outer class need to follow
+        Set<String> widened = new HashSet<>();
+        // classes with a call to rewrite, the others don't need to look at their calls at all
+        Set<String> rewritingCalls = new HashSet<>();
+        for (String clazzName : nest) {
+            byte[] bytecode = classes.bytecode(clazzName);
+            ClassReader reader = new ClassReader(bytecode);
+            readers.put(clazzName, reader);
+            if ((reader.getAccess() & Opcodes.ACC_INTERFACE) == 0) {
+                widened.add(reader.getClassName());
+            }
+            if (!new ConstantPool(bytecode).rewrittenMethodrefs(callRewrites).isEmpty()) {
+                rewritingCalls.add(clazzName);
+            }
+        }
+
+        boolean complete = true;
+        for (String clazzName : nest) {
+            ClassReader reader = readers.get(clazzName);
+            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+
+            String name = reader.getClassName();
+            boolean isInterface = !widened.contains(name);
+            boolean delegate = matcher.classify(clazzName) == RuleMatcher.Outcome.DELEGATE;
+
+            // interfaces are neither changed nor renamed, just like the Javassist based processing does
+            ClassVisitor next = isInterface ? writer : new ClassRemapper(writer, remapper);
+            String newName = isInterface ? null : remapper.map(name);
+            newName = (newName != null ? newName : name).replace('/', '.');
+
+            try {
+                reader.accept(new UnmockClassVisitor(next, isInterface, delegate, specialized, bindings,
+                        rewritingCalls.contains(clazzName) ? callRewrites : null, widened), 0);
+                result.put(newName, writer.toByteArray());
+            } catch (RuntimeException e) {
+                // keep the class as it is, like a class Javassist couldn't process completely
+                logger.error("-> unable to process", e);
+                result.put(newName, classes.bytecode(clazzName));
+                complete = false;
+            }
+        }
+
+        return complete;
+    }
+
+    private static class UnmockClassVisitor extends ClassVisitor {
+        private final boolean isInterface;
+        private final boolean delegate;
+        private final boolean specialized;
+        private final NativeBindings bindings;
+        // null if the class doesn't call any of the rewritten methods
+        private final CallRewrites callRewrites;
+        private final Set<String> widened;
+
+        private String className;
+        private String superName;
+
+        UnmockClassVisitor(ClassVisitor next, boolean isInterface, boolean delegate, boolean specialized,
+                           NativeBindings bindings, CallRewrites callRewrites, Set<String> widened) {
+            super(Opcodes.ASM9, next);
+            this.isInterface = isInterface;
+            this.delegate = delegate;
+            this.specialized = specialized;
+            this.bindings = bindings;
+            this.callRewrites = callRewrites;
+            this.widened = widened;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName,
+                          String[] interfaces) {
+            this.className = name;
+            this.superName = superName;
+            if (!isInterface) {
+                access = (access | Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER) & ~WIDENED;
+            }
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+            // the entry of this very class and those of widened classes declared by it
+            boolean own = name.equals(className) && !isInterface;
+            boolean member = className.equals(outerName) && widened.contains(name);
+            if (own || member) {
+                access = (access | Opcodes.ACC_PUBLIC) & ~WIDENED;
+            }
+            super.visitInnerClass(name, outerName, innerName, access);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                         String[] exceptions) {
+            if (isInterface) {
+                return super.visitMethod(access, name, descriptor, signature, exceptions);
+            }
+
+            boolean isClassInit = name.equals("<clinit>");
+            boolean isCtor = name.equals("<init>");
+
+            // the static initializer is left alone, Javassist doesn't count it as a declared method
+            if (isClassInit) {
+                return super.visitMethod(access, name, descriptor, signature, exceptions);
+            }
+
+            boolean isNative = (access & Opcodes.ACC_NATIVE) != 0;
+            boolean delegateBody = isNative || delegate;
+
+            // like Javassist's getDeclaredMethods(), constructors of kept classes aren't widened
+            int newAccess = isCtor && !delegate
+                    ? access
+                    : (access | Opcodes.ACC_PUBLIC) & ~(WIDENED | Opcodes.ACC_NATIVE);
+            if (delegateBody) {
+                newAccess &= ~Opcodes.ACC_ABSTRACT;
+            }
+
+            MethodVisitor mv = super.visitMethod(newAccess, name, descriptor, signature, exceptions);
+            if (delegateBody) {
+                boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+                // only natives of kept classes can have a pure Java implementation
+                String[] binding = isStatic && !delegate
+                        ? bindings.bind(className.replace('/', '.'), name, descriptor)
+                        : null;
+                return new DelegatingBody(mv, className, superName, name, descriptor, isStatic, specialized,
+                        binding);
+            }
+            if (!isCtor && callRewrites != null) {
+                return new CallSiteRewriter(mv, callRewrites);
+            }
+            return mv;
+        }
+    }
+
+    /**
+     * Rewrites calls the JVM can't execute, the same way as JavassistEngine#instumentMethod.
+     */
+    private static class CallSiteRewriter extends MethodVisitor {
+        private final CallRewrites callRewrites;
+
+        CallSiteRewriter(MethodVisitor next, CallRewrites callRewrites) {
+            super(Opcodes.ASM9, next);
+            this.callRewrites = callRewrites;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+                                    boolean isInterface) {
+            CallRewrites.Rewrite rewrite = callRewrites.find(owner, name, descriptor);
+            if (rewrite == null) {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                return;
+            }
+
+            boolean staticCall = opcode == Opcodes.INVOKESTATIC;
+            Type returnType = Type.getReturnType(descriptor);
+            if (rewrite.isNull()) {
+                Type[] argumentTypes = Type.getArgumentTypes(descriptor);
+                for (int i = argumentTypes.length - 1; i >= 0; i--) {
+                    super.visitInsn(argumentTypes[i].getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+                }
+                if (!staticCall) {
+                    super.visitInsn(Opcodes.POP);
+                }
+                pushDefault(returnType);
+                return;
+            }
+
+            String targetDescriptor = rewrite.descriptor(owner, name, descriptor, staticCall);
+            if (CallRewrites.Rewrite.dropsReceiver(descriptor, staticCall, targetDescriptor)) {
+                dropReceiver(Type.getArgumentsAndReturnSizes(descriptor) >> 2, owner, name);
+            }
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, rewrite.owner(), rewrite.name(), targetDescriptor, false);
+
+            Type targetReturnType = Type.getReturnType(targetDescriptor);
+            if (returnType.getSort() == Type.VOID) {
+                if (targetReturnType.getSize() > 0) {
+                    super.visitInsn(targetReturnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+                }
+            } else if (!returnType.equals(targetReturnType)) {
+                super.visitTypeInsn(Opcodes.CHECKCAST, returnType.getInternalName());
+            }
+        }
+
+        /**
+         * Removes the receiver from below the arguments - there are no spare locals to park them in,
+         * so at most two slots of arguments are supported (e.g. VMRuntime#newUnpaddedArray).
+         */
+        private void dropReceiver(int argumentSlots, String owner, String name) {
+            // the sizes include the receiver
+            switch (argumentSlots - 1) {
+                case 0:
+                    super.visitInsn(Opcodes.POP);
+                    break;
+                case 1:
+                    super.visitInsn(Opcodes.SWAP);
+                    super.visitInsn(Opcodes.POP);
+                    break;
+                case 2:
+                    super.visitInsn(Opcodes.DUP2_X1);
+                    super.visitInsn(Opcodes.POP2);
+                    super.visitInsn(Opcodes.POP);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Can't drop the receiver of " + owner.replace('/', '.') + "."
+                            + name + ", it takes more than two slots of arguments");
+            }
+        }
+
+        private void pushDefault(Type type) {
+            switch (type.getSort()) {
+                case Type.VOID:
+                    break;
+                case Type.LONG:
+                    super.visitInsn(Opcodes.LCONST_0);
+                    break;
+                case Type.FLOAT:
+                    super.visitInsn(Opcodes.FCONST_0);
+                    break;
+                case Type.DOUBLE:
+                    super.visitInsn(Opcodes.DCONST_0);
+                    break;
+                case Type.OBJECT:
+                case Type.ARRAY:
+                    super.visitInsn(Opcodes.ACONST_NULL);
+                    break;
+                default:
+                    super.visitInsn(Opcodes.ICONST_0);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Replaces the code of a method by a call to de.mobilej.ABridge - or to the implementation a
+     * native method is bound to. Everything but the code (annotations, parameters) is passed on, the
+     * original instructions are dropped.
+     */
+    private static class DelegatingBody extends MethodVisitor {
+        private final MethodVisitor target;
+        private final String className;
+        private final String superName;
+        private final String name;
+        private final String descriptor;
+        private final boolean isStatic;
+        private final boolean specialized;
+        private final String[] binding;
+
+        private boolean written;
+
+        DelegatingBody(MethodVisitor target, String className, String superName, String name,
+                       String descriptor, boolean isStatic, boolean specialized, String[] binding) {
+            super(Opcodes.ASM9);
+            this.target = target;
+            this.className = className;
+            this.superName = superName;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.isStatic = isStatic;
+            this.specialized = specialized;
+            this.binding = binding;
+        }
+
+        @Override
+        public void visitParameter(String name, int access) {
+            target.visitParameter(name, access);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotationDefault() {
+            return target.visitAnnotationDefault();
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            return target.visitAnnotation(descriptor, visible);
+        }
+
+        @Override
+        public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor,
+                                                     boolean visible) {
+            return target.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+        }
+
+        @Override
+        public void visitAnnotableParameterCount(int parameterCount, boolean visible) {
+            target.visitAnnotableParameterCount(parameterCount, visible);
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor, boolean visible) {
+            return target.visitParameterAnnotation(parameter, descriptor, visible);
+        }
+
+        @Override
+        public void visitAttribute(Attribute attribute) {
+            target.visitAttribute(attribute);
+        }
+
+        @Override
+        public void visitCode() {
+            writeBody();
+        }
+
+        @Override
+        public void visitEnd() {
+            // native and abstract methods come without code
+            if (!written) {
+                writeBody();
+            }
+            target.visitEnd();
+        }
+
+        private void writeBody() {
+            written = true;
+            target.visitCode();
+
+            if (binding != null) {
+                writeBoundCall();
+                target.visitMaxs(0, 0);
+                return;
+            }
+
+            boolean isCtor = name.equals("<init>");
+            if (isCtor) {
+                target.visitVarInsn(Opcodes.ALOAD, 0);
+                target.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+            }
+
+            Type[] argumentTypes = Type.getArgumentTypes(descriptor);
+            target.visitLdcInsn(signature(argumentTypes, isCtor));
+            if (isStatic) {
+                target.visitInsn(Opcodes.ACONST_NULL);
+            } else {
+                target.visitVarInsn(Opcodes.ALOAD, 0);
+            }
+
+            if (specialized) {
+                writeSpecializedCall(argumentTypes, isCtor);
+                target.visitMaxs(0, 0);
+                return;
+            }
+
+            pushInt(argumentTypes.length);
+            target.visitTypeInsn(Opcodes.ANEWARRAY, OBJECT);
+            int slot = isStatic ? 0 : 1;
+            for (int i = 0; i < argumentTypes.length; i++) {
+                Type argumentType = argumentTypes[i];
+                target.visitInsn(Opcodes.DUP);
+                pushInt(i);
+                target.visitVarInsn(argumentType.getOpcode(Opcodes.ILOAD), slot);
+                box(argumentType);
+                target.visitInsn(Opcodes.AASTORE);
+                slot += argumentType.getSize();
+            }
+
+            callBridge(isCtor ? Type.VOID_TYPE : Type.getReturnType(descriptor));
+
+            // COMPUTE_MAXS takes care of the actual values
+            target.visitMaxs(0, 0);
+        }
+
+        private void writeBoundCall() {
+            int slot = 0;
+            for (Type argumentType : Type.getArgumentTypes(descriptor)) {
+                target.visitVarInsn(argumentType.getOpcode(Opcodes.ILOAD), slot);
+                slot += argumentType.getSize();
+            }
+
+            String boundDescriptor = binding[1];
+            target.visitMethodInsn(Opcodes.INVOKESTATIC, binding[0], name, boundDescriptor, false);
+
+            Type returnType = Type.getReturnType(descriptor);
+            Type boundReturnType = Type.getReturnType(boundDescriptor);
+            if (returnType.getSort() == Type.VOID) {
+                // natives of older platform versions don't report the size
+                if (boundReturnType.getSize() > 0) {
+                    target.visitInsn(boundReturnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+                }
+            } else if (!returnType.equals(boundReturnType)) {
+                target.visitTypeInsn(Opcodes.CHECKCAST, returnType.getInternalName());
+            }
+            target.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+        }
+
+        private void writeSpecializedCall(Type[] argumentTypes, boolean isCtor) {
+            int slot = isStatic ? 0 : 1;
+            for (Type argumentType : argumentTypes) {
+                target.visitVarInsn(argumentType.getOpcode(Opcodes.ILOAD), slot);
+                slot += argumentType.getSize();
+            }
+
+            String shape = ABridgeGenerator.shapeOf(name, descriptor);
+            target.visitMethodInsn(Opcodes.INVOKESTATIC, BRIDGE_INTERNAL_NAME, ABridgeGenerator.methodName(shape),
+                    ABridgeGenerator.descriptor(shape), false);
+
+            Type returnType = isCtor ? Type.VOID_TYPE : Type.getReturnType(descriptor);
+            int sort = returnType.getSort();
+            if ((sort == Type.OBJECT || sort == Type.ARRAY) && !returnType.getInternalName().equals(OBJECT)) {
+                target.visitTypeInsn(Opcodes.CHECKCAST, returnType.getInternalName());
+            }
+            target.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+        }
+
+        /**
+         * Same as Javassist's CtBehavior#getLongName, which is what the bridge got called with so far.
+         */
+        private String signature(Type[] argumentTypes, boolean isCtor) {
+            StringBuilder signature = new StringBuilder(className.replace('/', '.'));
+            if (!isCtor) {
+                signature.append('.').append(name);
+            }
+            signature.append('(');
+            for (int i = 0; i < argumentTypes.length; i++) {
+                if (i > 0) {
+                    signature.append(',');
+                }
+                signature.append(argumentTypes[i].getClassName());
+            }
+            return signature.append(')').toString();
+        }
+
+        private void callBridge(Type returnType) {
+            switch (returnType.getSort()) {
+                case Type.VOID:
+                    invokeBridge("callVoid", "V");
+                    target.visitInsn(Opcodes.RETURN);
+                    break;
+                case Type.BOOLEAN:
+                    invokeBridge("callBoolean", "Z");
+                    target.visitInsn(Opcodes.IRETURN);
+                    break;
+                case Type.INT:
+                    invokeBridge("callInt", "I");
+                    target.visitInsn(Opcodes.IRETURN);
+                    break;
+                case Type.LONG:
+                    invokeBridge("callLong", "J");
+                    target.visitInsn(Opcodes.LRETURN);
+                    break;
+                case Type.BYTE:
+                    invokeBridge("callByte", "B");
+                    target.visitInsn(Opcodes.IRETURN);
+                    break;
+                case Type.FLOAT:
+                    invokeBridge("callFloat", "F");
+                    target.visitInsn(Opcodes.FRETURN);
+                    break;
+                case Type.DOUBLE:
+                    invokeBridge("callDouble", "D");
+                    target.visitInsn(Opcodes.DRETURN);
+                    break;
+                case Type.CHAR:
+                    invokeBridge("callObject", "Ljava/lang/Object;");
+                    unbox("java/lang/Character", "charValue", "()C");
+                    target.visitInsn(Opcodes.IRETURN);
+                    break;
+                case Type.SHORT:
+                    invokeBridge("callObject", "Ljava/lang/Object;");
+                    unbox("java/lang/Short", "shortValue", "()S");
+                    target.visitInsn(Opcodes.IRETURN);
+                    break;
+                default:
+                    invokeBridge("callObject", "Ljava/lang/Object;");
+                    if (!returnType.getInternalName().equals(OBJECT)) {
+                        target.visitTypeInsn(Opcodes.CHECKCAST, returnType.getInternalName());
+                    }
+                    target.visitInsn(Opcodes.ARETURN);
+                    break;
+            }
+        }
+
+        private void invokeBridge(String method, String returnDescriptor) {
+            target.visitMethodInsn(Opcodes.INVOKESTATIC, BRIDGE_INTERNAL_NAME, method,
+                    BRIDGE_DESCRIPTOR_PREFIX + returnDescriptor, false);
+        }
+
+        private void unbox(String owner, String method, String descriptor) {
+            target.visitTypeInsn(Opcodes.CHECKCAST, owner);
+            target.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, method, descriptor, false);
+        }
+
+        private void box(Type type) {
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                    valueOf("java/lang/Boolean", "Z");
+                    break;
+                case Type.CHAR:
+                    valueOf("java/lang/Character", "C");
+                    break;
+                case Type.BYTE:
+                    valueOf("java/lang/Byte", "B");
+                    break;
+                case Type.SHORT:
+                    valueOf("java/lang/Short", "S");
+                    break;
+                case Type.INT:
+                    valueOf("java/lang/Integer", "I");
+                    break;
+                case Type.FLOAT:
+                    valueOf("java/lang/Float", "F");
+                    break;
+                case Type.LONG:
+                    valueOf("java/lang/Long", "J");
+                    break;
+                case Type.DOUBLE:
+                    valueOf("java/lang/Double", "D");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void valueOf(String owner, String primitive) {
+            target.visitMethodInsn(Opcodes.INVOKESTATIC, owner, "valueOf",
+                    "(" + primitive + ")L" + owner + ";", false);
+        }
+
+        private void pushInt(int value) {
+            if (value <= 5) {
+                target.visitInsn(Opcodes.ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                target.visitIntInsn(Opcodes.BIPUSH, value);
+            } else {
+                target.visitIntInsn(Opcodes.SIPUSH, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Type;
+
+/**
+ * The calls rewritten in the (non-native) methods of kept classes, because the JVM can't execute
+ * them - e.g. the typed System.arraycopy overloads of Android - or they should do something else
+ * in unit tests.
+ *
+ * A rule reads "owner.name=target" or "owner.name(descriptor)=target" - without a descriptor every
+ * overload matches, a rule with one wins over a rule without. The target is either "null" (the call
+ * is dropped, its result is null, 0 or false) or a static method "owner.name" taking the arguments
+ * of the call - the receiver of an instance call first - with the same types. With a descriptor,
+ * "owner.name(descriptor)", the parameter and return types of the target may differ, e.g. Object
+ * instead of int[]. If it takes just the arguments of an instance call, the receiver is dropped.
+ *
+ * The built-in rules come first, later rules for the same method replace earlier ones. Rules are
+ * looked up by owner, name and descriptor in hash maps, so the number of rules doesn't matter for
+ * the cost per call site.
+ */
+public class CallRewrites {
+
+    /**
+     * What every kept class needs on the JVM.
+     */
+    public static final List<String> DEFAULTS = Collections.unmodifiableList(Arrays.asList(
+            // Android has typed overloads, the JVM just the one taking objects
+            "java.lang.System.arraycopy=java.lang.System.arraycopy(Ljava/lang/Object;ILjava/lang/Object;II)V",
+            "dalvik.system.VMRuntime.newUnpaddedArray=java.lang.reflect.Array.newInstance(Ljava/lang/Class;I)Ljava/lang/Object;",
+            "dalvik.system.VMRuntime.getRuntime=null"
+    ));
+
+    private static final String NULL_TARGET = "null";
+
+    // owner (internal name) -> name -> the rules of the method
+    private final Map<String, Map<String, Overloads>> rules = new HashMap<>();
+    private final List<String> custom;
+
+    private CallRewrites(List<String> custom) {
+        this.custom = custom;
+    }
+
+    /**
+     * The built-in rules followed by the given ones.
+     *
+     * @throws IllegalArgumentException if a rule can't be parsed
+     */
+    public static CallRewrites of(List<String> rules) {
+        CallRewrites result = new CallRewrites(new ArrayList<>(rules));
+        for (String rule : DEFAULTS) {
+            result.add(rule);
+        }
+        for (String rule : rules) {
+            result.add(rule);
+        }
+        return result;
+    }
+
+    /**
+     * The rules given in addition to the built-in ones, in their order.
+     */
+    public List<String> custom() {
+        return custom;
+    }
+
+    /**
+     * Part of the cache fingerprint, empty without additional rules.
+     */
+    public String fingerprint() {
+        return String.join("|", custom);
+    }
+
+    /**
+     * Whether there is a rule for some method of the given class (internal name).
+     */
+    public boolean hasOwner(String owner) {
+        return rules.containsKey(owner);
+    }
+
+    /**
+     * The rule for a call, or null if it stays as it is.
+     *
+     * @param owner internal name of the class the method is called on
+     */
+    public Rewrite find(String owner, String name, String descriptor) {
+        Map<String, Overloads> methods = rules.get(owner);
+        if (methods == null) {
+            return null;
+        }
+        Overloads overloads = methods.get(name);
+        if (overloads == null) {
+            return null;
+        }
+        Rewrite exact = overloads.byDescriptor.get(descriptor);
+        return exact != null ? exact : overloads.any;
+    }
+
+    private void add(String rule) {
+        int indexOfEquals = rule.indexOf('=');
+        if (indexOfEquals <= 0 || indexOfEquals == rule.length() - 1) {
+            throw new IllegalArgumentException("Unparseable call rewrite: " + rule);
+        }
+
+        String[] method = parseMethod(rule.substring(0, indexOfEquals).trim(), rule);
+        String target = rule.substring(indexOfEquals + 1).trim();
+
+        Rewrite rewrite;
+        if (target.equals(NULL_TARGET)) {
+            rewrite = new Rewrite(null, null, null);
+        } else {
+            String[] targetMethod = parseMethod(target, rule);
+            rewrite = new Rewrite(targetMethod[0], targetMethod[1], targetMethod[2]);
+        }
+
+        Overloads overloads = rules.computeIfAbsent(method[0], k -> new HashMap<>())
+                .computeIfAbsent(method[1], k -> new Overloads());
+        if (method[2] == null) {
+            overloads.any = rewrite;
+        } else {
+            overloads.byDescriptor.put(method[2], rewrite);
+        }
+    }
+
+    /**
+     * "a.b.C.name(descriptor)" -> internal name of the class, name, descriptor (or null)
+     */
+    private static String[] parseMethod(String method, String rule) {
+        int indexOfParenthesis = method.indexOf('(');
+        String descriptor = indexOfParenthesis >= 0 ? method.substring(indexOfParenthesis) : null;
+        String qualifiedName = indexOfParenthesis >= 0 ? method.substring(0, indexOfParenthesis) : method;
+
+        int indexOfDot = qualifiedName.lastIndexOf('.');
+        if (indexOfDot <= 0 || indexOfDot == qualifiedName.length() - 1) {
+            throw new IllegalArgumentException("Unparseable call rewrite: " + rule);
+        }
+        if (descriptor != null) {
+            try {
+                Type.getArgumentTypes(descriptor);
+                Type.getReturnType(descriptor);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Unparseable call rewrite: " + rule, e);
+            }
+        }
+
+        return new String[]{qualifiedName.substring(0, indexOfDot).replace('.', '/'),
+                qualifiedName.substring(indexOfDot + 1), descriptor};
+    }
+
+    private static class Overloads {
+        final Map<String, Rewrite> byDescriptor = new HashMap<>();
+        Rewrite any;
+    }
+
+    public static class Rewrite {
+        private final String owner;
+        private final String name;
+        private final String descriptor;
+
+        Rewrite(String owner, String name, String descriptor) {
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        /**
+         * True if the call is dropped and replaced by the default value of its result.
+         */
+        public boolean isNull() {
+            return owner == null;
+        }
+
+        /**
+         * Internal name of the class of the static method called instead.
+         */
+        public String owner() {
+            return owner;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * The descriptor of the method called instead of the given call.
+         *
+         * @throws IllegalArgumentException if the target doesn't fit the call
+         */
+        public String descriptor(String callOwner, String callName, String callDescriptor, boolean staticCall) {
+            String arguments = callDescriptor.substring(1, callDescriptor.indexOf(')'));
+            if (descriptor == null) {
+                String receiver = staticCall ? "" : "L" + callOwner + ";";
+                return "(" + receiver + arguments + ")" + Type.getReturnType(callDescriptor).getDescriptor();
+            }
+
+            int callArguments = Type.getArgumentTypes(callDescriptor).length;
+            int targetArguments = Type.getArgumentTypes(descriptor).length;
+            boolean fits = targetArguments == callArguments || (!staticCall && targetArguments == callArguments + 1);
+
+            Type callReturn = Type.getReturnType(callDescriptor);
+            Type targetReturn = Type.getReturnType(descriptor);
+            if (callReturn.getSort() != Type.VOID && !callReturn.equals(targetReturn)) {
+                // references get a cast, primitives have to match
+                fits &= isReference(callReturn) && isReference(targetReturn);
+            }
+
+            if (!fits) {
+                throw new IllegalArgumentException(Type.getObjectType(callOwner).getClassName() + "." + callName + callDescriptor
+                        + " can't be replaced by " + Type.getObjectType(owner).getClassName() + "." + name + descriptor);
+            }
+            return descriptor;
+        }
+
+        /**
+         * True if the receiver of an instance call isn't passed to the given target descriptor.
+         */
+        public static boolean dropsReceiver(String callDescriptor, boolean staticCall, String targetDescriptor) {
+            return !staticCall
+                    && Type.getArgumentTypes(targetDescriptor).length == Type.getArgumentTypes(callDescriptor).length;
+        }
+
+        private static boolean isReference(Type type) {
+            return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+        }
+    }
+}
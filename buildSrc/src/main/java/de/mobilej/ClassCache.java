@@ -0,0 +1,346 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent, content-addressed store for rewritten classes.
+ *
+ * An entry holds either the bytecode of an outer class and its nested classes by class name or a
+ * whole file (e.g. a jar of rewritten classes). Keys are derived from everything the output depends
+ * on, so entries never get stale - a changed input simply results in a different key. Entries are
+ * written to a temporary file and moved into place, which makes it safe for several builds to share
+ * the directory.
+ *
+ * Where producing an entry is expensive, {@link #lock(String)} makes sure only one build (or thread)
+ * produces it while the others wait and then find it in the cache.
+ *
+ * Using an entry updates its modification time (at most once a day), {@link #cleanUp(int)} deletes
+ * the ones nobody used for a while.
+ */
+public class ClassCache {
+
+    // file locks are held by the whole JVM, threads of the same build have to wait in here
+    private static final Map<String, ReentrantLock> localLocks = new ConcurrentHashMap<>();
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final String CLEANUP_MARKER = "cleanup";
+
+    private final File dir;
+
+    public ClassCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the cached classes for the given key or null if there are none (or they are unreadable).
+     */
+    public Map<String, byte[]> load(String key) {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        touch(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = in.readInt();
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                classes.put(name, bytecode);
+            }
+            return classes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void store(String key, Map<String, byte[]> classes) throws IOException {
+        File file = fileFor(key);
+        File parent = file.getParentFile();
+        parent.mkdirs();
+
+        File tmp = File.createTempFile(key, ".tmp", parent);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(classes.size());
+                for (Map.Entry<String, byte[]> clazz : classes.entrySet()) {
+                    out.writeUTF(clazz.getKey());
+                    out.writeInt(clazz.getValue().length);
+                    out.write(clazz.getValue());
+                }
+            }
+
+            moveIntoPlace(tmp, file);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    public boolean contains(String key) {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return false;
+        }
+        touch(file);
+        return true;
+    }
+
+    /**
+     * Copies the file stored for the given key to the target, returns false if there is none.
+     */
+    public boolean copyTo(String key, File target) throws IOException {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return false;
+        }
+
+        touch(file);
+        try {
+            Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // cleaned up in the meantime
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores a copy of the given file for the key.
+     */
+    public void storeCopy(String key, File source) throws IOException {
+        File file = fileFor(key);
+        File parent = file.getParentFile();
+        parent.mkdirs();
+
+        File tmp = File.createTempFile(key, ".tmp", parent);
+        try {
+            Files.copy(source.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            moveIntoPlace(tmp, file);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Blocks until no other build or thread holds the lock for the given key. The lock is released
+     * by closing the result.
+     */
+    public Closeable lock(String key) throws IOException {
+        File lockFile = new File(new File(dir, "locks"), key + ".lock");
+        lockFile.getParentFile().mkdirs();
+
+        final ReentrantLock localLock = localLocks.computeIfAbsent(lockFile.getAbsolutePath(), k -> new ReentrantLock());
+        localLock.lock();
+        try {
+            final FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            final FileLock fileLock;
+            try {
+                fileLock = channel.lock();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            touch(lockFile);
+
+            return () -> {
+                try {
+                    fileLock.release();
+                    channel.close();
+                } finally {
+                    localLock.unlock();
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * The SHA-256 of the content of a file. Like Gradle's own file hashes it's remembered by path,
+     * length and modification time, so an unchanged file isn't read again by the next build.
+     */
+    public String fileHash(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        String stamp = canonical.length() + "|" + canonical.lastModified();
+
+        MessageDigest pathDigest = newDigest();
+        pathDigest.update(canonical.getPath().getBytes(StandardCharsets.UTF_8));
+        File hashFile = new File(new File(dir, "files"), toHex(pathDigest.digest()));
+
+        if (hashFile.isFile()) {
+            List<String> remembered = Files.readAllLines(hashFile.toPath(), StandardCharsets.UTF_8);
+            if (remembered.size() == 2 && remembered.get(0).equals(stamp)) {
+                touch(hashFile);
+                return remembered.get(1);
+            }
+        }
+
+        MessageDigest digest = newDigest();
+        try (InputStream in = new FileInputStream(canonical)) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        String hash = toHex(digest.digest());
+
+        hashFile.getParentFile().mkdirs();
+        File tmp = File.createTempFile(hashFile.getName(), ".tmp", hashFile.getParentFile());
+        try {
+            Files.write(tmp.toPath(), (stamp + "\n" + hash + "\n").getBytes(StandardCharsets.UTF_8));
+            // replaces an outdated hash, if that fails the file is simply hashed again next time
+            Files.move(tmp.toPath(), hashFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // only a shortcut
+        } finally {
+            tmp.delete();
+        }
+        return hash;
+    }
+
+    /**
+     * Deletes the entries - and the locks and remembered file hashes - nobody used in the given
+     * number of days. Does nothing if the directory was cleaned up less than a day ago, by this or
+     * another build.
+     */
+    public void cleanUp(int retentionDays) {
+        long now = System.currentTimeMillis();
+        File marker = new File(dir, CLEANUP_MARKER);
+        if (now - marker.lastModified() < DAY_MILLIS) {
+            return;
+        }
+        try {
+            dir.mkdirs();
+            if (!marker.createNewFile() && !marker.setLastModified(now)) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+
+        long unusedSince = now - TimeUnit.DAYS.toMillis(retentionDays);
+        File[] subDirs = dir.listFiles(File::isDirectory);
+        if (subDirs == null) {
+            return;
+        }
+        for (File subDir : subDirs) {
+            File[] files = subDir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.lastModified() < unusedSince) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the file as used - only once a day, the cleanup doesn't need it any more precise.
+     */
+    private static void touch(File file) {
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > DAY_MILLIS) {
+            file.setLastModified(now);
+        }
+    }
+
+    private static void moveIntoPlace(File tmp, File file) throws IOException {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // another build stored the very same content in the meantime
+            if (!file.isFile()) {
+                throw e;
+            }
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    /**
+     * The key for the output of a nest - it depends on the bytes and the rule outcome of every member
+     * and on everything else influencing the rewriting (the fingerprint). The same for the unmocked
+     * jar and the agent, so both share the entries.
+     */
+    public static String nestKey(String fingerprint,
+                                 List<String> nest,
+                                 RuleMatcher matcher,
+                                 UnmockEngine.ClassSource classes) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+
+        for (String clazzName : nest) {
+            digest.update((byte) 0);
+            digest.update(clazzName.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) matcher.classify(clazzName).ordinal());
+            digest.update(classes.bytecode(clazzName));
+        }
+
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
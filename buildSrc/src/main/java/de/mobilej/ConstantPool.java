@@ -0,0 +1,202 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Minimal reader for the constant pool of a class file - the only part of a class needed to find
+ * the classes it refers to, so there is no need to parse (or even skip) fields, methods and code.
+ *
+ * The same goes for the methods a class calls: every invoke instruction refers to a Methodref (or
+ * InterfaceMethodref) entry, so a class without an entry for a method never calls it.
+ */
+public class ConstantPool {
+
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELDREF = 9;
+    private static final int METHODREF = 10;
+    private static final int INTERFACE_METHODREF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    private final byte[] bytecode;
+    // by constant pool index, the offset of the entry's content (right after the tag)
+    private final int[] offsets;
+    private final byte[] tags;
+
+    public ConstantPool(byte[] bytecode) throws IOException {
+        this.bytecode = bytecode;
+
+        int count = readUnsignedShort(8);
+        offsets = new int[count];
+        tags = new byte[count];
+
+        int offset = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = bytecode[offset];
+            tags[i] = (byte) tag;
+            offsets[i] = offset + 1;
+            switch (tag) {
+                case UTF8:
+                    offset += 3 + readUnsignedShort(offset + 1);
+                    break;
+                case CLASS:
+                case STRING:
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE:
+                    offset += 3;
+                    break;
+                case METHOD_HANDLE:
+                    offset += 4;
+                    break;
+                case INTEGER:
+                case FLOAT:
+                case FIELDREF:
+                case METHODREF:
+                case INTERFACE_METHODREF:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC:
+                    offset += 5;
+                    break;
+                case LONG:
+                case DOUBLE:
+                    // takes two slots
+                    offset += 9;
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + " at index " + i);
+            }
+        }
+    }
+
+    /**
+     * The internal names of all classes referred to - by class entries as well as in descriptors and
+     * signatures (e.g. parameter types or annotations). Names in string constants that happen to look
+     * like a descriptor show up, too, so the result may contain names which aren't classes at all.
+     */
+    public Set<String> referencedClasses() throws IOException {
+        Set<String> result = new LinkedHashSet<>();
+        for (int i = 1; i < tags.length; i++) {
+            if (tags[i] == CLASS) {
+                String name = utf8(readUnsignedShort(offsets[i]));
+                if (name.startsWith("[")) {
+                    addDescriptorClasses(name, result);
+                } else {
+                    result.add(name);
+                }
+            } else if (tags[i] == UTF8) {
+                String value = utf8(i);
+                if (value.startsWith("(") || value.startsWith("L") || value.startsWith("[") || value.startsWith("<")) {
+                    addDescriptorClasses(value, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The indices of the Methodref and InterfaceMethodref entries of methods the given rules rewrite
+     * calls of - empty if the class doesn't call any of them.
+     */
+    public BitSet rewrittenMethodrefs(CallRewrites rewrites) throws IOException {
+        BitSet result = new BitSet();
+        for (int i = 1; i < tags.length; i++) {
+            if (tags[i] != METHODREF && tags[i] != INTERFACE_METHODREF) {
+                continue;
+            }
+
+            // class_index -> name_index, name_and_type_index -> name_index and descriptor_index
+            String owner = utf8(readUnsignedShort(offsets[readUnsignedShort(offsets[i])]));
+            if (!rewrites.hasOwner(owner)) {
+                continue;
+            }
+            int nameAndType = offsets[readUnsignedShort(offsets[i] + 2)];
+            if (rewrites.find(owner, utf8(readUnsignedShort(nameAndType)), utf8(readUnsignedShort(nameAndType + 2))) != null) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether the given code may call one of the given Methodref entries. The code isn't decoded,
+     * any invoke opcode followed by one of the indices counts - so a false positive is possible, a
+     * call going unnoticed is not.
+     */
+    public static boolean mayInvoke(byte[] code, BitSet methodrefs) {
+        if (methodrefs.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i + 2 < code.length; i++) {
+            int opcode = code[i] & 0xff;
+            if (opcode >= INVOKEVIRTUAL && opcode <= INVOKEINTERFACE
+                    && methodrefs.get(((code[i + 1] & 0xff) << 8) | (code[i + 2] & 0xff))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The value of the UTF8 entry at the given index.
+     */
+    public String utf8(int index) throws IOException {
+        int offset = offsets[index];
+        return new DataInputStream(new ByteArrayInputStream(bytecode, offset, 2 + readUnsignedShort(offset))).readUTF();
+    }
+
+    private static void addDescriptorClasses(String descriptor, Set<String> result) {
+        int start = descriptor.indexOf('L');
+        while (start >= 0) {
+            int end = start + 1;
+            while (end < descriptor.length() && ";<>():".indexOf(descriptor.charAt(end)) < 0) {
+                end++;
+            }
+            if (end < descriptor.length() && end > start + 1) {
+                result.add(descriptor.substring(start + 1, end));
+            }
+            start = descriptor.indexOf('L', end);
+        }
+    }
+
+    private int readUnsignedShort(int offset) {
+        return ((bytecode[offset] & 0xff) << 8) | (bytecode[offset + 1] & 0xff);
+    }
+}
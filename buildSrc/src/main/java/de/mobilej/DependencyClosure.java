@@ -0,0 +1,163 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.slf4j.Logger;
+
+/**
+ * Finds the classes a kept class needs, for the "keepWithDependencies" rules.
+ *
+ * Starting from the seed classes, the constant pool of every class reached is scanned for the
+ * classes it refers to. A class is always kept together with its nest, so all nested classes are
+ * followed as well. The walk stops at classes which aren't in the android-all jar, at classes in
+ * "java." (these can't be loaded from the classpath anyway) and at the configured boundaries -
+ * e.g. a boundary "android.app." leaves all of android.app to the stubs of android.jar.
+ *
+ * The seeds are either configured ("keepWithDependencies") or the classes the compiled code of the
+ * project refers to ("keepUsed", see {@link UnmockUsageScanTask}).
+ */
+public class DependencyClosure {
+
+    private static final String[] BUILT_IN_BOUNDARIES = {"java."};
+
+    private static final String USED_RULE = "used";
+
+    private final ZipFile androidAll;
+    private final RuleMatcher boundaries;
+    // outer class -> classes in its nest (including itself)
+    private final Map<String, List<String>> nests = new HashMap<>();
+    private final Map<String, ZipArchiveEntry> clazzEntries = new HashMap<>();
+
+    public DependencyClosure(ZipFile androidAll, Collection<String> boundaries) {
+        this.androidAll = androidAll;
+
+        List<String> boundaryRules = new ArrayList<>(boundaries);
+        for (String builtIn : BUILT_IN_BOUNDARIES) {
+            boundaryRules.add(builtIn);
+        }
+        this.boundaries = new RuleMatcher(boundaryRules.toArray(new String[0]), new String[0]);
+
+        Enumeration<ZipArchiveEntry> entries = androidAll.getEntries();
+        while (entries.hasMoreElements()) {
+            ZipArchiveEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (name.endsWith(".class")) {
+                String clazzName = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                clazzEntries.put(clazzName, entry);
+                nests.computeIfAbsent(outerName(clazzName), k -> new ArrayList<>()).add(clazzName);
+            }
+        }
+    }
+
+    /**
+     * Keeps everything the seeds need (but not the seeds themselves) with the given matcher. The
+     * classes are kept by the rule of the seed that reached them first, "-" followed by the seed, so
+     * with outputMode "rule" each seed gets one jar with everything it needs.
+     *
+     * @return the number of nests kept in addition to the ones the other rules keep
+     */
+    public int keepDependencies(Collection<String> seeds, RuleMatcher matcher, Logger logger) throws IOException {
+        Set<String> visited = new HashSet<>();
+        int kept = 0;
+        for (String seed : seeds) {
+            if (!nests.containsKey(outerName(seed))) {
+                logger.warn("Unmock: keepWithDependencies class " + seed + " isn't in the android-all jar");
+                continue;
+            }
+            kept += keep(outerName(seed), "-" + seed, matcher, visited);
+        }
+        return kept;
+    }
+
+    /**
+     * Keeps the used classes which are in the android-all jar and everything they need, by the rule
+     * "used". Classes which aren't in the jar (e.g. of other libraries) are ignored.
+     *
+     * @return the number of nests kept in addition to the ones the other rules keep
+     */
+    public int keepUsed(Collection<String> usedClasses, RuleMatcher matcher) throws IOException {
+        Set<String> visited = new HashSet<>();
+        int kept = 0;
+        for (String used : usedClasses) {
+            String outer = outerName(used);
+            if (nests.containsKey(outer) && boundaries.classify(outer) == RuleMatcher.Outcome.NONE) {
+                kept += keep(outer, USED_RULE, matcher, visited);
+            }
+        }
+        return kept;
+    }
+
+    private int keep(String start, String rule, RuleMatcher matcher, Set<String> visited) throws IOException {
+        if (!visited.add(start)) {
+            return 0;
+        }
+
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(start);
+        int kept = 0;
+
+        while (!pending.isEmpty()) {
+            String outer = pending.poll();
+            if (matcher.classify(outer) == RuleMatcher.Outcome.NONE) {
+                matcher.keepDependency(outer, rule);
+                kept++;
+            }
+            // delegated classes don't need what their original code needs
+            if (matcher.classify(outer) == RuleMatcher.Outcome.DELEGATE) {
+                continue;
+            }
+
+            for (String clazzName : nests.get(outer)) {
+                for (String referenced : referencedClasses(clazzName)) {
+                    String referencedOuter = outerName(referenced.replace('/', '.'));
+                    if (nests.containsKey(referencedOuter)
+                            && boundaries.classify(referencedOuter) == RuleMatcher.Outcome.NONE
+                            && visited.add(referencedOuter)) {
+                        pending.add(referencedOuter);
+                    }
+                }
+            }
+        }
+        return kept;
+    }
+
+    private Set<String> referencedClasses(String clazzName) throws IOException {
+        try (InputStream in = androidAll.getInputStream(clazzEntries.get(clazzName))) {
+            return new ConstantPool(in.readAllBytes()).referencedClasses();
+        }
+    }
+
+    private static String outerName(String clazzName) {
+        int indexOfDollar = clazzName.indexOf('$');
+        return indexOfDollar > 0 ? clazzName.substring(0, indexOfDollar) : clazzName;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The heap budget of the low-memory mode ("heapBudgetMb").
+ *
+ * What counts is the heap still in use after the last garbage collection - the heap used right now
+ * includes garbage the next collection frees anyway. Once that exceeds the budget every engine is
+ * asked to {@link UnmockEngine#trim() trim} itself, each on its own thread the next time it's done
+ * with a nest. The budget is looked at again only after another collection, before that the numbers
+ * still include what the engines just dropped.
+ */
+public class HeapBudget {
+
+    private final long budgetBytes;
+
+    private long collectionsChecked = -1;
+    private int generation;
+    private final Map<UnmockEngine, Integer> trimmedAt = new IdentityHashMap<>();
+
+    public HeapBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns true if the given engine should drop what it holds on to before its next nest.
+     */
+    public synchronized boolean shouldTrim(UnmockEngine engine) {
+        long collections = collections();
+        if (collections != collectionsChecked) {
+            collectionsChecked = collections;
+            if (usedAfterCollection() > budgetBytes) {
+                generation++;
+            }
+        }
+
+        Integer trimmed = trimmedAt.put(engine, generation);
+        // a new engine doesn't hold anything yet
+        return trimmed != null && trimmed < generation;
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long usedAfterCollection() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+}
@@ -0,0 +1,495 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+
+import de.mobilej.ProcessRealAndroidJar.ClassMapping;
+
+import static de.mobilej.ABridgeGenerator.BRIDGE_CLASS;
+
+/**
+ * Rewrites classes with Javassist.
+ *
+ * The copied classes will be non-final/non-private and also all methods contained. Native methods
+ * (and every method and constructor of delegated classes) get a body calling into de.mobilej.ABridge.
+ *
+ * An instance owns a ClassPool, which isn't thread-safe - so every worker needs its own engine.
+ *
+ * With the specialized bridge the delegating bodies call the overload matching the method's shape
+ * instead of passing $args, see {@link ABridgeGenerator}.
+ *
+ * The ClassPool keeps every class it has read. In the low-memory mode the classes of a nest are
+ * detached from it as soon as their bytecode is taken, and {@link #trim()} starts over with a new
+ * pool - dropping the classes read along the way, e.g. super classes.
+ */
+public class JavassistEngine implements UnmockEngine {
+
+    private final File allAndroidFile;
+    private final RuleMatcher matcher;
+    private final List<ClassMapping> classesToMap;
+    private final Collection<String> shapes;
+    private final boolean specialized;
+    private final NativeBindings bindings;
+    private final CallRewrites callRewrites;
+    private final boolean lowMemory;
+    private final Logger logger;
+
+    private ClassPool pool;
+
+    /**
+     * @param shapes    the shapes of the specialized bridge or null to pass the arguments as Object[]
+     * @param lowMemory detach the classes from the pool once they are written
+     */
+    public JavassistEngine(File allAndroidFile,
+                           RuleMatcher matcher,
+                           List<ClassMapping> classesToMap,
+                           Collection<String> shapes,
+                           NativeBindings bindings,
+                           CallRewrites callRewrites,
+                           boolean lowMemory,
+                           Logger logger) throws NotFoundException, CannotCompileException, IOException {
+        this.allAndroidFile = allAndroidFile;
+        this.matcher = matcher;
+        this.classesToMap = classesToMap;
+        this.shapes = shapes;
+        this.specialized = shapes != null;
+        this.bindings = bindings;
+        this.callRewrites = callRewrites;
+        this.lowMemory = lowMemory;
+        this.logger = logger;
+
+        pool = newPool();
+    }
+
+    private ClassPool newPool() throws NotFoundException, CannotCompileException, IOException {
+        ClassPool pool = new ClassPool(null);
+        pool.appendSystemPath();
+
+        pool.insertClassPath(allAndroidFile.getAbsolutePath());
+        if (!bindings.isEmpty()) {
+            // the bound bodies call into the implementations
+            for (byte[] runtimeClass : bindings.runtimeClasses().values()) {
+                pool.makeClass(new ByteArrayInputStream(runtimeClass));
+            }
+        }
+
+        // the delegating method bodies need to resolve the bridge while being compiled
+        if (specialized) {
+            ABridgeGenerator.createHelperClasses(pool, shapes);
+        } else {
+            ABridgeGenerator.createHelperClasses(pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Later nests read what they need from android-all again - just like a worker of its own would.
+     */
+    @Override
+    public void trim() throws Exception {
+        pool = newPool();
+    }
+
+    /**
+     * Modifying a nested class also touches the InnerClasses entry of its outer class, so Javassist
+     * doesn't allow modifying a nested class when the outer class has been written already (it freezes
+     * the outer class again). Hence we take the bytecode only after all CtClass objects of the nest have
+     * been modified.
+     */
+    @Override
+    public boolean transform(List<String> nest, ClassSource classes, Map<String, byte[]> result)
+            throws Exception {
+        List<CtClass> clazzes = new ArrayList<>();
+        boolean complete = true;
+
+        // the pool reads the classes from android-all itself
+        for (String clazzName : nest) {
+            CtClass clazz = pool.get(clazzName);
+
+            try {
+                if (matcher.classify(clazzName) == RuleMatcher.Outcome.KEEP) {
+                    BitSet methodrefs = rewrittenMethodrefs(clazz.getClassFile2().getConstPool(), callRewrites);
+                    process(clazz, classesToMap, specialized, bindings, callRewrites, methodrefs);
+                } else {
+                    processDelegate(clazz, classesToMap, specialized);
+                }
+            } catch (Exception e) {
+                logger.error("-> unable to process", e);
+                complete = false;
+            }
+
+            clazzes.add(clazz);
+        }
+
+        for (CtClass clazz : clazzes) {
+            result.put(clazz.getName(), clazz.toBytecode());
+        }
+        if (lowMemory) {
+            // the nest is done - later nests needing one of them read it from android-all again
+            for (CtClass clazz : clazzes) {
+                clazz.detach();
+            }
+        }
+
+        return complete;
+    }
+
+    private static void processDelegate(CtClass clazz, List<ClassMapping> classMappings, boolean specialized)
+            throws Exception {
+        if (clazz.isInterface()) {
+            return;
+        }
+
+        clazz.defrost();
+
+        clazz.setModifiers(clazz.getModifiers() | Modifier.PUBLIC);
+        clazz.setModifiers(clazz.getModifiers() & ~Modifier.FINAL);
+        clazz.setModifiers(clazz.getModifiers() & ~Modifier.PRIVATE);
+        clazz.setModifiers(clazz.getModifiers() & ~Modifier.PROTECTED);
+
+        CtMethod[] methods = clazz.getDeclaredMethods();
+        for (CtMethod m : methods) {
+            // we delegate every method here
+            delegateMethod(m, specialized);
+
+
+            m.setModifiers(m.getModifiers() | Modifier.PUBLIC);
+            m.setModifiers(m.getModifiers() & ~Modifier.FINAL);
+            m.setModifiers(m.getModifiers() & ~Modifier.PRIVATE);
+            m.setModifiers(m.getModifiers() & ~Modifier.PROTECTED);
+            m.setModifiers(m.getModifiers() & ~Modifier.NATIVE);
+        }
+
+        CtConstructor[] ctors = clazz.getDeclaredConstructors();
+        for (CtConstructor c : ctors) {
+            // we also delegate every ctor here
+            String signature = c.getLongName();
+            String thiz = "$0";
+
+            if (specialized) {
+                c.setBody("{ " + specializedCall(c, "<init>", signature, thiz) + "; } ");
+            } else {
+                c.setBody("{ " + BRIDGE_CLASS + ".callVoid(\"" + signature + "\", " + thiz
+                        + ", $args); } ");
+            }
+
+            c.setModifiers(c.getModifiers() | Modifier.PUBLIC);
+            c.setModifiers(c.getModifiers() & ~Modifier.FINAL);
+            c.setModifiers(c.getModifiers() & ~Modifier.PRIVATE);
+            c.setModifiers(c.getModifiers() & ~Modifier.PROTECTED);
+            c.setModifiers(c.getModifiers() & ~Modifier.NATIVE);
+        }
+
+        for (ClassMapping mapping : classMappings) {
+            clazz.replaceClassName(mapping.from, mapping.to);
+        }
+    }
+
+    private static void delegateMethod(CtMethod m, boolean specialized)
+            throws NotFoundException, CannotCompileException {
+        String signature = m.getLongName();
+        String thiz = "$0";
+        if ((m.getModifiers() & Modifier.STATIC) == Modifier.STATIC) {
+            thiz = "null";
+        }
+
+        if (specialized) {
+            String call = specializedCall(m, m.getName(), signature, thiz);
+            switch (Type.getReturnType(m.getSignature()).getSort()) {
+                case Type.VOID:
+                    m.setBody("{ " + call + "; } ");
+                    break;
+                case Type.OBJECT:
+                case Type.ARRAY:
+                    m.setBody("{ return ($r)" + call + "; } ");
+                    break;
+                default:
+                    m.setBody("{ return " + call + "; } ");
+                    break;
+            }
+            return;
+        }
+
+        String retType = m.getReturnType().getName();
+
+        switch (retType) {
+            case "void":
+                m.setBody("{ " + BRIDGE_CLASS + ".callVoid(\"" + signature + "\", " + thiz
+                        + ", $args); } ");
+                break;
+            case "boolean":
+                m.setBody(
+                        "{ return " + BRIDGE_CLASS + ".callBoolean(\"" + signature + "\", "
+                                + thiz
+                                + ", $args); } ");
+                break;
+            case "int":
+                m.setBody(
+                        "{ return " + BRIDGE_CLASS + ".callInt(\"" + signature + "\", " + thiz
+                                + ", $args); } ");
+                break;
+            case "long":
+                m.setBody("{ return " + BRIDGE_CLASS + ".callLong(\"" + signature + "\", "
+                        + thiz
+                        + ", $args); } ");
+                break;
+            case "byte":
+                m.setBody("{ return " + BRIDGE_CLASS + ".callByte(\"" + signature + "\", "
+                        + thiz
+                        + ", $args); } ");
+                break;
+            case "float":
+                m.setBody("{ return " + BRIDGE_CLASS + ".callFloat(\"" + signature + "\", "
+                        + thiz
+                        + ", $args); } ");
+                break;
+            case "double":
+                m.setBody("{ return " + BRIDGE_CLASS + ".callDouble(\"" + signature + "\", "
+                        + thiz
+                        + ", $args); } ");
+                break;
+            default:
+                m.setBody(
+                        "{ return ($r)" + BRIDGE_CLASS + ".callObject(\"" + signature + "\","
+                                + thiz + ", $args); } ");
+                break;
+        }
+    }
+
+    /**
+     * The call of the bridge overload matching the shape of the given method - primitives are passed
+     * as they are, the casts to Object pick the overload taking Object.
+     */
+    private static String specializedCall(CtBehavior behavior, String name, String signature, String thiz) {
+        String shape = ABridgeGenerator.shapeOf(name, behavior.getSignature());
+
+        StringBuilder call = new StringBuilder(BRIDGE_CLASS).append('.')
+                .append(ABridgeGenerator.methodName(shape))
+                .append("(\"").append(signature).append("\", ").append(thiz);
+        Type[] parameterTypes = Type.getArgumentTypes(behavior.getSignature());
+        for (int i = 0; i < parameterTypes.length; i++) {
+            int sort = parameterTypes[i].getSort();
+            call.append(sort == Type.OBJECT || sort == Type.ARRAY ? ", (Object)$" : ", $").append(i + 1);
+        }
+        return call.append(')').toString();
+    }
+
+    private static void process(CtClass clazz,
+                                List<ClassMapping> classMappings,
+                                boolean specialized,
+                                NativeBindings bindings,
+                                CallRewrites callRewrites,
+                                BitSet methodrefs) throws Exception {
+
+        if (clazz.isInterface()) {
+            return;
+        }
+
+        clazz.defrost();
+
+        clazz.setModifiers(clazz.getModifiers() | Modifier.PUBLIC);
+        clazz.setModifiers(clazz.getModifiers() & ~Modifier.FINAL);
+        clazz.setModifiers(clazz.getModifiers() & ~Modifier.PRIVATE);
+        clazz.setModifiers(clazz.getModifiers() & ~Modifier.PROTECTED);
+
+        CtMethod[] methods = clazz.getDeclaredMethods();
+
+        for (CtMethod m : methods) {
+
+            // we change native to normal method but need to
+            // delegate
+            if ((m.getModifiers() & Modifier.NATIVE) == Modifier.NATIVE) {
+                if (!bindNative(m, clazz.getName(), bindings)) {
+                    delegateMethod(m, specialized);
+                }
+            } else if (mayInvoke(m, methodrefs)) {
+                instumentMethod(m, callRewrites);
+            }
+
+            m.setModifiers(m.getModifiers() | Modifier.PUBLIC);
+            m.setModifiers(m.getModifiers() & ~Modifier.FINAL);
+            m.setModifiers(m.getModifiers() & ~Modifier.PRIVATE);
+            m.setModifiers(m.getModifiers() & ~Modifier.PROTECTED);
+            m.setModifiers(m.getModifiers() & ~Modifier.NATIVE);
+
+        }
+
+
+        for (ClassMapping mapping : classMappings) {
+            clazz.replaceClassName(mapping.from, mapping.to);
+        }
+    }
+
+    /**
+     * Lets a static native method call its pure Java implementation, if there is one.
+     */
+    private static boolean bindNative(CtMethod m, String className, NativeBindings bindings)
+            throws CannotCompileException {
+        if ((m.getModifiers() & Modifier.STATIC) == 0) {
+            return false;
+        }
+
+        String[] target = bindings.bind(className, m.getName(), m.getSignature());
+        if (target == null) {
+            return false;
+        }
+
+        String call = target[0].replace('/', '.') + "." + m.getName() + "($$)";
+        if (Type.getReturnType(m.getSignature()).getSort() == Type.VOID) {
+            m.setBody("{ " + call + "; } ");
+        } else {
+            m.setBody("{ return ($r)" + call + "; } ");
+        }
+        return true;
+    }
+
+    /**
+     * Like {@link ConstantPool#rewrittenMethodrefs(CallRewrites)}, but from the constant pool
+     * Javassist has parsed already - so the class isn't read from android-all a second time.
+     */
+    static BitSet rewrittenMethodrefs(ConstPool constPool, CallRewrites callRewrites) {
+        BitSet result = new BitSet();
+        for (int i = 1; i < constPool.getSize(); i++) {
+            int tag = constPool.getTag(i);
+            if (tag != ConstPool.CONST_Methodref && tag != ConstPool.CONST_InterfaceMethodref) {
+                continue;
+            }
+
+            // array classes come as descriptors, just with '.' - both match the internal names
+            String owner = constPool.getClassInfo(constPool.getMemberClass(i)).replace('.', '/');
+            if (!callRewrites.hasOwner(owner)) {
+                continue;
+            }
+            int nameAndType = constPool.getMemberNameAndType(i);
+            if (callRewrites.find(owner, constPool.getUtf8Info(constPool.getNameAndTypeName(nameAndType)),
+                    constPool.getUtf8Info(constPool.getNameAndTypeDescriptor(nameAndType))) != null) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Instrumenting decodes every instruction, most methods don't call any rewritten method. The
+     * constant pool indices stay the same while the class is modified - Javassist only appends.
+     */
+    private static boolean mayInvoke(CtMethod m, BitSet methodrefs) {
+        CodeAttribute code = m.getMethodInfo2().getCodeAttribute();
+        return code != null && ConstantPool.mayInvoke(code.getCode(), methodrefs);
+    }
+
+    private static void instumentMethod(CtMethod m, CallRewrites callRewrites) throws CannotCompileException {
+        m.instrument(new ExprEditor() {
+            public void edit(MethodCall m) throws CannotCompileException {
+                String owner = m.getClassName().replace('.', '/');
+                CallRewrites.Rewrite rewrite = callRewrites.find(owner, m.getMethodName(), m.getSignature());
+                if (rewrite != null) {
+                    m.replace(replacement(m, owner, rewrite));
+                }
+            }
+        });
+    }
+
+    /**
+     * The source replacing a call. Every argument is cast to the parameter type of the target
+     * descriptor, so the compiler picks exactly the overload the ASM engine calls.
+     */
+    private static String replacement(MethodCall m, String owner, CallRewrites.Rewrite rewrite)
+            throws CannotCompileException {
+        boolean staticCall;
+        try {
+            staticCall = Modifier.isStatic(m.getMethod().getModifiers());
+        } catch (NotFoundException e) {
+            throw new CannotCompileException(e);
+        }
+
+        String descriptor = m.getSignature();
+        Type returnType = Type.getReturnType(descriptor);
+        if (rewrite.isNull()) {
+            switch (returnType.getSort()) {
+                case Type.VOID:
+                    return "{}";
+                case Type.BOOLEAN:
+                    return "{$_ = false;}";
+                case Type.CHAR:
+                    return "{$_ = (char)0;}";
+                case Type.BYTE:
+                    return "{$_ = (byte)0;}";
+                case Type.SHORT:
+                    return "{$_ = (short)0;}";
+                case Type.INT:
+                    return "{$_ = 0;}";
+                case Type.LONG:
+                    return "{$_ = 0L;}";
+                case Type.FLOAT:
+                    return "{$_ = 0.0f;}";
+                case Type.DOUBLE:
+                    return "{$_ = 0.0d;}";
+                default:
+                    return "{$_ = null;}";
+            }
+        }
+
+        String targetDescriptor = rewrite.descriptor(owner, m.getMethodName(), descriptor, staticCall);
+        Type[] parameterTypes = Type.getArgumentTypes(targetDescriptor);
+        List<String> values = new ArrayList<>();
+        if (!staticCall && !CallRewrites.Rewrite.dropsReceiver(descriptor, staticCall, targetDescriptor)) {
+            values.add("$0");
+        }
+        int count = Type.getArgumentTypes(descriptor).length;
+        for (int i = 1; i <= count; i++) {
+            values.add("$" + i);
+        }
+        StringBuilder arguments = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            arguments.append(i > 0 ? "," : "")
+                    .append('(').append(parameterTypes[i].getClassName()).append(')').append(values.get(i));
+        }
+
+        String call = rewrite.owner().replace('/', '.') + "." + rewrite.name() + "(" + arguments + ")";
+        if (returnType.getSort() == Type.VOID) {
+            return "{" + call + ";}";
+        }
+        if (returnType.equals(Type.getReturnType(targetDescriptor))) {
+            return "{$_ = " + call + ";}";
+        }
+        return "{$_ = ($r)" + call + ";}";
+    }
+}
@@ -0,0 +1,196 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Binds static native methods of kept classes straight to a pure Java implementation shipped with
+ * the plugin (see de.mobilej.runtime), instead of delegating them to ABridge.
+ *
+ * A native method is bound to the public static method of the same name in the implementation if
+ * the parameters match - a parameter of the implementation may also be Object where the native
+ * takes a type the plugin can't know, e.g. IBinder. The result has to match the same way, except
+ * that the result of the implementation is dropped for natives returning void. This way one
+ * implementation serves several platform versions, natives without a match still go to ABridge.
+ *
+ * The implementation classes (with their nested classes) are copied into the unmocked jar.
+ */
+public class NativeBindings {
+
+    public static final String PARCEL_CLASS = "android.os.Parcel";
+
+    public static final String PARCEL_NATIVES_CLASS = "de.mobilej.runtime.ParcelNatives";
+
+    private static final String OBJECT_DESCRIPTOR = "Ljava/lang/Object;";
+
+    // bound class -> implementation
+    private final Map<String, String> implementations = new LinkedHashMap<>();
+    // implementation -> method name -> descriptors
+    private final Map<String, Map<String, List<String>>> methods = new HashMap<>();
+    private final Map<String, byte[]> runtimeClasses = new LinkedHashMap<>();
+
+    /**
+     * @param implementations the implementation (fully qualified, '.' separated) by bound class
+     */
+    public NativeBindings(Map<String, String> implementations) throws IOException {
+        for (Map.Entry<String, String> binding : implementations.entrySet()) {
+            this.implementations.put(binding.getKey(), binding.getValue());
+            methods.put(binding.getValue(), collectMethods(addRuntimeClass(binding.getValue())));
+        }
+    }
+
+    public boolean isEmpty() {
+        return implementations.isEmpty();
+    }
+
+    /**
+     * Returns the implementation a static native method of the given class is bound to - an array of
+     * the implementation's internal name and the descriptor of its method - or null if it isn't bound.
+     */
+    public String[] bind(String className, String name, String descriptor) {
+        String implementation = implementations.get(className);
+        if (implementation == null) {
+            return null;
+        }
+
+        List<String> candidates = methods.get(implementation).get(name);
+        if (candidates == null) {
+            return null;
+        }
+
+        String owner = implementation.replace('.', '/');
+        // the very same descriptor wins over one taking Object
+        if (candidates.contains(descriptor)) {
+            return new String[]{owner, descriptor};
+        }
+        for (String candidate : candidates) {
+            if (compatible(descriptor, candidate)) {
+                return new String[]{owner, candidate};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The implementation classes by name, to be added to the unmocked jar.
+     */
+    public Map<String, byte[]> runtimeClasses() {
+        return runtimeClasses;
+    }
+
+    /**
+     * Part of the cache keys - the output changes with the bindings and the implementations.
+     */
+    public String fingerprint() {
+        MessageDigest digest = ClassCache.newDigest();
+        for (Map.Entry<String, String> binding : implementations.entrySet()) {
+            digest.update((binding.getKey() + "=" + binding.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
+        for (byte[] bytecode : runtimeClasses.values()) {
+            digest.update(bytecode);
+        }
+        return ClassCache.toHex(digest.digest());
+    }
+
+    private static boolean compatible(String nativeDescriptor, String implementationDescriptor) {
+        Type[] nativeParameters = Type.getArgumentTypes(nativeDescriptor);
+        Type[] implementationParameters = Type.getArgumentTypes(implementationDescriptor);
+        if (nativeParameters.length != implementationParameters.length) {
+            return false;
+        }
+        for (int i = 0; i < nativeParameters.length; i++) {
+            if (!accepts(implementationParameters[i], nativeParameters[i])) {
+                return false;
+            }
+        }
+
+        Type nativeResult = Type.getReturnType(nativeDescriptor);
+        Type implementationResult = Type.getReturnType(implementationDescriptor);
+        return nativeResult.getSort() == Type.VOID || accepts(nativeResult, implementationResult)
+                || isReference(nativeResult) && implementationResult.getDescriptor().equals(OBJECT_DESCRIPTOR);
+    }
+
+    private static boolean accepts(Type to, Type from) {
+        return to.equals(from) || to.getDescriptor().equals(OBJECT_DESCRIPTOR) && isReference(from);
+    }
+
+    private static boolean isReference(Type type) {
+        return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+
+    /**
+     * Copies an implementation class and everything nested in it from the plugin's classpath.
+     */
+    private byte[] addRuntimeClass(String className) throws IOException {
+        String resource = className.replace('.', '/') + ".class";
+        byte[] bytecode;
+        try (InputStream in = NativeBindings.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Missing runtime class " + className);
+            }
+            bytecode = in.readAllBytes();
+        }
+        runtimeClasses.put(className, bytecode);
+
+        final List<String> nested = new ArrayList<>();
+        final String internalName = className.replace('.', '/');
+        new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public void visitInnerClass(String name, String outerName, String innerName, int access) {
+                if (internalName.equals(outerName)) {
+                    nested.add(name.replace('/', '.'));
+                }
+            }
+        }, ClassReader.SKIP_CODE);
+
+        for (String nestedClass : nested) {
+            addRuntimeClass(nestedClass);
+        }
+        return bytecode;
+    }
+
+    private static Map<String, List<String>> collectMethods(byte[] bytecode) {
+        final Map<String, List<String>> result = new HashMap<>();
+        new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                int publicStatic = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC;
+                if ((access & publicStatic) == publicStatic) {
+                    result.computeIfAbsent(name, k -> new ArrayList<>()).add(descriptor);
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+        return result;
+    }
+}
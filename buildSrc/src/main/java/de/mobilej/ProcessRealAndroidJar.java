@@ -16,40 +16,44 @@
 
 package de.mobilej;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
-
-import javassist.CannotCompileException;
-import javassist.ClassPool;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 import javassist.CtClass;
-import javassist.CtConstructor;
-import javassist.CtMethod;
-import javassist.Modifier;
-import javassist.NotFoundException;
-import javassist.expr.ExprEditor;
-import javassist.expr.MethodCall;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.mobilej.agent.AgentClasses;
+import de.mobilej.agent.UnmockAgent;
+
 /**
  * Here the heavy lifting happens.
  *
@@ -58,19 +62,133 @@ import org.slf4j.LoggerFactory;
  * The copied classes will be non-final/non-private and also all methods contained.
  *
  * Additionally all native methods will be changed to delegate to de.mobilej.ABridge.callXXX methods
- * for easier mocking.
+ * for easier mocking. The rewriting itself is done by an {@link UnmockEngine}.
  */
 public class ProcessRealAndroidJar {
 
 
     private static final Logger log = LoggerFactory.getLogger(ProcessRealAndroidJar.class);
 
+    /**
+     * Part of every cache key. Bump it whenever the rewriting changes so results of older versions
+     * are not picked up anymore.
+     */
+    private static final int TRANSFORMER_VERSION = 6;
+
+    /**
+     * Written next to the jars, see {@link UnmockMetrics}.
+     */
+    private static final String METRICS_REPORT_SUFFIX = "-metrics.json";
+
+    private final File allAndroidFile;
+    private final ZipFile androidAll;
+    private final RuleMatcher matcher;
+    private final List<ClassMapping> classesToMap;
+    private final ClassCache cache;
+    private final ClassCache jarCache;
+    private final ClassCache outputCache;
+    private final String cacheFingerprint;
+    private final Engine engine;
+    private final boolean specializedBridge;
+    private final NativeBindings nativeBindings;
+    private final CallRewrites callRewrites;
+    private final HeapBudget heapBudget;
+    private final int inFlightNests;
+    private final Logger logger;
+    private final UnmockMetrics metrics;
+
+    // sorted, so the nests come in the order of their entries in the unmocked jar
+    private final Map<String, ZipArchiveEntry> clazzEntries = new TreeMap<>();
+    private final List<ZipArchiveEntry> resources = new ArrayList<>();
+    private final Map<String, String> nestCacheKeys = new HashMap<>();
+    private final ThreadLocal<UnmockEngine> workerEngines = new ThreadLocal<>();
+    private Set<String> bridgeShapes;
+
+    private final AtomicInteger cachedNests = new AtomicInteger();
+    private final AtomicInteger transformedNests = new AtomicInteger();
+    private final AtomicInteger failedNests = new AtomicInteger();
+    private int cachedJars;
+
+    private ProcessRealAndroidJar(File allAndroidFile,
+                                  ZipFile androidAll,
+                                  RuleMatcher matcher,
+                                  List<ClassMapping> classesToMap,
+                                  Options options,
+                                  UnmockMetrics metrics,
+                                  Logger logger) throws IOException {
+        this.allAndroidFile = allAndroidFile;
+        this.androidAll = androidAll;
+        this.matcher = matcher;
+        this.classesToMap = classesToMap;
+        // the agent rewrites with ASM, the classes written up front have to match
+        this.engine = options.outputMode == OutputMode.AGENT ? Engine.ASM : options.engine;
+        this.specializedBridge = options.specializedBridge;
+        this.logger = logger;
+
+        if (options.heapBudgetMb > 0) {
+            heapBudget = new HeapBudget(options.heapBudgetMb * 1024L * 1024L);
+            // enough to keep the workers busy, the results wait for their turn in the jar
+            inFlightNests = Math.max(1, options.parallelism) * 2;
+        } else {
+            heapBudget = null;
+            inFlightNests = Integer.MAX_VALUE;
+        }
+        this.metrics = metrics;
+
+        Map<String, String> implementations = new LinkedHashMap<>();
+        if (options.parcelNatives) {
+            implementations.put(NativeBindings.PARCEL_CLASS, NativeBindings.PARCEL_NATIVES_CLASS);
+        }
+        nativeBindings = new NativeBindings(implementations);
+        callRewrites = CallRewrites.of(options.callRewrites);
+
+        if (options.cacheDir != null) {
+            cache = new ClassCache(new File(options.cacheDir, "classes"));
+            jarCache = new ClassCache(new File(options.cacheDir, "jars"));
+            outputCache = new ClassCache(new File(options.cacheDir, "outputs"));
+            if (options.cacheRetentionDays > 0) {
+                cache.cleanUp(options.cacheRetentionDays);
+                jarCache.cleanUp(options.cacheRetentionDays);
+                outputCache.cleanUp(options.cacheRetentionDays);
+            }
+        } else {
+            cache = null;
+            jarCache = null;
+            outputCache = null;
+        }
+
+        StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append(TRANSFORMER_VERSION).append('|').append(engine);
+        if (engine == Engine.JAVASSIST) {
+            fingerprint.append('|').append(CtClass.version);
+        }
+        if (specializedBridge) {
+            fingerprint.append("|specialized");
+        }
+        if (!nativeBindings.isEmpty()) {
+            fingerprint.append('|').append(nativeBindings.fingerprint());
+        }
+        if (!callRewrites.custom().isEmpty()) {
+            fingerprint.append("|calls:").append(callRewrites.fingerprint());
+        }
+        for (ClassMapping mapping : classesToMap) {
+            fingerprint.append('|').append(mapping.from).append('=').append(mapping.to);
+        }
+        cacheFingerprint = fingerprint.toString();
+    }
+
+    /**
+     * Creates the unmocked jar(s) from the given android-all jar.
+     *
+     * @param outputs gives the file to write for a jar name. Depending on {@link Options#outputMode} it
+     *                is called once with the name of the android-all jar or once per partition.
+     */
     public static void process(File allAndroidFile,
-                               File tmpDir,
-                               File unmockedOutputJar,
+                               Function<String, File> outputs,
                                String[] keepClasses,
                                String[] renameClasses,
                                String[] delegateClasses,
+                               Options options,
                                Logger logger) throws Exception {
 
         List<ClassMapping> classesToMap = parseClassesToMap(renameClasses, logger);
@@ -79,98 +197,209 @@ public class ProcessRealAndroidJar {
         for (ClassMapping mapping : classesToMap) {
             keepClassesList.add(mapping.from);
         }
+        for (String seed : options.keepWithDependencies) {
+            keepClassesList.add("-" + seed);
+        }
         keepClasses = keepClassesList.toArray(new String[0]);
 
-        delete(tmpDir);
-        tmpDir.mkdirs();
-
-        ArrayList<String> clazzNames = findAllClazzesIn(
-                allAndroidFile.getAbsolutePath());
-
-        ClassPool pool = new ClassPool(null);
-        pool.appendSystemPath();
-
-        pool.insertClassPath(allAndroidFile.getAbsolutePath());
+        RuleMatcher matcher = new RuleMatcher(keepClasses, delegateClasses);
+        UnmockMetrics metrics = new UnmockMetrics(allAndroidFile.getName());
 
-        createHelperClasses(tmpDir, pool);
+        try (ZipFile androidAll = ZipFile.builder().setFile(allAndroidFile).get()) {
+            if (!options.keepWithDependencies.isEmpty() || options.usedClasses != null) {
+                UnmockMetrics.Stopwatch closureTime = metrics.start(UnmockMetrics.Phase.CLOSURE);
+                DependencyClosure closure = new DependencyClosure(androidAll, options.dependencyBoundaries);
+                if (!options.keepWithDependencies.isEmpty()) {
+                    int kept = closure.keepDependencies(options.keepWithDependencies, matcher, logger);
+                    logger.info("Unmock: keeping {} more class nests needed by keepWithDependencies", kept);
+                }
+                if (options.usedClasses != null) {
+                    int kept = closure.keepUsed(options.usedClasses, matcher);
+                    logger.info("Unmock: keeping {} more class nests used by the compiled classes", kept);
+                }
+                closureTime.stop();
+            }
 
-        List<CtClass> clazzes = new ArrayList<>();
+            // a partial hit of the output cache asks for some jars twice
+            Set<File> written = new LinkedHashSet<>();
+            Function<String, File> trackedOutputs = jarName -> {
+                File jar = outputs.apply(jarName);
+                written.add(jar);
+                return jar;
+            };
+
+            new ProcessRealAndroidJar(allAndroidFile, androidAll, matcher, classesToMap, options, metrics, logger)
+                    .run(trackedOutputs, options, keepClasses, delegateClasses);
+
+            if (!written.isEmpty()) {
+                for (File jar : written) {
+                    metrics.add(UnmockMetrics.Counter.JARS, 1);
+                    metrics.add(UnmockMetrics.Counter.BYTES_WRITTEN, jar.length());
+                }
+                metrics.report(metricsReport(allAndroidFile, options.metricsDir));
+            }
+        }
+    }
 
-        for (String clazzName : clazzNames) {
-            CtClass clazz = pool.get(clazzName);
-
-            boolean keep = false;
-            for (String keepClass : keepClasses) {
-                if (keepClass.startsWith("-")) {
-                    String pureKeepClassName = keepClass.substring(1);
-                    if (clazz.getName().equals(pureKeepClassName)) {
-                        keep = true;
-                        break;
-                    } else if (clazz.getName().startsWith(pureKeepClassName + "$")) {
-                        keep = true;
-                        break;
-                    }
+    @SuppressWarnings("try")
+    private void run(Function<String, File> outputs,
+                     Options options,
+                     String[] keepClasses,
+                     String[] delegateClasses) throws Exception {
+        if (outputCache == null) {
+            transformAll(outputs, options);
+            return;
+        }
 
+        // projects with the same configuration (and every build after the first one) get the jars
+        // from the cache, and while one of them transforms the others wait for the result
+        String outputKey = outputCacheKey(options, keepClasses, delegateClasses);
+        try (Closeable ignored = outputCache.lock(outputKey)) {
+            UnmockMetrics.Stopwatch outputCacheTime = metrics.start(UnmockMetrics.Phase.OUTPUT_CACHE);
+            boolean cached = copyCachedOutputs(outputKey, outputs);
+            outputCacheTime.stop();
+            if (cached) {
+                logger.info("Unmock: all jars taken from the cache");
+                return;
+            }
 
-                } else {
-                    if (clazz.getName().startsWith(keepClass)) {
-                        keep = true;
-                        break;
-                    }
-                }
+            Map<String, byte[]> jarKeys = transformAll(outputs, options);
+            if (jarKeys != null) {
+                outputCache.store(outputKey, jarKeys);
             }
+        }
+    }
 
-            boolean delegate = false;
-            for (String delegateClazzName : delegateClasses) {
-                if (clazz.getName().equals(delegateClazzName)) {
-                    delegate = true;
-                    break;
-                } else if (clazz.getName().startsWith(delegateClazzName + "$")) {
-                    delegate = true;
-                    break;
-                }
+    /**
+     * The whole output depends on the content and name of the android-all jar (the output jars are
+     * named after it), the rules and everything in the cache fingerprint.
+     */
+    private String outputCacheKey(Options options,
+                                  String[] keepClasses,
+                                  String[] delegateClasses) throws IOException {
+        MessageDigest digest = ClassCache.newDigest();
+        digest.update(cacheFingerprint.getBytes(StandardCharsets.UTF_8));
+        digest.update(("|" + options.outputMode + "|" + allAndroidFile.getName()).getBytes(StandardCharsets.UTF_8));
+        for (String rule : RuleMatcher.normalize(Arrays.asList(keepClasses))) {
+            digest.update(("|keep:" + rule).getBytes(StandardCharsets.UTF_8));
+        }
+        for (String rule : RuleMatcher.normalize(Arrays.asList(delegateClasses))) {
+            digest.update(("|delegate:" + rule).getBytes(StandardCharsets.UTF_8));
+        }
+        // the seeds are part of the keep rules
+        for (String rule : RuleMatcher.normalize(options.dependencyBoundaries)) {
+            digest.update(("|boundary:" + rule).getBytes(StandardCharsets.UTF_8));
+        }
+        if (options.usedClasses != null) {
+            for (String used : RuleMatcher.normalize(options.usedClasses)) {
+                digest.update(("|used:" + used).getBytes(StandardCharsets.UTF_8));
             }
+        }
 
-            if (!keep && !delegate) {
-                continue;
+        digest.update((byte) 0);
+        digest.update(outputCache.fileHash(allAndroidFile).getBytes(StandardCharsets.UTF_8));
+        return ClassCache.toHex(digest.digest());
+    }
+
+    /**
+     * The output cache only holds the keys of the jars in the jar cache, by jar name. Nothing is
+     * copied unless all of them are still there.
+     */
+    private boolean copyCachedOutputs(String outputKey, Function<String, File> outputs) throws IOException {
+        Map<String, byte[]> jarKeys = outputCache.load(outputKey);
+        if (jarKeys == null) {
+            return false;
+        }
+        for (byte[] jarKey : jarKeys.values()) {
+            if (!jarCache.contains(new String(jarKey, StandardCharsets.UTF_8))) {
+                return false;
             }
+        }
 
-            try {
-                if (keep) {
-                    process(clazz, classesToMap);
-                } else if (delegate) {
-                    processDelegate(clazz, classesToMap);
-                }
-            } catch (Exception e) {
-                logger.error("-> unable to process", e);
+        for (Map.Entry<String, byte[]> jar : jarKeys.entrySet()) {
+            if (!jarCache.copyTo(new String(jar.getValue(), StandardCharsets.UTF_8), outputs.apply(jar.getKey()))) {
+                throw new IOException("Cached jar " + jar.getKey() + " disappeared");
             }
+        }
+        return true;
+    }
 
-            clazzes.add(clazz);
+    /**
+     * Writes all jars. Returns their jar cache keys by jar name, or null if caching is disabled or
+     * some nest failed to transform.
+     */
+    private Map<String, byte[]> transformAll(Function<String, File> outputs, Options options) throws Exception {
+        UnmockMetrics.Stopwatch scanTime = metrics.start(UnmockMetrics.Phase.SCAN);
+        scanEntries();
+
+        // decide on the name alone - only classes we actually emit get parsed by the engine
+        Map<String, List<String>> nests = groupByNest(clazzEntries.keySet());
+        scanTime.stop();
+
+        if (specializedBridge) {
+            UnmockMetrics.Stopwatch shapesTime = metrics.start(UnmockMetrics.Phase.SHAPES);
+            bridgeShapes = collectBridgeShapes(nests.values());
+            shapesTime.stop();
         }
 
-        // Write the files after all CtClass objects have been modified, otherwise Javassist
-        // doesn't allow modifying a nested class when the outer class has been written already
-        // (it freezes the outer class again).
-        for (CtClass clazz : clazzes) {
-            clazz.writeFile(tmpDir.getAbsolutePath());
+        UnmockMetrics.Stopwatch bridgeTime = metrics.start(UnmockMetrics.Phase.BRIDGE);
+        Map<String, byte[]> bridge = specializedBridge
+                ? ABridgeGenerator.generate(bridgeShapes)
+                : ABridgeGenerator.generate();
+        // the implementations of bound natives go along with the bridge
+        bridge.putAll(nativeBindings.runtimeClasses());
+        bridgeTime.stop();
+
+        Collection<Partition> partitions = partition(nests, bridge, options.outputMode);
+
+        ExecutorService executor = null;
+        UnmockEngine serialEngine = null;
+        if (options.parallelism > 1) {
+            executor = Executors.newFixedThreadPool(options.parallelism);
+        } else {
+            serialEngine = createEngine();
         }
 
-        // copy over non-classes matching "keepStartsWith" paths
-        ArrayList<String> toCopy = new ArrayList<>();
-        ArrayList<String> nonClasses = findAllNonClassFilesIn(allAndroidFile.getAbsolutePath());
-        for (String keep : keepClasses) {
-            if (!keep.startsWith("-")) {
-                for (String file : nonClasses) {
-                    if (file.startsWith(keep.replace(".", "/"))) {
-                        toCopy.add(file);
-                    }
+        Map<String, byte[]> jarKeys = jarCache != null ? new TreeMap<>() : null;
+        UnmockMetrics.Stopwatch writeTime = metrics.start(UnmockMetrics.Phase.WRITE);
+        try {
+            for (Partition partition : partitions) {
+                String jarKey = writePartition(partition, outputs.apply(partition.jarName), serialEngine, executor);
+                if (jarKeys != null && jarKey != null) {
+                    jarKeys.put(partition.jarName, jarKey.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    jarKeys = null;
                 }
             }
+        } finally {
+            writeTime.stop();
+            if (executor != null) {
+                executor.shutdownNow();
+            }
         }
-        copyFromJarToDirectory(allAndroidFile.getAbsolutePath(), toCopy, tmpDir.getAbsoluteFile());
 
-        createJarArchive(unmockedOutputJar.getAbsolutePath(), tmpDir.getAbsolutePath());
+        metrics.add(UnmockMetrics.Counter.NESTS_FROM_CACHE, cachedNests.get());
+        metrics.add(UnmockMetrics.Counter.JARS_FROM_CACHE, cachedJars);
+        if (cache != null) {
+            logger.info("Unmock: {} of {} jars taken from the cache, {} class nests taken from the cache, {} transformed",
+                    cachedJars, partitions.size(), cachedNests.get(), transformedNests.get());
+        }
+        return jarKeys;
+    }
 
+    /**
+     * The file the metrics of the given android-all jar are written to, null if there's no directory
+     * for them.
+     */
+    private static File metricsReport(File allAndroidFile, File metricsDir) {
+        if (metricsDir == null) {
+            return null;
+        }
+        String name = allAndroidFile.getName();
+        if (name.endsWith(".jar")) {
+            name = name.substring(0, name.length() - ".jar".length());
+        }
+        return new File(metricsDir, name + METRICS_REPORT_SUFFIX);
     }
 
     private static List<ClassMapping> parseClassesToMap(String[] renameClasses, Logger logger) {
@@ -195,326 +424,520 @@ public class ProcessRealAndroidJar {
         return result;
     }
 
-    public static boolean createJarArchive(String outfile, String srcFolder) throws Exception {
-
-        FileOutputStream dest = new FileOutputStream(new File(outfile));
-
-        JarOutputStream out = new JarOutputStream(new BufferedOutputStream(dest));
-
-        addToJar(out, new File(srcFolder), new File(srcFolder));
-
-        out.flush();
-        out.close();
-
-        return true;
+    /**
+     * Collects the entries of all classes in the jar (by class name) and the non-class entries
+     * matched by the rules.
+     */
+    private void scanEntries() {
+        Enumeration<ZipArchiveEntry> entries = androidAll.getEntries();
+        while (entries.hasMoreElements()) {
+            ZipArchiveEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (name.endsWith(".class")) {
+                clazzEntries.put(name.substring(0, name.length() - ".class".length()).replace('/', '.'), entry);
+            } else if (!entry.isDirectory() && matcher.isKeptResource(name)) {
+                resources.add(entry);
+            }
+        }
     }
 
-    private static void addToJar(JarOutputStream out, File folder, File root) throws Exception {
-        File[] files = folder.listFiles();
+    /**
+     * Groups all kept or delegated classes by their outermost class, sorted by name.
+     */
+    private Map<String, List<String>> groupByNest(Collection<String> clazzNames) {
+        Map<String, List<String>> nests = new LinkedHashMap<>();
+        for (String clazzName : clazzNames) {
+            if (matcher.classify(clazzName) == RuleMatcher.Outcome.NONE) {
+                continue;
+            }
 
-        if (files == null) {
-            return;
+            int indexOfDollar = clazzName.indexOf('$');
+            String outerName = indexOfDollar > 0 ? clazzName.substring(0, indexOfDollar) : clazzName;
+            List<String> nest = nests.get(outerName);
+            if (nest == null) {
+                nest = new ArrayList<>();
+                nests.put(outerName, nest);
+            }
+            nest.add(clazzName);
         }
+        return nests;
+    }
 
-        for (File f : files) {
-            if (f.isDirectory()) {
-                addToJar(out, f, root);
-            } else {
-                addJarEntry(out, f, root);
+    /**
+     * The bridge has to offer an overload for every delegated method before any class gets rewritten,
+     * so the shapes are taken from the method declarations of all classes in advance.
+     */
+    private Set<String> collectBridgeShapes(Collection<List<String>> nests) throws IOException {
+        Set<String> shapes = new TreeSet<>();
+        for (List<String> nest : nests) {
+            for (String clazzName : nest) {
+                boolean delegate = matcher.classify(clazzName) == RuleMatcher.Outcome.DELEGATE;
+                ABridgeGenerator.collectShapes(readClass(clazzName), delegate, shapes);
             }
         }
+        return shapes;
     }
 
-    private static BufferedInputStream addJarEntry(ZipOutputStream out, File f, File root)
-            throws IOException {
-        int BUFFER = 2048;
-        byte data[] = new byte[BUFFER];
-
-        BufferedInputStream origin;
-        FileInputStream fi = new FileInputStream(f);
-        origin = new BufferedInputStream(fi, BUFFER);
-        String name = f.getCanonicalPath().substring(root.getCanonicalPath().length() + 1).replace('\\', '/');
-        JarEntry entry = new JarEntry(name);
-        out.putNextEntry(entry);
-        int count;
-        while ((count = origin.read(data, 0, BUFFER)) != -1) {
-            out.write(data, 0, count);
-            out.flush();
+    /**
+     * Distributes the output over the jars to write, sorted by jar name.
+     *
+     * Kept and delegated classes never share a jar in the partitioned modes and the bridge gets a jar
+     * of its own, so e.g. changing the delegate list leaves the jars with the kept classes untouched.
+     * A nest always ends up in a single jar, decided by its first class.
+     */
+    private Collection<Partition> partition(Map<String, List<String>> nests,
+                                            Map<String, byte[]> bridge,
+                                            OutputMode mode) throws IOException {
+        Map<String, Partition> partitions = new TreeMap<>();
+
+        String baseName = allAndroidFile.getName();
+        if (mode == OutputMode.AGENT) {
+            Partition agent = agentPartition(nests, bridge, baseName);
+            partitions.put(agent.jarName, agent);
+            return partitions.values();
+        }
+        if (mode == OutputMode.SINGLE) {
+            Partition single = new Partition(baseName);
+            single.generated.putAll(bridge);
+            single.nests.addAll(nests.values());
+            single.resources.addAll(resources);
+            partitions.put(single.jarName, single);
+            return partitions.values();
         }
 
-        origin.close();
+        if (baseName.endsWith(".jar")) {
+            baseName = baseName.substring(0, baseName.length() - ".jar".length());
+        }
 
-        return origin;
-    }
+        partitionFor(partitions, baseName, "bridge").generated.putAll(bridge);
 
-    private static void createHelperClasses(File out, ClassPool pool)
-            throws CannotCompileException, IOException {
-        CtClass bridge = pool.makeClass("de.mobilej.ABridge");
-
-        bridge.addMethod(CtMethod.make(
-                "public static Object callObject(String signature, Object thiz, Object[] args){" +
-                        "return (Object)null;" +
-                        "}", bridge));
-
-        bridge.addMethod(CtMethod.make(
-                "public static int callInt(String signature, Object thiz, Object[] args){" +
-                        "return 0;" +
-                        "}", bridge));
-
-        bridge.addMethod(CtMethod.make(
-                "public static long callLong(String signature, Object thiz, Object[] args){" +
-                        "return 0L;" +
-                        "}", bridge));
-
-        bridge.addMethod(CtMethod.make(
-                "public static boolean callBoolean(String signature, Object thiz, Object[] args){" +
-                        "return false;" +
-                        "}", bridge));
-
-        bridge.addMethod(CtMethod.make(
-                "public static byte callByte(String signature, Object thiz, Object[] args){" +
-                        "return 0;" +
-                        "}", bridge));
-
-        bridge.addMethod(CtMethod.make(
-                "public static float callFloat(String signature, Object thiz, Object[] args){" +
-                        "return 0f;" +
-                        "}", bridge));
-
-        bridge.addMethod(CtMethod.make(
-                "public static double callDouble(String signature, Object thiz, Object[] args){" +
-                        "return 0d;" +
-                        "}", bridge));
-
-        bridge.addMethod(CtMethod.make(
-                "public static void callVoid(String signature, Object thiz, Object[] args){" +
-                        "return;" +
-                        "}", bridge));
-
-        bridge.writeFile(out.getAbsolutePath());
+        for (List<String> nest : nests.values()) {
+            String clazzName = nest.get(0);
+            String kind = matcher.classify(clazzName) == RuleMatcher.Outcome.KEEP ? "keep" : "delegate";
+            String group = mode == OutputMode.PACKAGE
+                    ? topLevelPackage(clazzName, '.')
+                    : stripExactMarker(matcher.matchingRule(clazzName));
+            partitionFor(partitions, baseName, kind + "-" + group).nests.add(nest);
+        }
+
+        for (ZipArchiveEntry resource : resources) {
+            String group = mode == OutputMode.PACKAGE
+                    ? topLevelPackage(resource.getName(), '/')
+                    : matcher.matchingResourceRule(resource.getName());
+            partitionFor(partitions, baseName, "keep-" + group).resources.add(resource);
+        }
+
+        return partitions.values();
     }
 
-    private static ArrayList<String> findAllClazzesIn(String file) throws IOException {
-        ArrayList<String> res = new ArrayList<String>();
+    /**
+     * The agent jar holds everything which can't be done while loading a class: the bridge, the
+     * renamed classes (nothing would load them under their original name), the kept resources, the
+     * agent, the (isolated) classes it needs and its configuration.
+     */
+    private Partition agentPartition(Map<String, List<String>> nests,
+                                     Map<String, byte[]> bridge,
+                                     String baseName) throws IOException {
+        if (baseName.endsWith(".jar")) {
+            baseName = baseName.substring(0, baseName.length() - ".jar".length());
+        }
+
+        Partition agent = new Partition(baseName + "-agent.jar");
+        agent.generated.putAll(AgentClasses.agent());
+        agent.files.putAll(AgentClasses.isolated());
+        agent.generated.putAll(bridge);
+        agent.resources.addAll(resources);
+        agent.manifestAttributes.put("Premain-Class", UnmockAgent.class.getName());
 
-        ZipFile f = new ZipFile(file);
-        Enumeration<? extends ZipEntry> entries = f.entries();
-        while (entries.hasMoreElements()) {
-            ZipEntry entry = entries.nextElement();
-            if (entry.getName().endsWith(".class")) {
-                res.add(entry.getName().replace(".class", "").replace("/", "."));
+        Set<String> renamed = new HashSet<>();
+        List<String> mappings = new ArrayList<>();
+        for (ClassMapping mapping : classesToMap) {
+            renamed.add(mapping.from);
+            mappings.add(mapping.from + "=" + mapping.to);
+        }
+        for (List<String> nest : nests.values()) {
+            for (String clazzName : nest) {
+                if (renamed.contains(clazzName)) {
+                    agent.nests.add(nest);
+                    break;
+                }
             }
-
         }
 
-        return res;
+        StringBuilder config = new StringBuilder();
+        config.append(UnmockAgent.KEEP).append('=').append(String.join(",", RuleMatcher.normalize(matcher.keepRules()))).append('\n');
+        config.append(UnmockAgent.DELEGATE).append('=').append(String.join(",", RuleMatcher.normalize(matcher.delegateRules()))).append('\n');
+        config.append(UnmockAgent.RENAME).append('=').append(String.join(",", mappings)).append('\n');
+        config.append(UnmockAgent.SPECIALIZED_BRIDGE).append('=').append(specializedBridge).append('\n');
+        config.append(UnmockAgent.PARCEL_NATIVES).append('=').append(!nativeBindings.isEmpty()).append('\n');
+        config.append(UnmockAgent.CALL_REWRITES).append('=').append(String.join(",", callRewrites.custom())).append('\n');
+        config.append(UnmockAgent.FINGERPRINT).append('=').append(cacheFingerprint).append('\n');
+        agent.files.put(UnmockAgent.CONFIG_RESOURCE, config.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        return agent;
     }
 
-    private static ArrayList<String> findAllNonClassFilesIn(String file) throws IOException {
-        ArrayList<String> res = new ArrayList<String>();
-
-        ZipFile f = new ZipFile(file);
-        Enumeration<? extends ZipEntry> entries = f.entries();
-        while (entries.hasMoreElements()) {
-            ZipEntry entry = entries.nextElement();
-            if (!entry.isDirectory() && !entry.getName().endsWith(".class")) {
-                res.add(entry.getName());
-            }
+    private static Partition partitionFor(Map<String, Partition> partitions, String baseName, String group) {
+        // rules may contain characters not suitable for file names
+        String sanitized = group.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (sanitized.endsWith(".")) {
+            sanitized = sanitized.substring(0, sanitized.length() - 1);
+        }
 
+        String jarName = baseName + "-" + sanitized + ".jar";
+        Partition partition = partitions.get(jarName);
+        if (partition == null) {
+            partition = new Partition(jarName);
+            partitions.put(jarName, partition);
         }
+        return partition;
+    }
 
-        return res;
+    private static String stripExactMarker(String rule) {
+        return rule.startsWith("-") ? rule.substring(1) : rule;
     }
 
-    private static void copyFromJarToDirectory(String file, List<String> files, File destDir) throws IOException {
-        try (FileSystem fileSystem = FileSystems.newFileSystem(Paths.get(file), (ClassLoader) null)) {
-            for (String toCopy : files) {
-                Path source = fileSystem.getPath(toCopy);
-                File dst = new File(destDir, toCopy);
-                dst.getParentFile().mkdirs();
-                Files.copy(source, dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            }
-        }
+    private static String topLevelPackage(String name, char separator) {
+        int index = name.indexOf(separator);
+        return index > 0 ? name.substring(0, index) : "default";
     }
 
-    private static void processDelegate(CtClass clazz, List<ClassMapping> classMappings) throws Exception {
-        if (clazz.isInterface()) {
-            return;
+    /**
+     * Writes the jar of a partition - or copies it from the cache if the very same content was
+     * produced before. Returns the jar cache key of the written jar, null if caching is disabled or
+     * it wasn't stored.
+     */
+    private String writePartition(Partition partition,
+                                File jar,
+                                UnmockEngine serialEngine,
+                                ExecutorService executor) throws Exception {
+        String jarCacheKey = null;
+        if (jarCache != null) {
+            jarCacheKey = partitionCacheKey(partition);
+            if (jarCache.copyTo(jarCacheKey, jar)) {
+                cachedJars++;
+                return jarCacheKey;
+            }
         }
 
-        clazz.defrost();
-
-        clazz.setModifiers(clazz.getModifiers() | Modifier.PUBLIC);
-        clazz.setModifiers(clazz.getModifiers() & ~Modifier.FINAL);
-        clazz.setModifiers(clazz.getModifiers() & ~Modifier.PRIVATE);
-        clazz.setModifiers(clazz.getModifiers() & ~Modifier.PROTECTED);
+        int failedBefore = failedNests.get();
 
-        CtMethod[] methods = clazz.getDeclaredMethods();
-        for (CtMethod m : methods) {
-            // we delegate every method here
-            delegateMethod(m);
+        try (UnmockedJarWriter writer = new UnmockedJarWriter(jar, partition.manifestAttributes)) {
+            for (Map.Entry<String, byte[]> generated : partition.generated.entrySet()) {
+                writer.addGeneratedClass(generated.getKey(), generated.getValue());
+            }
+            for (Map.Entry<String, byte[]> file : partition.files.entrySet()) {
+                writer.addGeneratedFile(file.getKey(), file.getValue());
+            }
 
+            // copy over non-classes matching "keepStartsWith" paths
+            for (ZipArchiveEntry resource : partition.resources) {
+                writer.addResource(androidAll, resource);
+                metrics.add(UnmockMetrics.Counter.RESOURCES, 1);
+                metrics.add(UnmockMetrics.Counter.BYTES_READ, resource.getCompressedSize());
+            }
 
-            m.setModifiers(m.getModifiers() | Modifier.PUBLIC);
-            m.setModifiers(m.getModifiers() & ~Modifier.FINAL);
-            m.setModifiers(m.getModifiers() & ~Modifier.PRIVATE);
-            m.setModifiers(m.getModifiers() & ~Modifier.PROTECTED);
-            m.setModifiers(m.getModifiers() & ~Modifier.NATIVE);
+            if (executor != null) {
+                processInParallel(partition.nests, writer, executor);
+            } else {
+                for (List<String> nest : partition.nests) {
+                    writeNest(writer, nest, processNest(serialEngine, nest));
+                }
+            }
         }
 
-        CtConstructor[] ctors = clazz.getDeclaredConstructors();
-        for (CtConstructor c : ctors) {
-            // we also delegate every ctor here
-            String signature = c.getLongName();
-            String thiz = "$0";
+        if (jarCache != null && failedNests.get() == failedBefore) {
+            jarCache.storeCopy(jarCacheKey, jar);
+            return jarCacheKey;
+        }
+        return null;
+    }
 
-            c.setBody("{ de.mobilej.ABridge.callVoid(\"" + signature + "\", " + thiz
-                    + ", $args); } ");
+    /**
+     * The content of a jar only depends on the cache keys of its nests, the generated classes and
+     * the kept resources - computing it is a lot cheaper than rewriting the classes.
+     */
+    private String partitionCacheKey(Partition partition) throws IOException {
+        MessageDigest digest = ClassCache.newDigest();
+        digest.update(cacheFingerprint.getBytes(StandardCharsets.UTF_8));
+
+        for (Map.Entry<String, byte[]> generated : partition.generated.entrySet()) {
+            digest.update((byte) 0);
+            digest.update(generated.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update(generated.getValue());
+        }
+        for (Map.Entry<String, byte[]> file : partition.files.entrySet()) {
+            digest.update((byte) 3);
+            digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update(file.getValue());
+        }
+        for (Map.Entry<String, String> attribute : partition.manifestAttributes.entrySet()) {
+            digest.update((byte) 4);
+            digest.update((attribute.getKey() + ": " + attribute.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
 
-            c.setModifiers(c.getModifiers() | Modifier.PUBLIC);
-            c.setModifiers(c.getModifiers() & ~Modifier.FINAL);
-            c.setModifiers(c.getModifiers() & ~Modifier.PRIVATE);
-            c.setModifiers(c.getModifiers() & ~Modifier.PROTECTED);
-            c.setModifiers(c.getModifiers() & ~Modifier.NATIVE);
+        for (List<String> nest : partition.nests) {
+            String nestKey = nestCacheKey(nest);
+            nestCacheKeys.put(nest.get(0), nestKey);
+            digest.update((byte) 1);
+            digest.update(nestKey.getBytes(StandardCharsets.UTF_8));
         }
 
-        for (ClassMapping mapping : classMappings) {
-            clazz.replaceClassName(mapping.from, mapping.to);
+        for (ZipArchiveEntry resource : partition.resources) {
+            digest.update((byte) 2);
+            digest.update(resource.getName().getBytes(StandardCharsets.UTF_8));
+            try (InputStream in = androidAll.getRawInputStream(resource)) {
+                update(digest, in);
+            }
         }
+
+        return ClassCache.toHex(digest.digest());
     }
 
-    private static void delegateMethod(CtMethod m) throws NotFoundException, CannotCompileException {
-        String signature = m.getLongName();
-        String thiz = "$0";
-        if ((m.getModifiers() & Modifier.STATIC) == Modifier.STATIC) {
-            thiz = "null";
-        }
-
-        String retType = m.getReturnType().getName();
-
-        switch (retType) {
-            case "void":
-                m.setBody("{ de.mobilej.ABridge.callVoid(\"" + signature + "\", " + thiz
-                        + ", $args); } ");
-                break;
-            case "boolean":
-                m.setBody(
-                        "{ return de.mobilej.ABridge.callBoolean(\"" + signature + "\", "
-                                + thiz
-                                + ", $args); } ");
-                break;
-            case "int":
-                m.setBody(
-                        "{ return de.mobilej.ABridge.callInt(\"" + signature + "\", " + thiz
-                                + ", $args); } ");
-                break;
-            case "long":
-                m.setBody("{ return de.mobilej.ABridge.callLong(\"" + signature + "\", "
-                        + thiz
-                        + ", $args); } ");
-                break;
-            case "byte":
-                m.setBody("{ return de.mobilej.ABridge.callByte(\"" + signature + "\", "
-                        + thiz
-                        + ", $args); } ");
-                break;
-            case "float":
-                m.setBody("{ return de.mobilej.ABridge.callFloat(\"" + signature + "\", "
-                        + thiz
-                        + ", $args); } ");
-                break;
-            case "double":
-                m.setBody("{ return de.mobilej.ABridge.callDouble(\"" + signature + "\", "
-                        + thiz
-                        + ", $args); } ");
-                break;
-            default:
-                m.setBody(
-                        "{ return ($r)de.mobilej.ABridge.callObject(\"" + signature + "\","
-                                + thiz + ", $args); } ");
-                break;
+    /**
+     * Processes one outer class together with its nested classes and returns the bytecode by
+     * (possibly renamed) class name.
+     *
+     * Modifying a nested class also touches the InnerClasses entry of its outer class, so a nest is
+     * always handed to the engine as a whole. Different nests don't influence each other - which is
+     * also why the nest is the unit of caching.
+     */
+    private Map<String, byte[]> processNest(UnmockEngine engine, List<String> nest) throws Exception {
+        UnmockMetrics.Stopwatch rewriteTime = metrics.start(UnmockMetrics.Phase.REWRITE);
+        try {
+            if (heapBudget != null && heapBudget.shouldTrim(engine)) {
+                engine.trim();
+                metrics.add(UnmockMetrics.Counter.ENGINE_TRIMS, 1);
+            }
+            return rewriteNest(engine, nest);
+        } finally {
+            rewriteTime.stop();
+            metrics.add(UnmockMetrics.Counter.NESTS, 1);
+            metrics.add(UnmockMetrics.Counter.CLASSES, nest.size());
         }
     }
 
-    private static void process(CtClass clazz, List<ClassMapping> classMappings) throws Exception {
+    private Map<String, byte[]> rewriteNest(UnmockEngine engine, List<String> nest) throws Exception {
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = nestCacheKeys.get(nest.get(0));
+            if (cacheKey == null) {
+                cacheKey = nestCacheKey(nest);
+            }
+            Map<String, byte[]> cached = cache.load(cacheKey);
+            if (cached != null) {
+                cachedNests.incrementAndGet();
+                return cached;
+            }
+        }
+
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        boolean failed = !engine.transform(nest, this::readClass, result);
 
-        if (clazz.isInterface()) {
-            return;
+        transformedNests.incrementAndGet();
+        // don't cache failures, they should be reported again next time
+        if (failed) {
+            failedNests.incrementAndGet();
+        } else if (cache != null) {
+            cache.store(cacheKey, result);
         }
 
-        clazz.defrost();
+        return result;
+    }
 
-        clazz.setModifiers(clazz.getModifiers() | Modifier.PUBLIC);
-        clazz.setModifiers(clazz.getModifiers() & ~Modifier.FINAL);
-        clazz.setModifiers(clazz.getModifiers() & ~Modifier.PRIVATE);
-        clazz.setModifiers(clazz.getModifiers() & ~Modifier.PROTECTED);
+    private String nestCacheKey(List<String> nest) throws IOException {
+        return ClassCache.nestKey(cacheFingerprint, nest, matcher, this::readClass);
+    }
 
-        CtMethod[] methods = clazz.getDeclaredMethods();
+    private byte[] readClass(String clazzName) throws IOException {
+        try (InputStream in = androidAll.getInputStream(clazzEntries.get(clazzName))) {
+            byte[] bytecode = in.readAllBytes();
+            metrics.add(UnmockMetrics.Counter.BYTES_READ, bytecode.length);
+            return bytecode;
+        }
+    }
 
-        for (CtMethod m : methods) {
+    private static void update(MessageDigest digest, InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, count);
+        }
+    }
 
-            // we change native to normal method but need to
-            // delegate
-            if ((m.getModifiers() & Modifier.NATIVE) == Modifier.NATIVE) {
-                delegateMethod(m);
+    private static void writeNest(UnmockedJarWriter writer, List<String> nest, Map<String, byte[]> classes)
+            throws IOException {
+        // by entry name - Outer$Inner.class comes before Outer.class
+        Map<String, String> sorted = new TreeMap<>();
+        for (String clazzName : classes.keySet()) {
+            sorted.put(UnmockedJarWriter.entryName(clazzName), clazzName);
+        }
+        for (String clazzName : sorted.values()) {
+            if (nest.contains(clazzName)) {
+                writer.addClass(clazzName, classes.get(clazzName));
             } else {
-                instumentMethod(m);
+                // renamed, its turn comes somewhere else
+                writer.addGeneratedClass(clazzName, classes.get(clazzName));
             }
-
-            m.setModifiers(m.getModifiers() | Modifier.PUBLIC);
-            m.setModifiers(m.getModifiers() & ~Modifier.FINAL);
-            m.setModifiers(m.getModifiers() & ~Modifier.PRIVATE);
-            m.setModifiers(m.getModifiers() & ~Modifier.PROTECTED);
-            m.setModifiers(m.getModifiers() & ~Modifier.NATIVE);
-
         }
+    }
 
+    /**
+     * Spreads the nests over the workers. Engines aren't thread-safe so every worker uses one of
+     * its own - since a nest is always handled by a single worker the output is the same as when
+     * processing serially. The results are written on the calling thread in the original order.
+     *
+     * In the low-memory mode only a few nests are handed out ahead of the one to write next, so
+     * finished results can't pile up behind a slow nest.
+     */
+    private void processInParallel(List<List<String>> nests,
+                                   UnmockedJarWriter writer,
+                                   ExecutorService executor) throws Exception {
+        Deque<Future<Map<String, byte[]>>> results = new ArrayDeque<>();
+        Deque<List<String>> resultNests = new ArrayDeque<>();
+        Iterator<List<String>> remaining = nests.iterator();
+        while (remaining.hasNext() || !results.isEmpty()) {
+            while (remaining.hasNext() && results.size() < inFlightNests) {
+                final List<String> nest = remaining.next();
+                resultNests.add(nest);
+                results.add(executor.submit(() -> {
+                    UnmockEngine workerEngine = workerEngines.get();
+                    if (workerEngine == null) {
+                        workerEngine = createEngine();
+                        workerEngines.set(workerEngine);
+                    }
+                    return processNest(workerEngine, nest);
+                }));
+            }
 
-        for (ClassMapping mapping : classMappings) {
-            clazz.replaceClassName(mapping.from, mapping.to);
+            try {
+                writeNest(writer, resultNests.poll(), results.poll().get());
+            } catch (ExecutionException e) {
+                for (Future<Map<String, byte[]>> pending : results) {
+                    pending.cancel(true);
+                }
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
         }
     }
 
-    private static void instumentMethod(CtMethod m) throws CannotCompileException {
-        m.instrument(new ExprEditor() {
-            public void edit(MethodCall m) throws CannotCompileException {
-                // special handling for System.arrraycopy and VMRuntime
-                if (m.getClassName().equals("java.lang.System") && m.getMethodName().equals("arraycopy")) {
-                    m.replace("{java.lang.System.arraycopy($1,$2,$3,$4,$5);}");
-                } else if (m.getClassName().equals("dalvik.system.VMRuntime") && m.getMethodName().equals("newUnpaddedArray")) {
-                    m.replace("{$_ = java.lang.reflect.Array.newInstance($1,$2);}");
-                } else if (m.getClassName().equals("dalvik.system.VMRuntime") && m.getMethodName().equals("getRuntime")) {
-                    m.replace("{$_ = null;}");
-                }
-            }
-        });
+    private UnmockEngine createEngine() throws Exception {
+        if (engine == Engine.ASM) {
+            return new AsmEngine(matcher, classesToMap, specializedBridge, nativeBindings, callRewrites, logger);
+        }
+        return new JavassistEngine(allAndroidFile, matcher, classesToMap, bridgeShapes, nativeBindings,
+                callRewrites, heapBudget != null, logger);
     }
 
-    public static boolean delete(File file) {
-        File[] flist = null;
+    public enum Engine {
+        /**
+         * Compiles the delegating method bodies from source, classes are read through a ClassPool.
+         */
+        JAVASSIST,
+        /**
+         * Streams every class through ASM visitors once, considerably faster and lighter on memory.
+         */
+        ASM
+    }
 
-        if (file == null) {
-            return false;
-        }
+    public enum OutputMode {
+        /**
+         * Everything goes into one jar named like the android-all jar.
+         */
+        SINGLE,
+        /**
+         * One jar per top-level package, kept and delegated classes separated.
+         */
+        PACKAGE,
+        /**
+         * One jar per matching keep or delegate rule.
+         */
+        RULE,
+        /**
+         * Only a jar with the bridge and a Java agent, which rewrites the classes while the test JVM
+         * loads them - see {@link UnmockAgent}.
+         */
+        AGENT
+    }
 
-        if (file.isFile()) {
-            return file.delete();
-        }
+    public static class Options {
+        /**
+         * Number of worker threads used to rewrite classes, 1 processes everything on the calling thread.
+         */
+        public int parallelism = 1;
+
+        /**
+         * Directory of the persistent cache for rewritten classes, null disables caching.
+         */
+        public File cacheDir;
+
+        /**
+         * Cache entries not used for this many days are deleted, 0 keeps them forever.
+         */
+        public int cacheRetentionDays = 30;
+
+        public OutputMode outputMode = OutputMode.SINGLE;
+
+        public Engine engine = Engine.JAVASSIST;
+
+        /**
+         * Delegated methods call ABridge overloads specialized to their parameters instead of passing
+         * an Object[] with boxed arguments.
+         */
+        public boolean specializedBridge;
+
+        /**
+         * Binds the natives of android.os.Parcel to the pure Java implementation shipped with the
+         * plugin instead of delegating them to ABridge.
+         */
+        public boolean parcelNatives;
+
+        /**
+         * Classes to keep together with everything they need, see {@link DependencyClosure}.
+         */
+        public List<String> keepWithDependencies = new ArrayList<>();
+
+        /**
+         * Prefixes (or exact names, starting with "-") of classes keepWithDependencies doesn't follow.
+         */
+        public List<String> dependencyBoundaries = new ArrayList<>();
+
+        /**
+         * The classes the compiled classes of the project refer to - the ones in android-all are
+         * kept with everything they need. Null if the "keepUsed" mode is off.
+         */
+        public List<String> usedClasses;
+
+        /**
+         * Heap budget in MB of the low-memory mode, 0 turns it off. Nests are rewritten with as little
+         * kept around as possible, see {@link HeapBudget}.
+         */
+        public int heapBudgetMb;
+
+        /**
+         * Call sites to rewrite in addition to the built-in ones, see {@link CallRewrites}.
+         */
+        public List<String> callRewrites = new ArrayList<>();
+
+        /**
+         * Directory the metrics of the run are written to, see {@link UnmockMetrics}. Null only keeps
+         * them for the build scan.
+         */
+        public File metricsDir;
+    }
 
-        if (!file.isDirectory()) {
-            return false;
-        }
+    private static class Partition {
+        final String jarName;
+        final Map<String, byte[]> generated = new LinkedHashMap<>();
+        final List<List<String>> nests = new ArrayList<>();
+        final List<ZipArchiveEntry> resources = new ArrayList<>();
+        final Map<String, byte[]> files = new TreeMap<>();
+        final Map<String, String> manifestAttributes = new TreeMap<>();
 
-        flist = file.listFiles();
-        if (flist != null && flist.length > 0) {
-            for (File f : flist) {
-                if (!delete(f)) {
-                    return false;
-                }
-            }
+        Partition(String jarName) {
+            this.jarName = jarName;
         }
-
-        return file.delete();
     }
 
     public static class ClassMapping {
@@ -0,0 +1,265 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Compiled form of the keep and delegate rules.
+ *
+ * All rules are merged into a character trie once, so a class name or resource path is classified
+ * by a single walk over its characters - no matter how many rules are configured.
+ *
+ * Rules use the same notation as the unMock extension: a keep rule starting with "-" keeps
+ * exactly that class (and its nested classes), every other keep rule is a prefix. Delegate rules
+ * always match exactly (and nested classes). Keeping wins over delegating.
+ */
+public class RuleMatcher {
+
+    public enum Outcome {
+        NONE, KEEP, DELEGATE
+    }
+
+    // identity-compared, can't clash with a configured rule
+    private static final String DELEGATE_MARKER = new String("delegate");
+
+    private final Node classRoot = new Node();
+    private final Node resourceRoot = new Node();
+
+    // as configured, plus the classes kept by keepDependency
+    private final List<String> keepRules = new ArrayList<>();
+    private final List<String> delegateRules = new ArrayList<>();
+
+    public RuleMatcher(String[] keepClasses, String[] delegateClasses) {
+        keepRules.addAll(Arrays.asList(keepClasses));
+        delegateRules.addAll(Arrays.asList(delegateClasses));
+
+        for (String keepClass : keepClasses) {
+            if (keepClass.startsWith("-")) {
+                classRoot.insert(keepClass.substring(1)).keepExact = keepClass;
+            } else {
+                classRoot.insert(keepClass).keepPrefix = keepClass;
+                resourceRoot.insert(keepClass.replace(".", "/")).keepPrefix = keepClass;
+            }
+        }
+
+        for (String delegateClass : delegateClasses) {
+            classRoot.insert(delegateClass).delegate = delegateClass;
+        }
+    }
+
+    /**
+     * Keeps the given class (and its nested classes) exactly, like a rule "-className" would -
+     * {@link #matchingRule(String)} reports the given rule for it. Used for the classes found by
+     * {@link DependencyClosure}.
+     */
+    public void keepDependency(String className, String rule) {
+        classRoot.insert(className).keepExact = rule;
+        keepRules.add("-" + className);
+    }
+
+    /**
+     * Keep rules giving the same outcome for every class (not necessarily the same matching rule).
+     */
+    public List<String> keepRules() {
+        return keepRules;
+    }
+
+    public List<String> delegateRules() {
+        return delegateRules;
+    }
+
+    /**
+     * Returns the rules sorted and without duplicates. The outcome doesn't depend on the order of
+     * the rules, so configurations only differing in it give the same transform parameters (and
+     * share their cache entries).
+     */
+    public static List<String> normalize(Collection<String> rules) {
+        return new ArrayList<>(new TreeSet<>(rules));
+    }
+
+    /**
+     * Decides what happens to the given class (fully qualified, '.' separated).
+     */
+    public Outcome classify(String className) {
+        String rule = matchingRuleOrMarker(className);
+        if (rule == null) {
+            return Outcome.NONE;
+        }
+        return rule == DELEGATE_MARKER ? Outcome.DELEGATE : Outcome.KEEP;
+    }
+
+    /**
+     * Returns the rule deciding about the given class as it was configured (e.g. "org." or
+     * "-android.os.Bundle" for keep rules, the class name for delegate rules) or null if the class
+     * isn't matched at all. If several prefix rules match, the shortest one wins.
+     */
+    public String matchingRule(String className) {
+        String rule = matchingRuleOrMarker(className);
+        if (rule == DELEGATE_MARKER) {
+            return delegateRule(className);
+        }
+        return rule;
+    }
+
+    private String matchingRuleOrMarker(String className) {
+        Node node = classRoot;
+        boolean delegate = false;
+        int length = className.length();
+
+        for (int i = 0; ; i++) {
+            if (node.keepPrefix != null) {
+                return node.keepPrefix;
+            }
+
+            // exact rules match the class itself and everything nested in it
+            if (i == length || className.charAt(i) == '$') {
+                if (node.keepExact != null) {
+                    return node.keepExact;
+                }
+                delegate |= node.delegate != null;
+            }
+
+            if (i == length) {
+                break;
+            }
+
+            node = node.child(className.charAt(i));
+            if (node == null) {
+                break;
+            }
+        }
+
+        return delegate ? DELEGATE_MARKER : null;
+    }
+
+    private String delegateRule(String className) {
+        Node node = classRoot;
+        String rule = null;
+        for (int i = 0; node != null; i++) {
+            if ((i == className.length() || className.charAt(i) == '$') && node.delegate != null) {
+                rule = node.delegate;
+                break;
+            }
+            if (i == className.length()) {
+                break;
+            }
+            node = node.child(className.charAt(i));
+        }
+        return rule;
+    }
+
+    /**
+     * Returns true if the given non-class entry ('/' separated path) is matched by a
+     * "keepStartingWith" rule.
+     */
+    public boolean isKeptResource(String path) {
+        return matchingResourceRule(path) != null;
+    }
+
+    /**
+     * Returns the "keepStartingWith" rule matching the given non-class entry or null.
+     */
+    public String matchingResourceRule(String path) {
+        Node node = resourceRoot;
+        int length = path.length();
+
+        for (int i = 0; ; i++) {
+            if (node.keepPrefix != null) {
+                return node.keepPrefix;
+            }
+
+            if (i == length) {
+                return null;
+            }
+
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                return null;
+            }
+        }
+    }
+
+    private static class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        // rule sets are small and fan-out is low, so sorted arrays are cheaper than hashing
+        private char[] keys = new char[0];
+        private Node[] children = NO_CHILDREN;
+
+        // the rules ending at this node, as configured
+        String keepPrefix;
+        String keepExact;
+        String delegate;
+
+        Node child(char c) {
+            int index = indexOf(c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node insert(String key) {
+            Node node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.getOrCreate(key.charAt(i));
+            }
+            return node;
+        }
+
+        private Node getOrCreate(char c) {
+            int index = indexOf(c);
+            if (index >= 0) {
+                return children[index];
+            }
+
+            int insertAt = -(index + 1);
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+
+            Node created = new Node();
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = created;
+            keys = newKeys;
+            children = newChildren;
+            return created;
+        }
+
+        private int indexOf(char c) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char midKey = keys[mid];
+                if (midKey < c) {
+                    low = mid + 1;
+                } else if (midKey > c) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+}
@@ -32,6 +32,9 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
 
 import static java.util.Objects.requireNonNull;
 
@@ -57,14 +60,35 @@ public abstract class UnMockTransform implements TransformAction<UnmockParameter
 
         UnmockParameters parameters = getParameters();
 
+        ProcessRealAndroidJar.Options options = new ProcessRealAndroidJar.Options();
+        options.parallelism = parameters.getParallelism().getOrElse(1);
+        options.heapBudgetMb = parameters.getHeapBudgetMb().getOrElse(0);
+        options.cacheDir = parameters.getCacheDir().getAsFile().getOrNull();
+        options.cacheRetentionDays = parameters.getCacheRetentionDays().getOrElse(30);
+        options.metricsDir = parameters.getMetricsDir().getAsFile().getOrNull();
+        options.outputMode = ProcessRealAndroidJar.OutputMode.valueOf(
+                parameters.getOutputMode().getOrElse("single").toUpperCase(Locale.ROOT));
+        options.engine = ProcessRealAndroidJar.Engine.valueOf(
+                parameters.getEngine().getOrElse("javassist").toUpperCase(Locale.ROOT));
+        options.specializedBridge = parameters.getSpecializedBridge().getOrElse(false);
+        options.parcelNatives = parameters.getParcelNatives().getOrElse(false);
+        options.callRewrites = parameters.getCallRewrites().get();
+        options.keepWithDependencies = parameters.getKeepWithDependencies().get();
+        options.dependencyBoundaries = parameters.getDependencyBoundaries().get();
+
         try {
+            if (parameters.getKeepUsed().getOrElse(false)) {
+                options.usedClasses = Files.readAllLines(
+                        parameters.getUsedClasses().get().getAsFile().toPath(), StandardCharsets.UTF_8);
+            }
+
             ProcessRealAndroidJar.process(
                     allAndroidFile,
-                    parameters.getTmpDir(),
-                    outputs.file(allAndroidFile.getName()),
-                    parameters.getKeepClasses().toArray(new String[0]),
-                    parameters.getRenameClasses().toArray(new String[0]),
-                    parameters.getDelegateClasses().toArray(new String[0]),
+                    outputs::file,
+                    parameters.getKeepClasses().get().toArray(new String[0]),
+                    parameters.getRenameClasses().get().toArray(new String[0]),
+                    parameters.getDelegateClasses().get().toArray(new String[0]),
+                    options,
                     LoggerFactory.getLogger("UnmockTransform")
             );
         } catch (Exception e) {
@@ -0,0 +1,77 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Internal;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Adds the unmock agent to the JVM of a test task (outputMode "agent"): the agent jar written by
+ * the transform, with the unprocessed android-all jar and the cache directory as argument.
+ */
+public class UnmockAgentArgumentProvider implements CommandLineArgumentProvider {
+
+    private final FileCollection unmockedFiles;
+    private final FileCollection androidAll;
+    private final File cacheDir;
+
+    public UnmockAgentArgumentProvider(FileCollection unmockedFiles, FileCollection androidAll, File cacheDir) {
+        this.unmockedFiles = unmockedFiles;
+        this.androidAll = androidAll;
+        this.cacheDir = cacheDir;
+    }
+
+    @Classpath
+    public FileCollection getUnmockedFiles() {
+        return unmockedFiles;
+    }
+
+    @Classpath
+    public FileCollection getAndroidAll() {
+        return androidAll;
+    }
+
+    // content-addressed, doesn't change what the tests see
+    @Internal
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+        File agentJar = null;
+        for (File file : unmockedFiles) {
+            if (file.getName().endsWith("-agent.jar")) {
+                agentJar = file;
+            }
+        }
+        if (agentJar == null) {
+            return Collections.emptyList();
+        }
+
+        String argument = androidAll.getSingleFile().getAbsolutePath();
+        if (cacheDir != null) {
+            argument += File.pathSeparator + cacheDir.getAbsolutePath();
+        }
+        return Collections.singletonList("-javaagent:" + agentJar.getAbsolutePath() + "=" + argument);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.process.ExecOperations;
+import org.gradle.process.ExecResult;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Dumps a Class Data Sharing archive of the unmocked classes ("classDataSharing"), so the forked
+ * test JVMs map them from the archive instead of loading and verifying them one by one.
+ *
+ * The class list is static: the JDK's default list plus every class of the unmocked jars - classes
+ * which can't be linked with just these jars (e.g. because their super class comes from the stubs
+ * of android.jar) are skipped by the JVM. The archive is only used if the test JVM's classpath
+ * starts with the one it was dumped with, which is Gradle's worker jar followed by the unmocked
+ * jars - as Gradle forks its test workers. Where that jar lives and that it comes first isn't a
+ * public contract of Gradle, so a missing worker jar is reported as a warning rather than leaving
+ * the tests without the archive unnoticed; a test JVM with another classpath warns about the
+ * mismatch itself. The archive is also bound to the JDK build and the size and time of the jars,
+ * which is why these are inputs and the task isn't cacheable.
+ */
+public abstract class UnmockCdsArchiveTask extends DefaultTask {
+
+    @Classpath
+    public abstract ConfigurableFileCollection getWorkerJar();
+
+    @Classpath
+    public abstract ConfigurableFileCollection getUnmockedJars();
+
+    @Nested
+    public abstract Property<JavaLauncher> getJavaLauncher();
+
+    @OutputFile
+    public abstract RegularFileProperty getArchive();
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    /**
+     * The JVM compares the jars by path, size and modification time.
+     */
+    @Input
+    public List<String> getClasspathStamps() {
+        List<String> stamps = new ArrayList<>();
+        for (File jar : classpath()) {
+            stamps.add(jar.getAbsolutePath() + ":" + jar.length() + ":" + jar.lastModified());
+        }
+        return stamps;
+    }
+
+    @TaskAction
+    public void dump() {
+        File archive = getArchive().get().getAsFile();
+        archive.delete();
+
+        List<File> classpath = classpath();
+        if (getWorkerJar().isEmpty() || !getWorkerJar().getSingleFile().isFile()) {
+            // Gradle writes it when forking the first test worker, or keeps it elsewhere by now
+            getLogger().warn("Unmock: Gradle's worker jar isn't at {}, the tests run without a class data sharing archive",
+                    getWorkerJar().getAsPath());
+            return;
+        }
+
+        JavaLauncher launcher = getJavaLauncher().get();
+        File classList = new File(getTemporaryDir(), "classlist");
+        try {
+            writeClassList(launcher, classList);
+        } catch (IOException e) {
+            throw new GradleException("Can't write " + classList, e);
+        }
+
+        StringBuilder path = new StringBuilder();
+        for (File jar : classpath) {
+            if (path.length() > 0) {
+                path.append(File.pathSeparatorChar);
+            }
+            path.append(jar.getAbsolutePath());
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ExecResult result = getExecOperations().exec(spec -> {
+            spec.setExecutable(launcher.getExecutablePath().getAsFile());
+            spec.args(Arrays.asList("-Xshare:dump",
+                    "-XX:SharedClassListFile=" + classList.getAbsolutePath(),
+                    "-XX:SharedArchiveFile=" + archive.getAbsolutePath(),
+                    "-cp", path.toString()));
+            spec.setStandardOutput(output);
+            spec.setErrorOutput(output);
+            spec.setIgnoreExitValue(true);
+        });
+
+        // the tests run fine without it, just not faster
+        if (result.getExitValue() != 0) {
+            archive.delete();
+            getLogger().warn("Unmock: dumping the class data sharing archive failed:\n{}",
+                    output.toString(StandardCharsets.UTF_8));
+        } else {
+            getLogger().debug(output.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    private List<File> classpath() {
+        List<File> classpath = new ArrayList<>(getWorkerJar().getFiles());
+        for (File jar : getUnmockedJars()) {
+            if (jar.isFile()) {
+                classpath.add(jar);
+            }
+        }
+        return classpath;
+    }
+
+    private void writeClassList(JavaLauncher launcher, File classList) throws IOException {
+        StringBuilder content = new StringBuilder();
+
+        File jdkClassList = launcher.getMetadata().getInstallationPath().file("lib/classlist").getAsFile();
+        if (jdkClassList.isFile()) {
+            content.append(new String(Files.readAllBytes(jdkClassList.toPath()), StandardCharsets.UTF_8));
+            if (content.length() > 0 && content.charAt(content.length() - 1) != '\n') {
+                content.append('\n');
+            }
+        }
+
+        Set<String> classes = new TreeSet<>();
+        for (File jar : getUnmockedJars()) {
+            if (!jar.isFile()) {
+                continue;
+            }
+            try (ZipFile zip = ZipFile.builder().setFile(jar).get()) {
+                Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+                while (entries.hasMoreElements()) {
+                    String name = entries.nextElement().getName();
+                    if (name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")) {
+                        classes.add(name.substring(0, name.length() - ".class".length()));
+                    }
+                }
+            }
+        }
+        for (String clazz : classes) {
+            content.append(clazz).append('\n');
+        }
+
+        Files.write(classList.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Internal;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Lets a test task's JVMs use the archive of {@link UnmockCdsArchiveTask}, if there is one.
+ */
+public class UnmockCdsArgumentProvider implements CommandLineArgumentProvider {
+
+    private final Provider<RegularFile> archive;
+
+    public UnmockCdsArgumentProvider(Provider<RegularFile> archive) {
+        this.archive = archive;
+    }
+
+    // made from the classpath, doesn't change what the tests see
+    @Internal
+    public Provider<RegularFile> getArchive() {
+        return archive;
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+        File file = archive.get().getAsFile();
+        if (!file.isFile()) {
+            return Collections.emptyList();
+        }
+        // a JVM which can't use the archive (another JDK, changed jars) simply runs without it
+        return Arrays.asList("-XX:SharedArchiveFile=" + file.getAbsolutePath(), "-Xshare:auto");
+    }
+}
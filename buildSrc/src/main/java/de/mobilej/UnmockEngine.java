@@ -0,0 +1,52 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Does the actual rewriting of the kept and delegated classes.
+ *
+ * Work is handed out per nest - an outer class together with its nested classes - since rewriting a
+ * nested class also changes the InnerClasses attribute of its outer class. Instances don't need to
+ * be thread-safe, every worker gets an engine of its own.
+ */
+public interface UnmockEngine {
+
+    /**
+     * Rewrites the classes of a nest.
+     *
+     * @param nest    the names of the classes (fully qualified, '.' separated) sorted by name
+     * @param classes gives the original bytecode of a class
+     * @param result  receives the bytecode of every class of the nest by its (possibly renamed) name
+     * @return false if a class couldn't be processed completely - it's part of the result nevertheless
+     */
+    boolean transform(List<String> nest, ClassSource classes, Map<String, byte[]> result) throws Exception;
+
+    /**
+     * Drops whatever the engine keeps around from earlier nests, the output stays the same. Called
+     * between two nests in the low-memory mode, see {@link HeapBudget}.
+     */
+    default void trim() throws Exception {
+    }
+
+    interface ClassSource {
+        byte[] bytecode(String className) throws IOException;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges the unmocked jars and the mockable android.jar into a single jar for the unit test
+ * classpath ("mergeAndroidJar"). The unmocked classes replace their stubs, everything else of the
+ * android.jar stays as it is.
+ *
+ * An entry is taken from the first jar having it - the unmocked jars before the android.jar - just
+ * like the class loader resolved it when both were on the classpath. Entries are copied without
+ * recompressing them.
+ */
+@CacheableTask
+public abstract class UnmockMergeAndroidJarTask extends DefaultTask {
+
+    @Classpath
+    public abstract ConfigurableFileCollection getUnmockedJars();
+
+    @Classpath
+    public abstract ConfigurableFileCollection getAndroidJar();
+
+    @OutputFile
+    public abstract RegularFileProperty getMergedJar();
+
+    @TaskAction
+    public void merge() {
+        List<File> jars = new ArrayList<>(getUnmockedJars().getFiles());
+        jars.addAll(getAndroidJar().getFiles());
+
+        File output = getMergedJar().get().getAsFile();
+        List<ZipFile> sources = new ArrayList<>();
+        try {
+            // the writer copies the entries when it's closed, so the sources stay open until then
+            try (UnmockedJarWriter writer = new UnmockedJarWriter(output)) {
+                Set<String> seen = new HashSet<>();
+                for (File jar : jars) {
+                    if (!jar.isFile()) {
+                        continue;
+                    }
+
+                    ZipFile source = ZipFile.builder().setFile(jar).get();
+                    sources.add(source);
+                    Enumeration<ZipArchiveEntry> entries = source.getEntries();
+                    while (entries.hasMoreElements()) {
+                        ZipArchiveEntry entry = entries.nextElement();
+                        if (!entry.isDirectory() && seen.add(entry.getName())) {
+                            writer.addResource(source, entry);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new GradleException("Can't write " + output, e);
+        } finally {
+            for (ZipFile source : sources) {
+                try {
+                    source.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time and volume of one run of {@link ProcessRealAndroidJar}.
+ *
+ * Every phase records wall and CPU time. The rewriting happens per nest, possibly on several
+ * threads - its times are the sum over all nests, so with parallelism > 1 they can exceed the wall
+ * time of the whole run. Writing includes waiting for the workers - and, without parallelism, the
+ * rewriting itself.
+ *
+ * The report is written as JSON to a directory of the project's build (never to the outputs of the
+ * transform, which only hold the jars) and kept for the build scan, see {@link #drainReports()}.
+ */
+public class UnmockMetrics {
+
+    public enum Phase {
+        /** reading the entries of the android-all jar */
+        SCAN,
+        /** keepWithDependencies and keepUsed */
+        CLOSURE,
+        /** finding the parameter shapes for the specialized bridge */
+        SHAPES,
+        /** generating ABridge */
+        BRIDGE,
+        /** rewriting the classes of a nest, engine and cache lookups included */
+        REWRITE,
+        /** adding the classes and resources to the jars and storing them in the cache */
+        WRITE,
+        /** copying the whole output from the cache */
+        OUTPUT_CACHE
+    }
+
+    public enum Counter {
+        CLASSES,
+        NESTS,
+        NESTS_FROM_CACHE,
+        RESOURCES,
+        JARS,
+        JARS_FROM_CACHE,
+        BYTES_READ,
+        BYTES_WRITTEN,
+        ENGINE_TRIMS
+    }
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // reports of this JVM not yet handed to the build scan
+    private static final Queue<Map<String, Object>> reports = new ConcurrentLinkedQueue<>();
+
+    private final String androidAll;
+    private final long start = System.nanoTime();
+    private final AtomicLongArray wallNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray cpuNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    public UnmockMetrics(String androidAll) {
+        this.androidAll = androidAll;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Starts measuring the given phase on the calling thread, it ends with {@link Stopwatch#stop()}.
+     */
+    public Stopwatch start(Phase phase) {
+        return new Stopwatch(phase);
+    }
+
+    public void add(Counter counter, long delta) {
+        counters.addAndGet(counter.ordinal(), delta);
+    }
+
+    public long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public class Stopwatch {
+        private final Phase phase;
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = cpuTime();
+
+        private Stopwatch(Phase phase) {
+            this.phase = phase;
+        }
+
+        public void stop() {
+            wallNanos.addAndGet(phase.ordinal(), System.nanoTime() - wallStart);
+            cpuNanos.addAndGet(phase.ordinal(), cpuTime() - cpuStart);
+        }
+    }
+
+    /**
+     * Writes the report, unless the file is null, and keeps it for {@link #drainReports()}.
+     */
+    public void report(File file) throws IOException {
+        Map<String, Object> report = toMap();
+        if (file != null) {
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), toJson(report).getBytes(StandardCharsets.UTF_8));
+        }
+        reports.add(report);
+    }
+
+    /**
+     * Returns (and forgets) the reports of all runs in this JVM since the last call - for publishing
+     * them as custom values of the build scan at the end of the build.
+     */
+    public static List<Map<String, Object>> drainReports() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        Map<String, Object> report;
+        while ((report = reports.poll()) != null) {
+            result.add(report);
+        }
+        return result;
+    }
+
+    private Map<String, Object> toMap() {
+        Map<String, Object> result = new TreeMap<>();
+        result.put("androidAll", androidAll);
+        result.put("wallMillis", millis(System.nanoTime() - start));
+
+        Map<String, Object> phases = new TreeMap<>();
+        for (Phase phase : Phase.values()) {
+            Map<String, Object> times = new TreeMap<>();
+            times.put("wallMillis", millis(wallNanos.get(phase.ordinal())));
+            times.put("cpuMillis", millis(cpuNanos.get(phase.ordinal())));
+            phases.put(camelCase(phase.name()), times);
+        }
+        result.put("phases", phases);
+
+        Map<String, Object> counts = new TreeMap<>();
+        for (Counter counter : Counter.values()) {
+            counts.put(camelCase(counter.name()), counters.get(counter.ordinal()));
+        }
+        result.put("counts", counts);
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        result.put("peakHeapBytes", peakHeap);
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String toJson(Object value) {
+        if (value instanceof Map) {
+            StringBuilder json = new StringBuilder("{");
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                json.append(toJson(entry.getKey())).append(':').append(toJson(entry.getValue()));
+            }
+            return json.append('}').toString();
+        }
+        if (value instanceof String) {
+            return '"' + ((String) value).replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        }
+        return String.valueOf(value);
+    }
+
+    private static String camelCase(String constant) {
+        StringBuilder result = new StringBuilder();
+        for (String part : constant.toLowerCase(Locale.ROOT).split("_")) {
+            result.append(result.length() == 0 ? part : Character.toUpperCase(part.charAt(0)) + part.substring(1));
+        }
+        return result.toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> result = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                result.add(pool);
+            }
+        }
+        return result;
+    }
+}
@@ -2,24 +2,56 @@ package de.mobilej;
 
 import org.gradle.api.GradleException;
 import org.gradle.api.artifacts.transform.TransformParameters;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.*;
 
 import javax.inject.Inject;
-import java.io.File;
-import java.util.List;
 
 interface UnmockParameters extends TransformParameters {
+    // keep and delegate rules are normalized, see RuleMatcher.normalize
     @Input
-    List<String> getKeepClasses();
-    void setKeepClasses(List<String> newValue);
+    ListProperty<String> getKeepClasses();
+    // the order of the mappings matters
     @Input
-    List<String> getRenameClasses();
-    void setRenameClasses(List<String> newValue);
+    ListProperty<String> getRenameClasses();
     @Input
-    List<String> getDelegateClasses();
-    void setDelegateClasses(List<String> newValue);
+    ListProperty<String> getDelegateClasses();
+    @Input
+    ListProperty<String> getKeepWithDependencies();
+    @Input
+    ListProperty<String> getDependencyBoundaries();
+    @Input
+    Property<Boolean> getKeepUsed();
+    // written by UnmockUsageScanTask, only set in the keepUsed mode
     @InputFile
+    @Optional
     @PathSensitive(PathSensitivity.NONE)
-    File getTmpDir();
-    void setTmpDir(File newValue);
+    RegularFileProperty getUsedClasses();
+    @Input
+    Property<String> getOutputMode();
+    @Input
+    Property<String> getEngine();
+    @Input
+    Property<Boolean> getSpecializedBridge();
+    @Input
+    Property<Boolean> getParcelNatives();
+    // later rules for the same method win, so the order matters, too
+    @Input
+    ListProperty<String> getCallRewrites();
+    // only affects how fast the output is produced, not the output itself
+    @Internal
+    Property<Integer> getParallelism();
+    @Internal
+    Property<Integer> getHeapBudgetMb();
+    // content-addressed, so it never changes the output either
+    @Internal
+    DirectoryProperty getCacheDir();
+    @Internal
+    Property<Integer> getCacheRetentionDays();
+    // where the metrics of a run are written, outside the outputs
+    @Internal
+    DirectoryProperty getMetricsDir();
 }
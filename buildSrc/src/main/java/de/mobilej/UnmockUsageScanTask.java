@@ -0,0 +1,119 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.FileVisitDetails;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.IgnoreEmptyDirectories;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Collects the classes the compiled main and unit test classes refer to, for the "keepUsed" mode.
+ *
+ * The result is the sorted list of the referenced outer classes (one per line, '.' separated),
+ * without the scanned classes themselves and limited to the packages of the Android platform -
+ * whether a class is in android-all is decided when unmocking. Since it's sorted and only lists
+ * outer classes of the platform, the file (and with it the input of the transform) only changes
+ * when the set of referenced platform classes changes, not with every change of the code or of
+ * the libraries it uses.
+ */
+@CacheableTask
+public abstract class UnmockUsageScanTask extends DefaultTask {
+
+    // the packages android.jar has classes in, besides the ones of the JDK
+    private static final String[] PLATFORM_PACKAGES = {"android.", "com.android.", "dalvik.", "org.json.", "org.xmlpull."};
+
+    @InputFiles
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract ConfigurableFileCollection getClassesDirs();
+
+    @OutputFile
+    public abstract RegularFileProperty getUsedClasses();
+
+    @TaskAction
+    public void scan() {
+        final Set<String> declared = new HashSet<>();
+        final Set<String> referenced = new TreeSet<>();
+
+        getClassesDirs().getAsFileTree().matching(pattern -> pattern.include("**/*.class")).visit(details -> {
+            if (!details.isDirectory()) {
+                scanClass(details, declared, referenced);
+            }
+        });
+
+        referenced.removeAll(declared);
+
+        StringBuilder content = new StringBuilder();
+        for (String clazzName : referenced) {
+            if (isPlatformClass(clazzName)) {
+                content.append(clazzName).append('\n');
+            }
+        }
+
+        File output = getUsedClasses().get().getAsFile();
+        try {
+            Files.write(output.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new GradleException("Can't write " + output, e);
+        }
+    }
+
+    private static void scanClass(FileVisitDetails details, Set<String> declared, Set<String> referenced) {
+        String path = details.getRelativePath().getPathString();
+        declared.add(outerName(path.substring(0, path.length() - ".class".length()).replace('/', '.')));
+
+        try (InputStream in = details.open()) {
+            for (String internalName : new ConstantPool(in.readAllBytes()).referencedClasses()) {
+                referenced.add(outerName(internalName.replace('/', '.')));
+            }
+        } catch (IOException e) {
+            throw new GradleException("Can't scan " + details.getFile(), e);
+        }
+    }
+
+    private static boolean isPlatformClass(String clazzName) {
+        for (String platformPackage : PLATFORM_PACKAGES) {
+            if (clazzName.startsWith(platformPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String outerName(String clazzName) {
+        int indexOfDollar = clazzName.indexOf('$');
+        return indexOfDollar > 0 ? clazzName.substring(0, indexOfDollar) : clazzName;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the unmocked jar in a single pass.
+ *
+ * Rewritten classes are added straight from their bytecode. Resources are copied from the
+ * android-all jar as they are stored there - the compressed bytes together with the original CRC
+ * and sizes - so they are never inflated and deflated again.
+ *
+ * The output only depends on the content: the manifest is always the same and comes first, every
+ * entry gets the same timestamp, no extra fields and the same compression level, and the entries
+ * are sorted by name. Classes are expected to be added in that order, resources and generated
+ * classes (which includes renamed ones, their new name sorts elsewhere) may be added at any time
+ * before - they are held back until it's their turn.
+ */
+public class UnmockedJarWriter implements Closeable {
+
+    public static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+    private static final String MANIFEST = "Manifest-Version: 1.0\r\nCreated-By: unmock-plugin\r\n";
+
+    /**
+     * The same constant Gradle uses for reproducible archives - the start of the DOS time range
+     * (plus a month, so it's still valid in every time zone).
+     */
+    private static final long ENTRY_TIME =
+            new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
+
+    private interface PendingEntry {
+        void write() throws IOException;
+    }
+
+    private final ZipArchiveOutputStream out;
+    private final TreeMap<String, PendingEntry> pending = new TreeMap<>();
+
+    public UnmockedJarWriter(File outputJar) throws IOException {
+        this(outputJar, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param manifestAttributes added to the main section of the manifest, e.g. "Premain-Class"
+     */
+    public UnmockedJarWriter(File outputJar, Map<String, String> manifestAttributes) throws IOException {
+        out = new ZipArchiveOutputStream(outputJar);
+        out.setMethod(ZipArchiveEntry.DEFLATED);
+        out.setLevel(Deflater.DEFAULT_COMPRESSION);
+
+        StringBuilder manifest = new StringBuilder(MANIFEST);
+        for (Map.Entry<String, String> attribute : new TreeMap<>(manifestAttributes).entrySet()) {
+            manifest.append(attribute.getKey()).append(": ").append(attribute.getValue()).append("\r\n");
+        }
+        manifest.append("\r\n");
+        write(newEntry(MANIFEST_NAME), manifest.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds the class file for the given (fully qualified, '.' separated) class name.
+     */
+    public void addClass(String className, byte[] bytecode) throws IOException {
+        String name = entryName(className);
+        writePendingBefore(name);
+        write(newEntry(name), bytecode);
+    }
+
+    /**
+     * Adds a class not taken from the android-all jar or written under another name, written when
+     * its turn comes.
+     */
+    public void addGeneratedClass(String className, byte[] bytecode) throws IOException {
+        addGeneratedFile(entryName(className), bytecode);
+    }
+
+    /**
+     * Adds a file not taken from the android-all jar, written when its turn comes.
+     */
+    public void addGeneratedFile(final String name, final byte[] content) throws IOException {
+        pending.put(name, () -> write(newEntry(name), content));
+    }
+
+    /**
+     * Copies the given entry of the source jar without decompressing it, when its turn comes - a
+     * resource or a class taken as it is. A manifest is dropped, the jar has its own.
+     */
+    public void addResource(final ZipFile source, final ZipArchiveEntry entry) throws IOException {
+        if (MANIFEST_NAME.equalsIgnoreCase(entry.getName())) {
+            return;
+        }
+
+        pending.put(entry.getName(), () -> {
+            // only take what's needed for the raw copy, not the time or extra fields of the source
+            ZipArchiveEntry copy = newEntry(entry.getName());
+            copy.setMethod(entry.getMethod());
+            copy.setCrc(entry.getCrc());
+            copy.setCompressedSize(entry.getCompressedSize());
+            copy.setSize(entry.getSize());
+            try (InputStream raw = source.getRawInputStream(entry)) {
+                out.addRawArchiveEntry(copy, raw);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writePendingBefore(null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writePendingBefore(String name) throws IOException {
+        Iterator<Map.Entry<String, PendingEntry>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PendingEntry> next = it.next();
+            if (name != null && next.getKey().compareTo(name) >= 0) {
+                return;
+            }
+            next.getValue().write();
+            it.remove();
+        }
+    }
+
+    private void write(ZipArchiveEntry entry, byte[] content) throws IOException {
+        entry.setMethod(ZipArchiveEntry.DEFLATED);
+        out.putArchiveEntry(entry);
+        out.write(content);
+        out.closeArchiveEntry();
+    }
+
+    private static ZipArchiveEntry newEntry(String name) {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setTime(ENTRY_TIME);
+        return entry;
+    }
+
+    static String entryName(String className) {
+        return className.replace('.', '/') + ".class";
+    }
+}
@@ -0,0 +1,108 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import de.mobilej.ConstantPool;
+import de.mobilej.NativeBindings;
+
+/**
+ * Collects the classes the agent needs at runtime from the plugin's classpath - the agent itself,
+ * the rewriting and the libraries it uses (ASM, SLF4J, ...) - to be packed into the agent jar.
+ *
+ * Starting from a class every class referred to is followed, like {@link de.mobilej.DependencyClosure}
+ * does for android-all. The classes of the JDK stay out.
+ */
+public class AgentClasses {
+
+    private static final String[] JDK_PACKAGES = {"java/", "javax/", "jdk/", "sun/", "com/sun/"};
+
+    private AgentClasses() {
+    }
+
+    /**
+     * The classes loaded by the class loader of the tests: just {@link UnmockAgent}. By class name
+     * (fully qualified, '.' separated).
+     */
+    public static Map<String, byte[]> agent() throws IOException {
+        return collect(UnmockAgent.class.getName());
+    }
+
+    /**
+     * The classes loaded by the class loader of the agent, by entry name under
+     * {@link UnmockAgent#ISOLATED_PREFIX}. The implementations of bound natives are read as
+     * resources while rewriting, so they are part of it, too.
+     */
+    public static Map<String, byte[]> isolated() throws IOException {
+        Map<String, byte[]> result = new TreeMap<>();
+        for (Map.Entry<String, byte[]> clazz
+                : collect(UnmockAgent.TRANSFORMER_CLASS, NativeBindings.PARCEL_NATIVES_CLASS).entrySet()) {
+            result.put(UnmockAgent.ISOLATED_PREFIX + clazz.getKey().replace('.', '/') + ".class", clazz.getValue());
+        }
+        return result;
+    }
+
+    private static Map<String, byte[]> collect(String... classNames) throws IOException {
+        ClassLoader loader = AgentClasses.class.getClassLoader();
+        Map<String, byte[]> result = new TreeMap<>();
+
+        Set<String> visited = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        for (String className : classNames) {
+            String start = className.replace('.', '/');
+            pending.add(start);
+            visited.add(start);
+        }
+
+        while (!pending.isEmpty()) {
+            String internalName = pending.poll();
+            byte[] bytecode;
+            try (InputStream in = loader.getResourceAsStream(internalName + ".class")) {
+                // names in string constants may look like classes
+                if (in == null) {
+                    continue;
+                }
+                bytecode = in.readAllBytes();
+            }
+            result.put(internalName.replace('/', '.'), bytecode);
+
+            for (String referenced : new ConstantPool(bytecode).referencedClasses()) {
+                if (!isJdkClass(referenced) && visited.add(referenced)) {
+                    pending.add(referenced);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isJdkClass(String internalName) {
+        for (String jdkPackage : JDK_PACKAGES) {
+            if (internalName.startsWith(jdkPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+
+import de.mobilej.AsmEngine;
+import de.mobilej.CallRewrites;
+import de.mobilej.ClassCache;
+import de.mobilej.NativeBindings;
+import de.mobilej.ProcessRealAndroidJar.ClassMapping;
+import de.mobilej.RuleMatcher;
+import de.mobilej.UnmockEngine;
+
+/**
+ * Rewrites kept and delegated classes when they are loaded, with the same ASM based rewriting the
+ * transform uses.
+ *
+ * Like the transform it works on whole nests: when a class is loaded, its nest is rewritten and the
+ * other classes of it are held until they are loaded, too. The rewritten nests go to the same
+ * cache as the ones of the transform, so only the first test run pays for a nest.
+ *
+ * Loaded by the class loader of the agent, see {@link UnmockAgent}.
+ */
+public class LazyUnmockTransformer implements ClassFileTransformer {
+
+    private static final Logger log = new AgentLogger(LazyUnmockTransformer.class.getName());
+
+    private final ZipFile androidAll;
+    private final RuleMatcher matcher;
+    private final Set<String> renamed = new HashSet<>();
+    private final UnmockEngine engine;
+    private final ClassCache cache;
+    private final String fingerprint;
+
+    // outer class -> the classes of its nest, sorted like the transform sorts them
+    private final Map<String, List<String>> nests = new HashMap<>();
+    // rewritten classes which weren't loaded yet
+    private final Map<String, byte[]> pending = new HashMap<>();
+
+    // loading the classes needed for the rewriting must not end up in here again
+    private final ThreadLocal<Boolean> transforming = new ThreadLocal<>();
+
+    public LazyUnmockTransformer(File androidAllFile, File cacheDir, Properties config) throws IOException {
+        androidAll = new ZipFile(androidAllFile);
+        matcher = new RuleMatcher(list(config, UnmockAgent.KEEP), list(config, UnmockAgent.DELEGATE));
+
+        List<ClassMapping> classesToMap = new ArrayList<>();
+        for (String mapping : list(config, UnmockAgent.RENAME)) {
+            int indexOfEquals = mapping.indexOf('=');
+            classesToMap.add(new ClassMapping(mapping.substring(0, indexOfEquals), mapping.substring(indexOfEquals + 1)));
+            // these are part of the agent jar
+            renamed.add(mapping.substring(0, indexOfEquals));
+        }
+
+        Map<String, String> implementations = new LinkedHashMap<>();
+        if (Boolean.parseBoolean(config.getProperty(UnmockAgent.PARCEL_NATIVES))) {
+            implementations.put(NativeBindings.PARCEL_CLASS, NativeBindings.PARCEL_NATIVES_CLASS);
+        }
+
+        engine = new AsmEngine(matcher, classesToMap,
+                Boolean.parseBoolean(config.getProperty(UnmockAgent.SPECIALIZED_BRIDGE)),
+                new NativeBindings(implementations), CallRewrites.of(Arrays.asList(list(config, UnmockAgent.CALL_REWRITES))),
+                log);
+        cache = cacheDir != null ? new ClassCache(new File(cacheDir, "classes")) : null;
+        fingerprint = config.getProperty(UnmockAgent.FINGERPRINT);
+
+        Enumeration<? extends ZipEntry> entries = androidAll.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.endsWith(".class")) {
+                String clazzName = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                if (matcher.classify(clazzName) != RuleMatcher.Outcome.NONE) {
+                    nests.computeIfAbsent(outerName(clazzName), k -> new ArrayList<>()).add(clazzName);
+                }
+            }
+        }
+        for (List<String> nest : nests.values()) {
+            nest.sort(null);
+        }
+    }
+
+    @Override
+    public synchronized byte[] transform(ClassLoader loader,
+                                         String className,
+                                         Class<?> classBeingRedefined,
+                                         ProtectionDomain protectionDomain,
+                                         byte[] classfileBuffer) {
+        if (loader == null || className == null || classBeingRedefined != null || transforming.get() != null) {
+            return null;
+        }
+
+        String clazzName = className.replace('/', '.');
+        List<String> nest = nests.get(outerName(clazzName));
+        if (nest == null || renamed.contains(clazzName)) {
+            return null;
+        }
+
+        byte[] rewritten = pending.remove(clazzName);
+        if (rewritten != null) {
+            return rewritten;
+        }
+
+        transforming.set(Boolean.TRUE);
+        try {
+            Map<String, byte[]> result = rewrite(nest);
+            rewritten = result.remove(clazzName);
+            pending.putAll(result);
+            return rewritten;
+        } catch (Exception e) {
+            log.error("Unmock: unable to rewrite " + clazzName, e);
+            return null;
+        } finally {
+            transforming.remove();
+        }
+    }
+
+    private Map<String, byte[]> rewrite(List<String> nest) throws Exception {
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = ClassCache.nestKey(fingerprint, nest, matcher, this::readClass);
+            Map<String, byte[]> cached = cache.load(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        if (engine.transform(nest, this::readClass, result) && cache != null) {
+            cache.store(cacheKey, result);
+        }
+        return result;
+    }
+
+    private byte[] readClass(String clazzName) throws IOException {
+        try (InputStream in = androidAll.getInputStream(androidAll.getEntry(clazzName.replace('.', '/') + ".class"))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static String[] list(Properties config, String key) {
+        String value = config.getProperty(key, "");
+        return value.isEmpty() ? new String[0] : value.split(",");
+    }
+
+    private static String outerName(String clazzName) {
+        int indexOfDollar = clazzName.indexOf('$');
+        return indexOfDollar > 0 ? clazzName.substring(0, indexOfDollar) : clazzName;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.net.URL;
+import java.util.Properties;
+import java.util.jar.JarFile;
+
+/**
+ * Java agent unmocking the classes of android-all while the test JVM loads them (outputMode "agent").
+ *
+ * The agent jar is written by the transform and contains ABridge, the classes needed for the
+ * rewriting and the configuration. The android-all jar itself is appended to the classpath: classes
+ * which are also in the android.jar stubs are loaded from there, the others from android-all - the
+ * transformer replaces the bytecode of the kept and delegated ones either way.
+ *
+ * The agent jar ends up on the classpath of the tests, but only this class is stored as a class
+ * there. The rewriting with the libraries it uses (ASM, ...) is stored under {@link #ISOLATED_PREFIX}
+ * and loaded by a class loader of its own, so it neither clashes with other versions of them the
+ * tests use nor sees them.
+ *
+ * The agent argument is the android-all jar, optionally followed by the cache directory (separated
+ * by the path separator).
+ */
+public class UnmockAgent {
+
+    public static final String CONFIG_RESOURCE = "de/mobilej/agent/unmock-agent.properties";
+
+    /**
+     * Where the agent jar holds the classes of the rewriting.
+     */
+    public static final String ISOLATED_PREFIX = "unmock-agent/";
+
+    public static final String TRANSFORMER_CLASS = "de.mobilej.agent.LazyUnmockTransformer";
+
+    public static final String KEEP = "keep";
+    public static final String DELEGATE = "delegate";
+    public static final String RENAME = "rename";
+    public static final String SPECIALIZED_BRIDGE = "specializedBridge";
+    public static final String PARCEL_NATIVES = "parcelNatives";
+    public static final String CALL_REWRITES = "callRewrites";
+    public static final String FINGERPRINT = "fingerprint";
+
+    public static void premain(String args, Instrumentation instrumentation) throws Exception {
+        if (args == null || args.isEmpty()) {
+            throw new IllegalArgumentException("The unmock agent needs the android-all jar as argument");
+        }
+
+        String[] arguments = args.split(File.pathSeparator);
+        File androidAll = new File(arguments[0]);
+        File cacheDir = arguments.length > 1 ? new File(arguments[1]) : null;
+
+        Properties config = new Properties();
+        try (InputStream in = UnmockAgent.class.getClassLoader().getResourceAsStream(CONFIG_RESOURCE)) {
+            if (in == null) {
+                throw new IOException("Missing " + CONFIG_RESOURCE);
+            }
+            config.load(in);
+        }
+
+        ClassLoader isolated = new IsolatedClassLoader(UnmockAgent.class.getClassLoader());
+        ClassFileTransformer transformer = (ClassFileTransformer) Class.forName(TRANSFORMER_CLASS, true, isolated)
+                .getConstructor(File.class, File.class, Properties.class)
+                .newInstance(androidAll, cacheDir, config);
+
+        instrumentation.appendToSystemClassLoaderSearch(new JarFile(androidAll));
+        instrumentation.addTransformer(transformer);
+    }
+
+    /**
+     * Sees the JDK and the classes and resources stored under {@link #ISOLATED_PREFIX}, nothing else.
+     */
+    private static class IsolatedClassLoader extends ClassLoader {
+
+        private final ClassLoader agentLoader;
+
+        IsolatedClassLoader(ClassLoader agentLoader) {
+            super(ClassLoader.getPlatformClassLoader());
+            this.agentLoader = agentLoader;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytecode;
+            try (InputStream in = agentLoader.getResourceAsStream(ISOLATED_PREFIX + name.replace('.', '/') + ".class")) {
+                if (in == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                bytecode = in.readAllBytes();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+
+        @Override
+        protected URL findResource(String name) {
+            return agentLoader.getResource(ISOLATED_PREFIX + name);
+        }
+    }
+}
@@ -0,0 +1,560 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.runtime;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pure Java implementation of the native side of android.os.Parcel.
+ *
+ * This class is not used by the plugin itself - it's copied into the unmocked jar and the native
+ * methods of the kept android.os.Parcel are bound to the methods of the same name here (see
+ * de.mobilej.NativeBindings). The layout follows the real Parcel: little endian, every value
+ * padded to 4 bytes, strings as UTF-16 with a length prefix and a terminating zero, null arrays and
+ * strings as a length of -1. Reading past the end returns 0 or null just like on a device.
+ *
+ * The data of a parcel lives in a direct buffer keyed by the fake native pointer. Buffers grow by
+ * doubling and go back to a small pool on nativeDestroy, so creating and recycling parcels doesn't
+ * allocate. Binders and file descriptors are kept in a side table of the parcel, the data only holds
+ * their index.
+ *
+ * The methods returning a long where the platform reports the new native allocation size always
+ * return 0 - the Java side only tells the (unavailable) VMRuntime about changes.
+ */
+public final class ParcelNatives {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final int MAX_POOLED = 32;
+
+    private static final int BLOB_INPLACE = 0;
+
+    private static final Map<Long, Buffer> PARCELS = new ConcurrentHashMap<>();
+    private static final ConcurrentLinkedDeque<ByteBuffer> POOL = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    private static final AtomicLong NEXT_PTR = new AtomicLong(1);
+
+    private ParcelNatives() {
+    }
+
+    public static long nativeCreate() {
+        long ptr = NEXT_PTR.getAndIncrement();
+        PARCELS.put(ptr, new Buffer());
+        return ptr;
+    }
+
+    public static long nativeFreeBuffer(long nativePtr) {
+        Buffer buffer = PARCELS.get(nativePtr);
+        if (buffer != null) {
+            buffer.reset();
+        }
+        return 0;
+    }
+
+    public static void nativeDestroy(long nativePtr) {
+        Buffer buffer = PARCELS.remove(nativePtr);
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+
+    public static int nativeDataSize(long nativePtr) {
+        return parcel(nativePtr).size;
+    }
+
+    public static int nativeDataAvail(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        return Math.max(0, buffer.size - buffer.position);
+    }
+
+    public static int nativeDataPosition(long nativePtr) {
+        return parcel(nativePtr).position;
+    }
+
+    public static int nativeDataCapacity(long nativePtr) {
+        return parcel(nativePtr).data.capacity();
+    }
+
+    public static long nativeSetDataSize(long nativePtr, int size) {
+        Buffer buffer = parcel(nativePtr);
+        buffer.ensureCapacity(size);
+        buffer.size = size;
+        if (buffer.position > size) {
+            buffer.position = size;
+        }
+        return 0;
+    }
+
+    public static void nativeSetDataPosition(long nativePtr, int pos) {
+        parcel(nativePtr).position = pos;
+    }
+
+    public static void nativeSetDataCapacity(long nativePtr, int size) {
+        Buffer buffer = parcel(nativePtr);
+        if (size > buffer.size) {
+            buffer.ensureCapacity(size);
+        }
+    }
+
+    public static boolean nativePushAllowFds(long nativePtr, boolean allowFds) {
+        Buffer buffer = parcel(nativePtr);
+        boolean lastValue = buffer.allowFds;
+        buffer.allowFds = buffer.allowFds && allowFds;
+        return lastValue;
+    }
+
+    public static void nativeRestoreAllowFds(long nativePtr, boolean lastValue) {
+        parcel(nativePtr).allowFds = lastValue;
+    }
+
+    public static void nativeWriteByteArray(long nativePtr, byte[] b, int offset, int len) {
+        Buffer buffer = parcel(nativePtr);
+        if (b == null) {
+            buffer.writeInt(-1);
+            return;
+        }
+        buffer.writeInt(len);
+        buffer.writeBytes(b, offset, len);
+    }
+
+    public static void nativeWriteBlob(long nativePtr, byte[] b, int offset, int len) {
+        Buffer buffer = parcel(nativePtr);
+        if (b == null) {
+            buffer.writeInt(-1);
+            return;
+        }
+        buffer.writeInt(len);
+        buffer.writeInt(BLOB_INPLACE);
+        buffer.writeBytes(b, offset, len);
+    }
+
+    public static void nativeWriteInt(long nativePtr, int val) {
+        parcel(nativePtr).writeInt(val);
+    }
+
+    public static void nativeWriteLong(long nativePtr, long val) {
+        Buffer buffer = parcel(nativePtr);
+        int at = buffer.grow(8);
+        buffer.data.putLong(at, val);
+    }
+
+    public static void nativeWriteFloat(long nativePtr, float val) {
+        Buffer buffer = parcel(nativePtr);
+        int at = buffer.grow(4);
+        buffer.data.putFloat(at, val);
+    }
+
+    public static void nativeWriteDouble(long nativePtr, double val) {
+        Buffer buffer = parcel(nativePtr);
+        int at = buffer.grow(8);
+        buffer.data.putDouble(at, val);
+    }
+
+    public static void nativeWriteString(long nativePtr, String val) {
+        nativeWriteString16(nativePtr, val);
+    }
+
+    public static void nativeWriteString16(long nativePtr, String val) {
+        Buffer buffer = parcel(nativePtr);
+        if (val == null) {
+            buffer.writeInt(-1);
+            return;
+        }
+
+        int length = val.length();
+        buffer.writeInt(length);
+        int at = buffer.grow((length + 1) * 2);
+        for (int i = 0; i < length; i++) {
+            buffer.data.putChar(at + i * 2, val.charAt(i));
+        }
+        buffer.data.putChar(at + length * 2, (char) 0);
+    }
+
+    public static void nativeWriteString8(long nativePtr, String val) {
+        Buffer buffer = parcel(nativePtr);
+        if (val == null) {
+            buffer.writeInt(-1);
+            return;
+        }
+
+        byte[] utf8 = val.getBytes(StandardCharsets.UTF_8);
+        buffer.writeInt(utf8.length);
+        int at = buffer.grow(utf8.length + 1);
+        buffer.put(at, utf8, 0, utf8.length);
+        buffer.data.put(at + utf8.length, (byte) 0);
+    }
+
+    public static void nativeWriteStrongBinder(long nativePtr, Object val) {
+        parcel(nativePtr).writeObject(val);
+    }
+
+    public static long nativeWriteFileDescriptor(long nativePtr, FileDescriptor val) {
+        Buffer buffer = parcel(nativePtr);
+        if (val != null && !buffer.allowFds) {
+            throw new RuntimeException("Not allowed to write file descriptors here");
+        }
+        buffer.writeObject(val);
+        if (val != null) {
+            buffer.hasFileDescriptors = true;
+        }
+        return 0;
+    }
+
+    public static void nativeWriteInterfaceToken(long nativePtr, String interfaceName) {
+        // the strict mode policy comes first
+        nativeWriteInt(nativePtr, 0);
+        nativeWriteString16(nativePtr, interfaceName);
+    }
+
+    public static void nativeEnforceInterface(long nativePtr, String interfaceName) {
+        nativeReadInt(nativePtr);
+        String actual = nativeReadString16(nativePtr);
+        if (interfaceName == null ? actual != null : !interfaceName.equals(actual)) {
+            throw new SecurityException("Binder invocation to an incorrect interface");
+        }
+    }
+
+    public static byte[] nativeCreateByteArray(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        int length = buffer.readInt();
+        if (length < 0 || length > buffer.size - buffer.position) {
+            return null;
+        }
+
+        byte[] result = new byte[length];
+        buffer.get(buffer.advance(length), result, 0, length);
+        return result;
+    }
+
+    public static boolean nativeReadByteArray(long nativePtr, byte[] dest, int destLen) {
+        Buffer buffer = parcel(nativePtr);
+        int start = buffer.position;
+        int length = buffer.readInt();
+        if (dest == null || length != destLen || length > buffer.size - buffer.position) {
+            buffer.position = start;
+            return false;
+        }
+
+        buffer.get(buffer.advance(length), dest, 0, length);
+        return true;
+    }
+
+    public static byte[] nativeReadBlob(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        int length = buffer.readInt();
+        if (length < 0) {
+            return null;
+        }
+        buffer.readInt();
+        if (length > buffer.size - buffer.position) {
+            return null;
+        }
+
+        byte[] result = new byte[length];
+        buffer.get(buffer.advance(length), result, 0, length);
+        return result;
+    }
+
+    public static int nativeReadInt(long nativePtr) {
+        return parcel(nativePtr).readInt();
+    }
+
+    public static long nativeReadLong(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        int at = buffer.advance(8);
+        return at < 0 ? 0L : buffer.data.getLong(at);
+    }
+
+    public static float nativeReadFloat(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        int at = buffer.advance(4);
+        return at < 0 ? 0f : buffer.data.getFloat(at);
+    }
+
+    public static double nativeReadDouble(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        int at = buffer.advance(8);
+        return at < 0 ? 0d : buffer.data.getDouble(at);
+    }
+
+    public static String nativeReadString(long nativePtr) {
+        return nativeReadString16(nativePtr);
+    }
+
+    public static String nativeReadString16(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        int start = buffer.position;
+        int length = buffer.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        int at = buffer.advance((length + 1) * 2);
+        if (at < 0) {
+            buffer.position = start;
+            return null;
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.data.getChar(at + i * 2);
+        }
+        return new String(chars);
+    }
+
+    public static String nativeReadString8(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        int start = buffer.position;
+        int length = buffer.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        int at = buffer.advance(length + 1);
+        if (at < 0) {
+            buffer.position = start;
+            return null;
+        }
+
+        byte[] utf8 = new byte[length];
+        buffer.get(at, utf8, 0, length);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    public static Object nativeReadStrongBinder(long nativePtr) {
+        return parcel(nativePtr).readObject();
+    }
+
+    public static FileDescriptor nativeReadFileDescriptor(long nativePtr) {
+        Object value = parcel(nativePtr).readObject();
+        return value instanceof FileDescriptor ? (FileDescriptor) value : null;
+    }
+
+    public static boolean nativeHasFileDescriptors(long nativePtr) {
+        return parcel(nativePtr).hasFileDescriptors;
+    }
+
+    public static long nativeGetBlobAshmemSize(long nativePtr) {
+        return 0;
+    }
+
+    public static byte[] nativeMarshall(long nativePtr) {
+        Buffer buffer = parcel(nativePtr);
+        if (!buffer.objects.isEmpty()) {
+            throw new RuntimeException("Tried to marshall a Parcel that contains objects (binders or FDs).");
+        }
+
+        byte[] result = new byte[buffer.size];
+        buffer.get(0, result, 0, buffer.size);
+        return result;
+    }
+
+    public static long nativeUnmarshall(long nativePtr, byte[] data, int offset, int length) {
+        Buffer buffer = parcel(nativePtr);
+        if (data == null || length < 0) {
+            return 0;
+        }
+
+        buffer.reset();
+        buffer.ensureCapacity(length);
+        buffer.put(0, data, offset, length);
+        buffer.size = length;
+        return 0;
+    }
+
+    /**
+     * Appends data of another parcel at the current position. Binders and file descriptors are not
+     * carried over.
+     */
+    public static long nativeAppendFrom(long thisNativePtr, long otherNativePtr, int offset, int length) {
+        Buffer target = parcel(thisNativePtr);
+        Buffer source = parcel(otherNativePtr);
+        if (offset < 0 || length < 0 || offset + length > source.size) {
+            return 0;
+        }
+
+        int at = target.position;
+        target.ensureCapacity(at + length);
+        // a duplicate has its own position and limit, the bytes are copied just once
+        ByteBuffer slice = source.data.duplicate();
+        slice.limit(offset + length).position(offset);
+        ByteBuffer destination = target.data.duplicate();
+        destination.position(at);
+        destination.put(slice);
+
+        target.position = at + length;
+        target.size = Math.max(target.size, target.position);
+        return 0;
+    }
+
+    public static int nativeCompareData(long thisNativePtr, long otherNativePtr) {
+        Buffer one = parcel(thisNativePtr);
+        Buffer other = parcel(otherNativePtr);
+        ByteBuffer a = one.data.duplicate();
+        a.limit(one.size).position(0);
+        ByteBuffer b = other.data.duplicate();
+        b.limit(other.size).position(0);
+        return a.compareTo(b);
+    }
+
+    private static Buffer parcel(long nativePtr) {
+        Buffer buffer = PARCELS.get(nativePtr);
+        if (buffer == null) {
+            throw new IllegalStateException("Parcel " + nativePtr + " has been destroyed or never existed");
+        }
+        return buffer;
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static final class Buffer {
+        ByteBuffer data;
+        int size;
+        int position;
+        boolean allowFds = true;
+        boolean hasFileDescriptors;
+        final List<Object> objects = new ArrayList<>();
+
+        Buffer() {
+            ByteBuffer pooled = POOL.pollFirst();
+            if (pooled != null) {
+                POOLED.decrementAndGet();
+                data = pooled;
+            } else {
+                data = ByteBuffer.allocateDirect(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        void reset() {
+            size = 0;
+            position = 0;
+            hasFileDescriptors = false;
+            objects.clear();
+        }
+
+        void release() {
+            reset();
+            if (data.capacity() <= MAX_POOLED_CAPACITY) {
+                if (POOLED.incrementAndGet() <= MAX_POOLED) {
+                    POOL.offerFirst(data);
+                } else {
+                    POOLED.decrementAndGet();
+                }
+            }
+            data = null;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity <= data.capacity()) {
+                return;
+            }
+
+            int newCapacity = Math.max(data.capacity() * 2, capacity);
+            ByteBuffer grown = ByteBuffer.allocateDirect(newCapacity).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer used = data.duplicate();
+            used.limit(size).position(0);
+            grown.put(used);
+            data = grown;
+        }
+
+        /**
+         * Reserves the padded space for a value written at the current position and returns where
+         * to put it.
+         */
+        int grow(int length) {
+            int at = position;
+            int end = at + pad(length);
+            ensureCapacity(end);
+            // the padding is zeroed like on a device
+            for (int i = at + length; i < end; i++) {
+                data.put(i, (byte) 0);
+            }
+            position = end;
+            if (end > size) {
+                size = end;
+            }
+            return at;
+        }
+
+        /**
+         * Consumes the padded space of a value at the current position and returns where to read it,
+         * or -1 if there isn't enough data.
+         */
+        int advance(int length) {
+            int at = position;
+            int end = at + pad(length);
+            if (length < 0 || end > size) {
+                return -1;
+            }
+            position = end;
+            return at;
+        }
+
+        void writeInt(int value) {
+            // grow may replace data, so it has to run first
+            int at = grow(4);
+            data.putInt(at, value);
+        }
+
+        int readInt() {
+            int at = advance(4);
+            return at < 0 ? 0 : data.getInt(at);
+        }
+
+        void writeBytes(byte[] source, int offset, int length) {
+            put(grow(length), source, offset, length);
+        }
+
+        void writeObject(Object value) {
+            if (value == null) {
+                writeInt(0);
+                return;
+            }
+            objects.add(value);
+            writeInt(objects.size());
+        }
+
+        Object readObject() {
+            int index = readInt();
+            return index > 0 && index <= objects.size() ? objects.get(index - 1) : null;
+        }
+
+        void put(int at, byte[] source, int offset, int length) {
+            ByteBuffer destination = data.duplicate();
+            destination.position(at);
+            destination.put(source, offset, length);
+        }
+
+        void get(int at, byte[] destination, int offset, int length) {
+            ByteBuffer source = data.duplicate();
+            source.position(at);
+            source.get(destination, offset, length);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ABridgeGeneratorTest {
+
+    private static final String SIGNATURE = "android.os.Parcel.nativeWriteInt(long,int)";
+
+    private ClassLoader loader;
+    private Class<?> bridge;
+
+    @Before
+    public void setUp() throws Exception {
+        loader = TestClasses.loader(ABridgeGenerator.generate(Arrays.asList("callInt(JI)", "callChar(D)", "callVoid(Ljava/lang/Object;)")));
+        bridge = loader.loadClass(ABridgeGenerator.BRIDGE_CLASS);
+    }
+
+    @Test
+    public void returnsDefaultsWithoutHandler() throws Exception {
+        assertEquals(0, specialized("callInt", long.class, int.class).invoke(null, SIGNATURE, null, 1L, 2));
+        assertEquals(0, generic("callInt").invoke(null, SIGNATURE, null, new Object[]{1L, 2}));
+    }
+
+    @Test
+    public void typedHandlersGetTheArgumentsOfBothConventions() throws Exception {
+        register(Type.INT_TYPE, (thiz, args) -> (int) (long) call(args, "getLong", 0) + (int) call(args, "getInt", 1));
+
+        assertEquals(3, specialized("callInt", long.class, int.class).invoke(null, SIGNATURE, null, 1L, 2));
+        assertEquals(5, generic("callInt").invoke(null, SIGNATURE, null, new Object[]{2L, 3}));
+    }
+
+    @Test
+    public void typedHandlersOfCharResultsServeCallObject() throws Exception {
+        register(Type.CHAR_TYPE, (thiz, args) -> (char) (double) call(args, "getDouble", 0));
+
+        assertEquals('a', specialized("callChar", double.class).invoke(null, SIGNATURE, null, 97d));
+        assertEquals('b', generic("callObject").invoke(null, SIGNATURE, null, new Object[]{98d}));
+    }
+
+    @Test
+    public void boxedHandlersStillWork() throws Exception {
+        Class<?> handler = loader.loadClass(ABridgeGenerator.HANDLER_CLASS);
+        Object instance = Proxy.newProxyInstance(loader, new Class<?>[]{handler},
+                (proxy, method, args) -> ((Long) ((Object[]) args[1])[0]).intValue() * 10);
+        bridge.getMethod("register", String.class, handler).invoke(null, SIGNATURE, instance);
+
+        assertEquals(70, specialized("callInt", long.class, int.class).invoke(null, SIGNATURE, null, 7L, 0));
+    }
+
+    @Test
+    public void argumentsStayValidWhenAHandlerCallsTheBridge() throws Exception {
+        Method callInt = specialized("callInt", long.class, int.class);
+        register(Type.INT_TYPE, (thiz, args) -> {
+            int first = (int) call(args, "getInt", 1);
+            if (first > 0) {
+                callInt.invoke(null, SIGNATURE, null, 0L, first - 1);
+            }
+            return (int) call(args, "getInt", 1);
+        });
+
+        assertEquals(3, callInt.invoke(null, SIGNATURE, null, 0L, 3));
+    }
+
+    @Test
+    public void refusesAHandlerOfAnotherResult() throws Exception {
+        register(Type.VOID_TYPE, (thiz, args) -> null);
+        try {
+            specialized("callInt", long.class, int.class).invoke(null, SIGNATURE, null, 1L, 2);
+            fail();
+        } catch (InvocationTargetException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * A typed handler, called with the receiver and the ABridgeArgs.
+     */
+    private interface Handler {
+        Object call(Object thiz, Object args) throws Exception;
+    }
+
+    private void register(Type returnType, Handler handler) throws Exception {
+        Class<?> typed = loader.loadClass(ABridgeGenerator.typedHandlerClass(returnType));
+        Object instance = Proxy.newProxyInstance(loader, new Class<?>[]{typed}, (proxy, method, args) ->
+                method.getName().equals("call") ? handler.call(args[0], args[1]) : null);
+        String suffix = ABridgeGenerator.bridgeMethod(returnType, true).substring("call".length());
+        bridge.getMethod("register" + suffix, String.class, typed).invoke(null, SIGNATURE, instance);
+    }
+
+    private static Object call(Object args, String getter, int index) throws Exception {
+        return args.getClass().getMethod(getter, int.class).invoke(args, index);
+    }
+
+    private Method specialized(String name, Class<?>... parameters) throws Exception {
+        Class<?>[] types = new Class<?>[parameters.length + 2];
+        types[0] = String.class;
+        types[1] = Object.class;
+        System.arraycopy(parameters, 0, types, 2, parameters.length);
+        return bridge.getMethod(name, types);
+    }
+
+    private Method generic(String name) throws Exception {
+        return bridge.getMethod(name, String.class, Object.class, Object[].class);
+    }
+}
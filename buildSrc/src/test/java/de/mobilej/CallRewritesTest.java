@@ -0,0 +1,128 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CallRewritesTest {
+
+    @Test
+    public void containsTheDefaults() {
+        CallRewrites rewrites = CallRewrites.of(Collections.emptyList());
+
+        CallRewrites.Rewrite arraycopy = rewrites.find("java/lang/System", "arraycopy", "([II[III)V");
+        assertEquals("java/lang/System", arraycopy.owner());
+        assertEquals("arraycopy", arraycopy.name());
+        assertEquals("(Ljava/lang/Object;ILjava/lang/Object;II)V",
+                arraycopy.descriptor("java/lang/System", "arraycopy", "([II[III)V", true));
+
+        assertTrue(rewrites.find("dalvik/system/VMRuntime", "getRuntime", "()Ldalvik/system/VMRuntime;").isNull());
+        assertTrue(rewrites.hasOwner("dalvik/system/VMRuntime"));
+        assertFalse(rewrites.hasOwner("android/os/Bundle"));
+        assertEquals("", rewrites.fingerprint());
+    }
+
+    @Test
+    public void ruleWithDescriptorWinsOverRuleWithout() {
+        CallRewrites rewrites = CallRewrites.of(Arrays.asList(
+                "a.B.c(I)V=x.Y.exact",
+                "a.B.c=x.Y.any"));
+
+        assertEquals("exact", rewrites.find("a/B", "c", "(I)V").name());
+        assertEquals("any", rewrites.find("a/B", "c", "(J)V").name());
+        assertNull(rewrites.find("a/B", "d", "(I)V"));
+        assertNull(rewrites.find("a/C", "c", "(I)V"));
+    }
+
+    @Test
+    public void laterRulesReplaceEarlierOnes() {
+        CallRewrites rewrites = CallRewrites.of(Arrays.asList(
+                "java.lang.System.arraycopy=null",
+                "a.B.c=x.Y.first",
+                " a.B.c = x.Y.second "));
+
+        assertTrue(rewrites.find("java/lang/System", "arraycopy", "([II[III)V").isNull());
+        assertEquals("second", rewrites.find("a/B", "c", "()V").name());
+        assertEquals(Arrays.asList("java.lang.System.arraycopy=null", "a.B.c=x.Y.first", " a.B.c = x.Y.second "),
+                rewrites.custom());
+        assertEquals("java.lang.System.arraycopy=null|a.B.c=x.Y.first| a.B.c = x.Y.second ", rewrites.fingerprint());
+    }
+
+    @Test
+    public void targetWithoutDescriptorTakesTheReceiverFirst() {
+        CallRewrites.Rewrite rewrite = CallRewrites.of(Collections.singletonList("a.B.c=x.Y.z")).find("a/B", "c", "(I)J");
+
+        assertEquals("(La/B;I)J", rewrite.descriptor("a/B", "c", "(I)J", false));
+        assertEquals("(I)J", rewrite.descriptor("a/B", "c", "(I)J", true));
+        assertFalse(CallRewrites.Rewrite.dropsReceiver("(I)J", false, "(La/B;I)J"));
+    }
+
+    @Test
+    public void targetWithDescriptorMayDropTheReceiver() {
+        CallRewrites.Rewrite rewrite = CallRewrites.of(Collections.singletonList("a.B.c=x.Y.z(Ljava/lang/Object;)I"))
+                .find("a/B", "c", "([I)I");
+
+        assertEquals("(Ljava/lang/Object;)I", rewrite.descriptor("a/B", "c", "([I)I", false));
+        assertTrue(CallRewrites.Rewrite.dropsReceiver("([I)I", false, "(Ljava/lang/Object;)I"));
+        assertFalse(CallRewrites.Rewrite.dropsReceiver("([I)I", true, "(Ljava/lang/Object;)I"));
+    }
+
+    @Test
+    public void rejectsTargetsNotFittingTheCall() {
+        CallRewrites rewrites = CallRewrites.of(Arrays.asList(
+                "a.B.c=x.Y.z(II)I",
+                "a.B.d=x.Y.z(I)J",
+                "a.B.e=x.Y.z(I)Ljava/lang/Object;"));
+
+        assertNotFitting(rewrites, "c", "(I)I", true);
+        assertNotFitting(rewrites, "d", "(I)I", true);
+        // references get a cast
+        assertEquals("(I)Ljava/lang/Object;",
+                rewrites.find("a/B", "e", "(I)Ljava/lang/String;").descriptor("a/B", "e", "(I)Ljava/lang/String;", true));
+    }
+
+    @Test
+    public void rejectsUnparseableRules() {
+        for (String rule : Arrays.asList("a.B.c", "=x.Y.z", "a.B.c=", "B=x.Y.z", "a.B.=x.Y.z", "a.B.c=x.Y.z(I",
+                "a.B.c(Q)V=null")) {
+            try {
+                CallRewrites.of(Collections.singletonList(rule));
+                fail(rule);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains(rule));
+            }
+        }
+    }
+
+    private static void assertNotFitting(CallRewrites rewrites, String name, String descriptor, boolean staticCall) {
+        try {
+            rewrites.find("a/B", name, descriptor).descriptor("a/B", name, descriptor, staticCall);
+            fail(name + descriptor);
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("a.B." + name));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClassCacheTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dir;
+    private ClassCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = temporaryFolder.newFolder("cache");
+        cache = new ClassCache(dir);
+    }
+
+    @Test
+    public void loadsWhatWasStored() throws Exception {
+        cache.store("abcdef", Collections.singletonMap("a.B", new byte[]{1, 2, 3}));
+
+        Map<String, byte[]> loaded = cache.load("abcdef");
+        assertEquals(Collections.singleton("a.B"), loaded.keySet());
+        assertArrayEquals(new byte[]{1, 2, 3}, loaded.get("a.B"));
+        assertEquals(null, cache.load("abcdeg"));
+    }
+
+    @Test
+    public void nestKeyOnlyChangesWithTheInputs() throws Exception {
+        Map<String, byte[]> classes = new HashMap<>();
+        classes.put("a.B", new byte[]{1});
+        classes.put("a.B$C", new byte[]{2});
+        List<String> nest = Arrays.asList("a.B", "a.B$C");
+        RuleMatcher matcher = new RuleMatcher(new String[]{"-a.B"}, new String[0]);
+
+        String key = ClassCache.nestKey("1", nest, matcher, classes::get);
+        assertEquals(key, ClassCache.nestKey("1", nest, new RuleMatcher(new String[]{"-a.B"}, new String[0]), classes::get));
+
+        assertNotEquals(key, ClassCache.nestKey("2", nest, matcher, classes::get));
+        assertNotEquals(key, ClassCache.nestKey("1", nest, new RuleMatcher(new String[]{"-a.X"}, new String[0]), classes::get));
+        classes.put("a.B$C", new byte[]{3});
+        assertNotEquals(key, ClassCache.nestKey("1", nest, matcher, classes::get));
+    }
+
+    @Test
+    public void fileHashFollowsTheContent() throws Exception {
+        File file = temporaryFolder.newFile("android-all.jar");
+        Files.write(file.toPath(), "one".getBytes(StandardCharsets.UTF_8));
+        String hash = cache.fileHash(file);
+        assertEquals(hash, cache.fileHash(file));
+
+        Files.write(file.toPath(), "two".getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(file.lastModified() + 2000);
+        assertNotEquals(hash, cache.fileHash(file));
+    }
+
+    @Test
+    public void cleanUpRemovesEntriesNotUsedForTheRetentionDays() throws Exception {
+        cache.store("aaaaaa", Collections.singletonMap("a.A", new byte[]{1}));
+        cache.store("bbbbbb", Collections.singletonMap("b.B", new byte[]{2}));
+        cache.store("cccccc", Collections.singletonMap("c.C", new byte[]{3}));
+        long now = System.currentTimeMillis();
+        entry("aaaaaa").setLastModified(now - 40 * DAY);
+        entry("bbbbbb").setLastModified(now - 40 * DAY);
+        entry("cccccc").setLastModified(now - 10 * DAY);
+
+        // using an entry keeps it
+        assertTrue(cache.contains("bbbbbb"));
+
+        cache.cleanUp(30);
+
+        assertFalse(entry("aaaaaa").exists());
+        assertTrue(entry("bbbbbb").exists());
+        assertTrue(entry("cccccc").exists());
+    }
+
+    @Test
+    public void cleanUpRunsAtMostOnceADay() throws Exception {
+        cache.cleanUp(30);
+        cache.store("aaaaaa", Collections.singletonMap("a.A", new byte[]{1}));
+        entry("aaaaaa").setLastModified(System.currentTimeMillis() - 40 * DAY);
+
+        cache.cleanUp(30);
+        assertTrue(entry("aaaaaa").exists());
+
+        new File(dir, "cleanup").setLastModified(System.currentTimeMillis() - 2 * DAY);
+        cache.cleanUp(30);
+        assertFalse(entry("aaaaaa").exists());
+    }
+
+    private File entry(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConstantPoolTest {
+
+    private static final CallRewrites REWRITES = CallRewrites.of(Collections.singletonList("java.util.List.size=null"));
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Map<String, byte[]> classes;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("fixture.Referring", ""
+                + "package fixture;\n"
+                + "@Deprecated\n"
+                + "public class Referring extends java.util.AbstractList<java.text.Format> {\n"
+                + "    private java.util.concurrent.atomic.AtomicLong counter;\n"
+                + "    private long big = 1L << 40;\n"
+                + "    private double half = 0.5;\n"
+                + "    public java.text.Format get(int index) { return null; }\n"
+                + "    public int size() { return 0; }\n"
+                + "    public static void copy(int[] from, int[] to) { System.arraycopy(from, 0, to, 0, from.length); }\n"
+                + "    public static int count(java.util.List<String> list) { return list.size(); }\n"
+                + "    public static String text(Object value) { return String.valueOf(value); }\n"
+                + "    public static Object arrays() { return new java.net.URI[0][]; }\n"
+                + "    public static String constant() { return \"Lnot/a/Class;\"; }\n"
+                + "}\n");
+        sources.put("fixture.Plain", ""
+                + "package fixture;\n"
+                + "public class Plain {\n"
+                + "    public static int length(String value) { return value.length(); }\n"
+                + "}\n");
+        classes = TestClasses.compile(temporaryFolder.newFolder(), sources);
+    }
+
+    @Test
+    public void findsTheReferencedClasses() throws Exception {
+        Set<String> referenced = new ConstantPool(classes.get("fixture.Referring")).referencedClasses();
+
+        for (String clazz : Arrays.asList("fixture/Referring", "java/util/AbstractList", "java/text/Format",
+                "java/util/concurrent/atomic/AtomicLong", "java/lang/System", "java/util/List",
+                "java/lang/String", "java/lang/Deprecated", "java/net/URI")) {
+            assertTrue(clazz + " in " + referenced, referenced.contains(clazz));
+        }
+        // a false positive, but a harmless one
+        assertTrue(referenced.contains("not/a/Class"));
+    }
+
+    @Test
+    public void readsUtf8Entries() throws Exception {
+        byte[] bytecode = classes.get("fixture.Plain");
+        ConstantPool pool = new ConstantPool(bytecode);
+        ConstPool expected = classFile(bytecode).getConstPool();
+
+        for (int i = 1; i < expected.getSize(); i++) {
+            if (expected.getTag(i) == ConstPool.CONST_Utf8) {
+                assertEquals(expected.getUtf8Info(i), pool.utf8(i));
+            }
+        }
+    }
+
+    @Test
+    public void findsTheMethodrefsOfRewrittenCalls() throws Exception {
+        byte[] bytecode = classes.get("fixture.Referring");
+        BitSet methodrefs = new ConstantPool(bytecode).rewrittenMethodrefs(REWRITES);
+        ConstPool pool = classFile(bytecode).getConstPool();
+
+        assertEquals(2, methodrefs.cardinality());
+        for (int i = methodrefs.nextSetBit(0); i >= 0; i = methodrefs.nextSetBit(i + 1)) {
+            String name = pool.getTag(i) == ConstPool.CONST_InterfaceMethodref
+                    ? pool.getInterfaceMethodrefClassName(i) + "." + pool.getInterfaceMethodrefName(i)
+                    : pool.getMethodrefClassName(i) + "." + pool.getMethodrefName(i);
+            assertTrue(name, name.equals("java.lang.System.arraycopy") || name.equals("java.util.List.size"));
+        }
+
+        assertTrue(new ConstantPool(classes.get("fixture.Plain")).rewrittenMethodrefs(REWRITES).isEmpty());
+    }
+
+    @Test
+    public void javassistFindsTheSameMethodrefs() throws Exception {
+        for (byte[] bytecode : classes.values()) {
+            assertEquals(new ConstantPool(bytecode).rewrittenMethodrefs(REWRITES),
+                    JavassistEngine.rewrittenMethodrefs(classFile(bytecode).getConstPool(), REWRITES));
+        }
+    }
+
+    @Test
+    public void mayInvokeMissesNoCall() throws Exception {
+        byte[] bytecode = classes.get("fixture.Referring");
+        BitSet methodrefs = new ConstantPool(bytecode).rewrittenMethodrefs(REWRITES);
+
+        for (MethodInfo method : classFile(bytecode).getMethods()) {
+            CodeAttribute code = method.getCodeAttribute();
+            if (code == null) {
+                continue;
+            }
+            List<String> invocations = EngineEquivalenceTest.invocations(bytecode, method.getName());
+            boolean invokes = invocations.stream().anyMatch(invocation ->
+                    invocation.startsWith("java/lang/System.arraycopy") || invocation.startsWith("java/util/List.size"));
+
+            boolean expected = method.getName().equals("copy") || method.getName().equals("count");
+            assertEquals(method.getName(), expected, invokes);
+            assertEquals(method.getName(), expected, ConstantPool.mayInvoke(code.getCode(), methodrefs));
+        }
+    }
+
+    @Test
+    public void mayInvokeNothingWithoutMethodrefs() {
+        assertFalse(ConstantPool.mayInvoke(new byte[]{(byte) 0xb8, 0, 0}, new BitSet()));
+
+        BitSet methodrefs = new BitSet();
+        methodrefs.set(0x0102);
+        // invokestatic #258
+        assertTrue(ConstantPool.mayInvoke(new byte[]{0, (byte) 0xb8, 1, 2}, methodrefs));
+        // the index is cut off
+        assertFalse(ConstantPool.mayInvoke(new byte[]{0, 0, (byte) 0xb8, 1}, methodrefs));
+        // getstatic #258
+        assertFalse(ConstantPool.mayInvoke(new byte[]{(byte) 0xb2, 1, 2}, methodrefs));
+    }
+
+    private static ClassFile classFile(byte[] bytecode) throws Exception {
+        return new ClassFile(new DataInputStream(new ByteArrayInputStream(bytecode)));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class DependencyClosureTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ZipFile androidAll;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("a.Seed", ""
+                + "package a;\n"
+                + "public class Seed {\n"
+                + "    Dep dep;\n"
+                + "    String name;\n"
+                + "    b.Bounded bounded;\n"
+                + "    Missing missing;\n"
+                + "    static class Inner { InnerDep dep; }\n"
+                + "}\n");
+        sources.put("a.Dep", "package a;\npublic class Dep { java.util.List<Transitive> all; Seed back; }\n");
+        sources.put("a.Transitive", "package a;\npublic class Transitive { }\n");
+        sources.put("a.InnerDep", "package a;\npublic class InnerDep { Delegated delegated; }\n");
+        sources.put("a.Delegated", "package a;\npublic class Delegated { OnlyForDelegated only; }\n");
+        sources.put("a.OnlyForDelegated", "package a;\npublic class OnlyForDelegated { }\n");
+        sources.put("a.Kept", "package a;\npublic class Kept { }\n");
+        sources.put("a.Other", "package a;\npublic class Other { Kept kept; Transitive transitive; }\n");
+        sources.put("a.Missing", "package a;\npublic class Missing { }\n");
+        sources.put("b.Bounded", "package b;\npublic class Bounded { a.Unreached unreached; }\n");
+        sources.put("a.Unreached", "package a;\npublic class Unreached { }\n");
+
+        Map<String, byte[]> classes = TestClasses.compile(temporaryFolder.newFolder(), sources);
+        classes.remove("a.Missing");
+        androidAll = ZipFile.builder().setFile(TestClasses.jar(temporaryFolder.newFile("android-all.jar"), classes)).get();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        androidAll.close();
+    }
+
+    @Test
+    public void keepsWhatTheSeedsNeed() throws Exception {
+        RuleMatcher matcher = new RuleMatcher(new String[]{"-a.Seed", "-a.Kept"}, new String[]{"a.Delegated"});
+        DependencyClosure closure = new DependencyClosure(androidAll, Collections.singletonList("b."));
+
+        int kept = closure.keepDependencies(Arrays.asList("a.Seed", "a.NotThere"), matcher,
+                LoggerFactory.getLogger(getClass()));
+
+        // Dep, Transitive and InnerDep - the seed and the delegated class were matched already
+        assertEquals(3, kept);
+        for (String clazz : Arrays.asList("a.Dep", "a.Transitive", "a.InnerDep")) {
+            assertEquals(clazz, RuleMatcher.Outcome.KEEP, matcher.classify(clazz));
+            assertEquals(clazz, "-a.Seed", matcher.matchingRule(clazz));
+        }
+        assertEquals(RuleMatcher.Outcome.DELEGATE, matcher.classify("a.Delegated"));
+
+        // behind a delegated class, a boundary or not reached at all
+        for (String clazz : Arrays.asList("a.OnlyForDelegated", "b.Bounded", "a.Unreached", "a.Other", "java.lang.String")) {
+            assertEquals(clazz, RuleMatcher.Outcome.NONE, matcher.classify(clazz));
+        }
+    }
+
+    @Test
+    public void keepsWhatTheUsedClassesNeed() throws Exception {
+        RuleMatcher matcher = new RuleMatcher(new String[]{"-a.Kept"}, new String[0]);
+        DependencyClosure closure = new DependencyClosure(androidAll, Collections.singletonList("b."));
+
+        int kept = closure.keepUsed(Arrays.asList("a.Other", "b.Bounded", "c.NotInTheJar", "a.Transitive"), matcher);
+
+        assertEquals(2, kept);
+        assertEquals("used", matcher.matchingRule("a.Other"));
+        assertEquals("used", matcher.matchingRule("a.Transitive"));
+        assertEquals("-a.Kept", matcher.matchingRule("a.Kept"));
+        assertEquals(RuleMatcher.Outcome.NONE, matcher.classify("b.Bounded"));
+        assertEquals(RuleMatcher.Outcome.NONE, matcher.classify("a.Seed"));
+    }
+}
@@ -0,0 +1,323 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The Javassist and ASM engines produce different bytecode, but it has to do the same.
+ */
+public class EngineEquivalenceTest {
+
+    private static final List<String> CALL_REWRITES = Arrays.asList(
+            "fixture.Source.size=fixture.Target.size(Ljava/lang/Object;)I",
+            "fixture.Source.length=fixture.Target.length",
+            "fixture.Source.flag=null");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Map<String, byte[]> classes;
+    private File allAndroid;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("fixture.Source", ""
+                + "package fixture;\n"
+                + "public class Source {\n"
+                + "    public static int size(int[] values) { return -1; }\n"
+                + "    public int length(String value) { return -1; }\n"
+                + "    public static boolean flag() { return true; }\n"
+                + "}\n");
+        sources.put("fixture.Target", ""
+                + "package fixture;\n"
+                + "public class Target {\n"
+                + "    public static int size(Object values) { return 1; }\n"
+                + "    public static int size(int[] values) { return 2; }\n"
+                + "    public static int length(Source source, String value) { return 3; }\n"
+                + "    public static int length(Object source, Object value) { return 4; }\n"
+                + "}\n");
+        sources.put("fixture.Caller", ""
+                + "package fixture;\n"
+                + "public class Caller {\n"
+                + "    public static int size() { return Source.size(new int[3]); }\n"
+                + "    public static int length() { return new Source().length(\"abc\"); }\n"
+                + "    public static boolean flag() { return Source.flag(); }\n"
+                + "}\n");
+        sources.put("fixture.Native", ""
+                + "package fixture;\n"
+                + "public final class Native {\n"
+                + "    private final int value;\n"
+                + "    public Native(int value) { this.value = value; }\n"
+                + "    private Native() { this(0); }\n"
+                + "    protected Native(String value) { this(1); }\n"
+                + "    public static native int nativeValue(long ptr, String name);\n"
+                + "    private native void nativeSet(int value, boolean flag);\n"
+                + "    public int get() { nativeSet(value, true); return nativeValue(42L, \"name\"); }\n"
+                + "}\n");
+        sources.put("fixture.Delegated", ""
+                + "package fixture;\n"
+                + "public class Delegated {\n"
+                + "    public Delegated(int a, String b) { throw new IllegalStateException(); }\n"
+                + "    private Delegated() { throw new IllegalStateException(); }\n"
+                + "    private final String name(boolean b, double d) { throw new IllegalStateException(); }\n"
+                + "    static long count(char c, byte[] bytes) { throw new IllegalStateException(); }\n"
+                + "}\n");
+        classes = TestClasses.compile(temporaryFolder.newFolder(), sources);
+        allAndroid = TestClasses.jar(temporaryFolder.newFile("android-all.jar"), classes);
+    }
+
+    @Test
+    public void callsTheOverloadOfTheRuleDescriptor() throws Exception {
+        for (Map<String, byte[]> rewritten : rewriteWithBothEngines()) {
+            assertEquals(Collections.singletonList("fixture/Target.size(Ljava/lang/Object;)I"),
+                    invocations(rewritten.get("fixture.Caller"), "size"));
+            assertEquals(1, run(rewritten, "size"));
+        }
+    }
+
+    @Test
+    public void passesTheReceiverOfAnInstanceCall() throws Exception {
+        for (Map<String, byte[]> rewritten : rewriteWithBothEngines()) {
+            assertEquals(Arrays.asList("fixture/Source.<init>()V",
+                    "fixture/Target.length(Lfixture/Source;Ljava/lang/String;)I"),
+                    invocations(rewritten.get("fixture.Caller"), "length"));
+            assertEquals(3, run(rewritten, "length"));
+        }
+    }
+
+    @Test
+    public void dropsTheCallOfANullRule() throws Exception {
+        for (Map<String, byte[]> rewritten : rewriteWithBothEngines()) {
+            assertEquals(Collections.emptyList(), invocations(rewritten.get("fixture.Caller"), "flag"));
+            assertEquals(false, run(rewritten, "flag"));
+        }
+    }
+
+    @Test
+    public void widensKeptAndDelegatedClasses() throws Exception {
+        List<Map<String, Integer>> modifiers = new ArrayList<>();
+        for (Map<String, byte[]> rewritten : rewriteWithBothEngines()) {
+            ClassLoader loader = loader(rewritten, null);
+            Map<String, Integer> engineModifiers = new TreeMap<>();
+            for (String clazzName : Arrays.asList("fixture.Native", "fixture.Delegated")) {
+                Class<?> clazz = loader.loadClass(clazzName);
+                assertFalse(clazzName, Modifier.isFinal(clazz.getModifiers()));
+                engineModifiers.put(clazzName, clazz.getModifiers());
+                for (Method method : clazz.getDeclaredMethods()) {
+                    assertFalse(method.toString(), Modifier.isPrivate(method.getModifiers()));
+                    assertFalse(method.toString(), Modifier.isFinal(method.getModifiers()));
+                    assertFalse(method.toString(), Modifier.isNative(method.getModifiers()));
+                    engineModifiers.put(method.toString(), method.getModifiers());
+                }
+                for (Constructor<?> constructor : clazz.getDeclaredConstructors()) {
+                    engineModifiers.put(constructor.toString(), constructor.getModifiers());
+                }
+            }
+
+            // constructors of kept classes stay as they are, those of delegated classes are widened
+            assertTrue(Modifier.isPrivate(loader.loadClass("fixture.Native").getDeclaredConstructor().getModifiers()));
+            assertTrue(Modifier.isProtected(loader.loadClass("fixture.Native").getDeclaredConstructor(String.class).getModifiers()));
+            assertTrue(Modifier.isPublic(loader.loadClass("fixture.Delegated").getDeclaredConstructor().getModifiers()));
+            modifiers.add(engineModifiers);
+        }
+        assertEquals(modifiers.get(0), modifiers.get(1));
+    }
+
+    @Test
+    public void callTheBridgeTheSameWay() throws Exception {
+        List<List<String>> calls = new ArrayList<>();
+        for (boolean specialized : new boolean[]{false, true}) {
+            for (Map<String, byte[]> rewritten : rewriteWithBothEngines(specialized)) {
+                List<String> recorded = new ArrayList<>();
+                ClassLoader loader = loader(rewritten, specialized ? shapes() : null);
+                register(loader, rewritten, recorded);
+
+                Object nativeInstance = loader.loadClass("fixture.Native").getConstructor(int.class).newInstance(5);
+                assertEquals(7, nativeInstance.getClass().getMethod("get").invoke(nativeInstance));
+
+                Class<?> delegated = loader.loadClass("fixture.Delegated");
+                Object delegatedInstance = delegated.getConstructor(int.class, String.class).newInstance(1, "b");
+                assertEquals(null, method(delegated, "name").invoke(delegatedInstance, true, 2.5d));
+                assertEquals(0L, method(delegated, "count").invoke(null, 'c', new byte[]{3}));
+
+                calls.add(recorded);
+            }
+        }
+
+        assertEquals(Arrays.asList(
+                "fixture.Native.nativeSet(int,boolean) this [5, true]",
+                "fixture.Native.nativeValue(long,java.lang.String) null [42, name]",
+                "fixture.Delegated(int,java.lang.String) this [1, b]",
+                "fixture.Delegated.name(boolean,double) this [true, 2.5]",
+                "fixture.Delegated.count(char,byte[]) null [c, [3]]"), calls.get(0));
+        for (List<String> engineCalls : calls) {
+            assertEquals(calls.get(0), engineCalls);
+        }
+    }
+
+    private List<Map<String, byte[]>> rewriteWithBothEngines() throws Exception {
+        return rewriteWithBothEngines(false);
+    }
+
+    private List<Map<String, byte[]>> rewriteWithBothEngines(boolean specialized) throws Exception {
+        RuleMatcher matcher = new RuleMatcher(new String[]{"-fixture.Caller", "-fixture.Native"},
+                new String[]{"fixture.Delegated"});
+        NativeBindings bindings = new NativeBindings(Collections.emptyMap());
+        CallRewrites callRewrites = CallRewrites.of(CALL_REWRITES);
+
+        UnmockEngine javassist = new JavassistEngine(allAndroid, matcher, Collections.emptyList(),
+                specialized ? shapes() : null, bindings, callRewrites, false, LoggerFactory.getLogger(getClass()));
+        UnmockEngine asm = new AsmEngine(matcher, Collections.emptyList(), specialized,
+                bindings, callRewrites, LoggerFactory.getLogger(getClass()));
+
+        List<Map<String, byte[]>> results = new ArrayList<>();
+        for (UnmockEngine engine : Arrays.asList(javassist, asm)) {
+            Map<String, byte[]> result = new HashMap<>();
+            for (String clazzName : Arrays.asList("fixture.Caller", "fixture.Native", "fixture.Delegated")) {
+                assertTrue(engine.transform(Collections.singletonList(clazzName), classes::get, result));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    private Set<String> shapes() {
+        Set<String> shapes = new TreeSet<>();
+        ABridgeGenerator.collectShapes(classes.get("fixture.Native"), false, shapes);
+        ABridgeGenerator.collectShapes(classes.get("fixture.Delegated"), true, shapes);
+        return shapes;
+    }
+
+    private ClassLoader loader(Map<String, byte[]> rewritten, Set<String> shapes) throws Exception {
+        Map<String, byte[]> loaded = new HashMap<>(classes);
+        loaded.putAll(rewritten);
+        loaded.putAll(shapes != null ? ABridgeGenerator.generate(shapes) : ABridgeGenerator.generate());
+        return TestClasses.loader(loaded);
+    }
+
+    /**
+     * Registers a handler for every string constant of the delegating classes - the signatures are
+     * among them - which records the calls. nativeValue returns 7, everything else the default.
+     */
+    private static void register(ClassLoader loader, Map<String, byte[]> rewritten, List<String> recorded)
+            throws Exception {
+        Class<?> handler = loader.loadClass(ABridgeGenerator.HANDLER_CLASS);
+        Method register = loader.loadClass(ABridgeGenerator.BRIDGE_CLASS).getMethod("register", String.class, handler);
+
+        Set<String> signatures = new TreeSet<>();
+        signatures.addAll(constants(rewritten.get("fixture.Native")));
+        signatures.addAll(constants(rewritten.get("fixture.Delegated")));
+        for (String signature : signatures) {
+            register.invoke(null, signature, Proxy.newProxyInstance(loader, new Class<?>[]{handler}, (proxy, method, args) -> {
+                if (!method.getName().equals("call")) {
+                    return method.invoke(signature, args);
+                }
+                Object[] arguments = (Object[]) args[1];
+                recorded.add(signature + " " + (args[0] != null ? "this" : "null") + " " + Arrays.deepToString(arguments));
+                return signature.contains("nativeValue") ? 7 : null;
+            }));
+        }
+    }
+
+    private static Method method(Class<?> clazz, String name) {
+        for (Method method : clazz.getDeclaredMethods()) {
+            if (method.getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    private Object run(Map<String, byte[]> rewritten, String method) throws Exception {
+        Map<String, byte[]> loaded = new HashMap<>(classes);
+        loaded.putAll(rewritten);
+        return TestClasses.loader(loaded).loadClass("fixture.Caller").getMethod(method).invoke(null);
+    }
+
+    static List<String> constants(byte[] bytecode) {
+        List<String> constants = new ArrayList<>();
+        new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitLdcInsn(Object value) {
+                        if (value instanceof String) {
+                            constants.add((String) value);
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return constants;
+    }
+
+    /**
+     * The methods invoked by the given method, as "owner.namedescriptor".
+     */
+    static List<String> invocations(byte[] bytecode, String method) {
+        List<String> invocations = new ArrayList<>();
+        new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                if (!name.equals(method)) {
+                    return null;
+                }
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+                                                boolean isInterface) {
+                        invocations.add(owner + "." + name + descriptor);
+                    }
+                };
+            }
+        }, 0);
+        return invocations;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NativeBindingsTest {
+
+    private static final String OWNER = "de/mobilej/runtime/ParcelNatives";
+
+    private NativeBindings bindings;
+
+    @Before
+    public void setUp() throws Exception {
+        bindings = new NativeBindings(Collections.singletonMap(NativeBindings.PARCEL_CLASS, NativeBindings.PARCEL_NATIVES_CLASS));
+    }
+
+    @Test
+    public void bindsTheSameDescriptor() {
+        assertArrayEquals(new String[]{OWNER, "(JI)V"}, bindings.bind("android.os.Parcel", "nativeWriteInt", "(JI)V"));
+        assertArrayEquals(new String[]{OWNER, "(J)I"}, bindings.bind("android.os.Parcel", "nativeReadInt", "(J)I"));
+    }
+
+    @Test
+    public void bindsUnknownTypesToObject() {
+        assertArrayEquals(new String[]{OWNER, "(JLjava/lang/Object;)V"},
+                bindings.bind("android.os.Parcel", "nativeWriteStrongBinder", "(JLandroid/os/IBinder;)V"));
+        assertArrayEquals(new String[]{OWNER, "(J)Ljava/lang/Object;"},
+                bindings.bind("android.os.Parcel", "nativeReadStrongBinder", "(J)Landroid/os/IBinder;"));
+    }
+
+    @Test
+    public void dropsTheResultForVoidNatives() {
+        // older platforms don't report the allocation size
+        assertArrayEquals(new String[]{OWNER, "(JI)J"}, bindings.bind("android.os.Parcel", "nativeSetDataSize", "(JI)V"));
+    }
+
+    @Test
+    public void leavesTheOthersToTheBridge() {
+        assertNull(bindings.bind("android.os.Parcel", "nativeWriteInt", "(JJ)V"));
+        assertNull(bindings.bind("android.os.Parcel", "nativeReadInt", "(J)J"));
+        assertNull(bindings.bind("android.os.Parcel", "nativeWriteInt", "(IJI)V"));
+        assertNull(bindings.bind("android.os.Parcel", "nativeUnknown", "(J)V"));
+        assertNull(bindings.bind("android.os.Bundle", "nativeWriteInt", "(JI)V"));
+        // not public
+        assertNull(bindings.bind("android.os.Parcel", "parcel", "(J)Lde/mobilej/runtime/ParcelNatives$Buffer;"));
+    }
+
+    @Test
+    public void copiesTheImplementationWithItsNestedClasses() {
+        assertFalse(bindings.isEmpty());
+        assertEquals(2, bindings.runtimeClasses().size());
+        assertTrue(bindings.runtimeClasses().containsKey("de.mobilej.runtime.ParcelNatives"));
+        assertTrue(bindings.runtimeClasses().containsKey("de.mobilej.runtime.ParcelNatives$Buffer"));
+    }
+
+    @Test
+    public void fingerprintFollowsTheBindings() throws Exception {
+        NativeBindings none = new NativeBindings(Collections.emptyMap());
+        assertTrue(none.isEmpty());
+        assertTrue(none.runtimeClasses().isEmpty());
+
+        assertEquals(bindings.fingerprint(), new NativeBindings(
+                Collections.singletonMap(NativeBindings.PARCEL_CLASS, NativeBindings.PARCEL_NATIVES_CLASS)).fingerprint());
+        assertFalse(bindings.fingerprint().equals(none.fingerprint()));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProcessRealAndroidJarTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void writesRenamedClassesInOrder() throws Exception {
+        assertSortedWithRenamedClass(1);
+    }
+
+    @Test
+    public void writesRenamedClassesInOrderInParallel() throws Exception {
+        assertSortedWithRenamedClass(2);
+    }
+
+    private void assertSortedWithRenamedClass(int parallelism) throws Exception {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("a.First", "package a;\npublic class First { }\n");
+        sources.put("b.Renamed", "package b;\npublic class Renamed { static class Inner { } }\n");
+        sources.put("m.Middle", "package m;\npublic class Middle { }\n");
+        File androidAll = TestClasses.jar(temporaryFolder.newFile("android-all.jar"),
+                TestClasses.compile(temporaryFolder.newFolder(), sources));
+
+        ProcessRealAndroidJar.Options options = new ProcessRealAndroidJar.Options();
+        options.parallelism = parallelism;
+        File output = new File(temporaryFolder.newFolder(), "unmocked.jar");
+        ProcessRealAndroidJar.process(androidAll, name -> output,
+                new String[]{"-a.First", "-m.Middle"}, new String[]{"b.Renamed=z.Renamed"}, new String[0],
+                options, LoggerFactory.getLogger(getClass()));
+
+        List<String> names = new ArrayList<>();
+        try (ZipFile jar = ZipFile.builder().setFile(output).get()) {
+            for (ZipArchiveEntry entry : Collections.list(jar.getEntriesInPhysicalOrder())) {
+                names.add(entry.getName());
+            }
+        }
+
+        assertEquals(UnmockedJarWriter.MANIFEST_NAME, names.remove(0));
+        List<String> classes = new ArrayList<>();
+        for (String name : names) {
+            if (name.endsWith(".class") && !name.startsWith("de/")) {
+                classes.add(name);
+            }
+        }
+        assertEquals(Arrays.asList("a/First.class", "b/Renamed$Inner.class", "m/Middle.class", "z/Renamed.class"), classes);
+
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(sorted, names);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RuleMatcherTest {
+
+    private static final String[] KEEP = {
+            "android.text.",
+            "-android.os.Bundle",
+            "-android.widget.BaseAdapter",
+            "android.util.Ar",
+            "android.util.",
+    };
+
+    private static final String[] DELEGATE = {
+            "android.os.Bundle",
+            "android.os.Parcel",
+            "android.text.TextUtils",
+            "android.content.Intent",
+    };
+
+    private static final String[] CLASSES = {
+            "android.text.TextUtils",
+            "android.text.TextUtils$SimpleStringSplitter",
+            "android.os.Bundle",
+            "android.os.Bundle$1",
+            "android.os.BundleX",
+            "android.os.Bund",
+            "android.os.Parcel",
+            "android.os.Parcel$ReadWriteHelper",
+            "android.os.ParcelFileDescriptor",
+            "android.widget.BaseAdapter",
+            "android.widget.BaseAdapterX",
+            "android.widget.ArrayAdapter",
+            "android.util.ArrayMap",
+            "android.util.Log",
+            "android.content.Intent",
+            "android.content.Intent$FilterComparison",
+            "android.content.IntentFilter",
+            "android.app.Activity",
+            "android",
+            "",
+    };
+
+    @Test
+    public void classifiesLikeTheRuleLoops() {
+        RuleMatcher matcher = new RuleMatcher(KEEP, DELEGATE);
+        for (String clazz : CLASSES) {
+            assertEquals(clazz, loopOutcome(clazz), matcher.classify(clazz));
+        }
+    }
+
+    @Test
+    public void keepingWinsOverDelegating() {
+        RuleMatcher matcher = new RuleMatcher(KEEP, DELEGATE);
+        assertEquals(RuleMatcher.Outcome.KEEP, matcher.classify("android.os.Bundle"));
+        assertEquals(RuleMatcher.Outcome.KEEP, matcher.classify("android.text.TextUtils"));
+        assertEquals("-android.os.Bundle", matcher.matchingRule("android.os.Bundle"));
+    }
+
+    @Test
+    public void exactRulesMatchNestedClasses() {
+        RuleMatcher matcher = new RuleMatcher(KEEP, DELEGATE);
+        assertEquals(RuleMatcher.Outcome.KEEP, matcher.classify("android.os.Bundle$1"));
+        assertEquals(RuleMatcher.Outcome.DELEGATE, matcher.classify("android.os.Parcel$ReadWriteHelper"));
+        assertEquals("android.os.Parcel", matcher.matchingRule("android.os.Parcel$ReadWriteHelper"));
+
+        assertEquals(RuleMatcher.Outcome.NONE, matcher.classify("android.os.BundleX"));
+        assertEquals(RuleMatcher.Outcome.NONE, matcher.classify("android.os.ParcelFileDescriptor"));
+    }
+
+    @Test
+    public void shortestPrefixRuleWins() {
+        RuleMatcher matcher = new RuleMatcher(KEEP, DELEGATE);
+        assertEquals("android.util.", matcher.matchingRule("android.util.ArrayMap"));
+        assertNull(matcher.matchingRule("android.app.Activity"));
+    }
+
+    @Test
+    public void keepsDependenciesExactly() {
+        RuleMatcher matcher = new RuleMatcher(KEEP, DELEGATE);
+        matcher.keepDependency("android.app.Activity", "android.text.");
+
+        assertEquals(RuleMatcher.Outcome.KEEP, matcher.classify("android.app.Activity$1"));
+        assertEquals(RuleMatcher.Outcome.NONE, matcher.classify("android.app.ActivityThread"));
+        assertEquals("android.text.", matcher.matchingRule("android.app.Activity"));
+        assertTrue(matcher.keepRules().contains("-android.app.Activity"));
+    }
+
+    @Test
+    public void keepsResourcesOfPrefixRules() {
+        RuleMatcher matcher = new RuleMatcher(KEEP, DELEGATE);
+        assertTrue(matcher.isKeptResource("android/text/res.txt"));
+        assertEquals("android.util.", matcher.matchingResourceRule("android/util/ArrayMap.properties"));
+        assertFalse(matcher.isKeptResource("android/os/Bundle.txt"));
+        assertFalse(matcher.isKeptResource("android"));
+    }
+
+    @Test
+    public void normalizeSortsAndRemovesDuplicates() {
+        assertEquals(Arrays.asList("a", "b"), RuleMatcher.normalize(Arrays.asList("b", "a", "b")));
+        assertEquals(Collections.emptyList(), RuleMatcher.normalize(Collections.emptyList()));
+    }
+
+    /**
+     * The way classes were classified before the rules were compiled.
+     */
+    private static RuleMatcher.Outcome loopOutcome(String name) {
+        for (String keepClass : KEEP) {
+            if (keepClass.startsWith("-")) {
+                String pureKeepClassName = keepClass.substring(1);
+                if (name.equals(pureKeepClassName) || name.startsWith(pureKeepClassName + "$")) {
+                    return RuleMatcher.Outcome.KEEP;
+                }
+            } else if (name.startsWith(keepClass)) {
+                return RuleMatcher.Outcome.KEEP;
+            }
+        }
+        for (String delegateClazzName : DELEGATE) {
+            if (name.equals(delegateClazzName) || name.startsWith(delegateClazzName + "$")) {
+                return RuleMatcher.Outcome.DELEGATE;
+            }
+        }
+        return RuleMatcher.Outcome.NONE;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * Compiles the classes a test works on and puts them into an android-all like jar.
+ */
+final class TestClasses {
+
+    private TestClasses() {
+    }
+
+    /**
+     * Compiles the given sources (by top-level class name) and returns the bytecode by class name,
+     * nested classes included.
+     */
+    static Map<String, byte[]> compile(File dir, Map<String, String> sources) throws IOException {
+        File sourceDir = new File(dir, "src");
+        File classesDir = new File(dir, "classes");
+        classesDir.mkdirs();
+
+        List<String> arguments = new ArrayList<>();
+        arguments.add("-nowarn");
+        arguments.add("-d");
+        arguments.add(classesDir.getPath());
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            File file = new File(sourceDir, source.getKey().replace('.', '/') + ".java");
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), source.getValue().getBytes(StandardCharsets.UTF_8));
+            arguments.add(file.getPath());
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler.run(null, null, null, arguments.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("Compiling the test classes failed");
+        }
+
+        Map<String, byte[]> classes = new TreeMap<>();
+        Path root = classesDir.toPath();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                String name = root.relativize(file).toString().replace(File.separatorChar, '.');
+                classes.put(name.substring(0, name.length() - ".class".length()), Files.readAllBytes(file));
+            }
+        }
+        return classes;
+    }
+
+    static File jar(File file, Map<String, byte[]> classes) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file))) {
+            for (Map.Entry<String, byte[]> clazz : classes.entrySet()) {
+                out.putNextEntry(new JarEntry(clazz.getKey().replace('.', '/') + ".class"));
+                out.write(clazz.getValue());
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Loads the given classes before asking its parent.
+     */
+    static ClassLoader loader(Map<String, byte[]> classes) {
+        return new ClassLoader(TestClasses.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> clazz = findLoadedClass(name);
+                    if (clazz == null) {
+                        byte[] bytecode = classes.get(name);
+                        if (bytecode == null) {
+                            return super.loadClass(name, resolve);
+                        }
+                        clazz = defineClass(name, bytecode, 0, bytecode.length);
+                    }
+                    return clazz;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,221 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileDescriptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParcelNativesTest {
+
+    private long parcel;
+
+    @Before
+    public void setUp() {
+        parcel = ParcelNatives.nativeCreate();
+    }
+
+    @After
+    public void tearDown() {
+        ParcelNatives.nativeDestroy(parcel);
+    }
+
+    @Test
+    public void readsWhatWasWritten() {
+        ParcelNatives.nativeWriteInt(parcel, 42);
+        ParcelNatives.nativeWriteLong(parcel, 1L << 40);
+        ParcelNatives.nativeWriteFloat(parcel, 1.5f);
+        ParcelNatives.nativeWriteDouble(parcel, 2.25d);
+        ParcelNatives.nativeWriteString16(parcel, "héllo");
+        ParcelNatives.nativeWriteString8(parcel, "wörld");
+        ParcelNatives.nativeWriteString(parcel, null);
+        ParcelNatives.nativeWriteByteArray(parcel, new byte[]{9, 1, 2, 3, 9}, 1, 3);
+        ParcelNatives.nativeWriteBlob(parcel, new byte[]{4, 5}, 0, 2);
+        ParcelNatives.nativeWriteByteArray(parcel, null, 0, 0);
+
+        ParcelNatives.nativeSetDataPosition(parcel, 0);
+        assertEquals(42, ParcelNatives.nativeReadInt(parcel));
+        assertEquals(1L << 40, ParcelNatives.nativeReadLong(parcel));
+        assertEquals(1.5f, ParcelNatives.nativeReadFloat(parcel), 0f);
+        assertEquals(2.25d, ParcelNatives.nativeReadDouble(parcel), 0d);
+        assertEquals("héllo", ParcelNatives.nativeReadString16(parcel));
+        assertEquals("wörld", ParcelNatives.nativeReadString8(parcel));
+        assertNull(ParcelNatives.nativeReadString(parcel));
+        assertArrayEquals(new byte[]{1, 2, 3}, ParcelNatives.nativeCreateByteArray(parcel));
+        assertArrayEquals(new byte[]{4, 5}, ParcelNatives.nativeReadBlob(parcel));
+        assertNull(ParcelNatives.nativeCreateByteArray(parcel));
+        assertEquals(0, ParcelNatives.nativeDataAvail(parcel));
+    }
+
+    @Test
+    public void padsEveryValueToFourBytes() {
+        ParcelNatives.nativeWriteString8(parcel, "ab");
+        // length, two bytes and the terminating zero
+        assertEquals(8, ParcelNatives.nativeDataPosition(parcel));
+        ParcelNatives.nativeWriteString16(parcel, "a");
+        assertEquals(16, ParcelNatives.nativeDataSize(parcel));
+
+        byte[] data = ParcelNatives.nativeMarshall(parcel);
+        assertArrayEquals(new byte[]{2, 0, 0, 0, 'a', 'b', 0, 0, 1, 0, 0, 0, 'a', 0, 0, 0}, data);
+    }
+
+    @Test
+    public void readingPastTheEndGivesDefaults() {
+        ParcelNatives.nativeWriteInt(parcel, 1);
+        ParcelNatives.nativeSetDataPosition(parcel, 0);
+        assertEquals(1, ParcelNatives.nativeReadInt(parcel));
+
+        assertEquals(0, ParcelNatives.nativeReadInt(parcel));
+        assertEquals(0L, ParcelNatives.nativeReadLong(parcel));
+        assertNull(ParcelNatives.nativeReadString16(parcel));
+        assertNull(ParcelNatives.nativeReadStrongBinder(parcel));
+    }
+
+    @Test
+    public void readByteArrayNeedsTheWrittenLength() {
+        ParcelNatives.nativeWriteByteArray(parcel, new byte[]{1, 2}, 0, 2);
+        ParcelNatives.nativeSetDataPosition(parcel, 0);
+
+        byte[] dest = new byte[3];
+        assertFalse(ParcelNatives.nativeReadByteArray(parcel, dest, 3));
+        assertEquals(0, ParcelNatives.nativeDataPosition(parcel));
+
+        dest = new byte[2];
+        assertTrue(ParcelNatives.nativeReadByteArray(parcel, dest, 2));
+        assertArrayEquals(new byte[]{1, 2}, dest);
+    }
+
+    @Test
+    public void unmarshallsWhatWasMarshalled() {
+        ParcelNatives.nativeWriteInt(parcel, 7);
+        ParcelNatives.nativeWriteString16(parcel, "seven");
+        byte[] data = ParcelNatives.nativeMarshall(parcel);
+
+        long other = ParcelNatives.nativeCreate();
+        try {
+            ParcelNatives.nativeUnmarshall(other, data, 0, data.length);
+            assertEquals(0, ParcelNatives.nativeCompareData(parcel, other));
+            assertEquals(7, ParcelNatives.nativeReadInt(other));
+            assertEquals("seven", ParcelNatives.nativeReadString16(other));
+
+            ParcelNatives.nativeSetDataPosition(other, 0);
+            ParcelNatives.nativeWriteInt(other, 8);
+            assertTrue(ParcelNatives.nativeCompareData(parcel, other) != 0);
+        } finally {
+            ParcelNatives.nativeDestroy(other);
+        }
+    }
+
+    @Test
+    public void appendsFromAnotherParcel() {
+        long other = ParcelNatives.nativeCreate();
+        try {
+            ParcelNatives.nativeWriteInt(other, 1);
+            ParcelNatives.nativeWriteInt(other, 2);
+            ParcelNatives.nativeWriteInt(other, 3);
+
+            ParcelNatives.nativeWriteInt(parcel, 0);
+            ParcelNatives.nativeAppendFrom(parcel, other, 4, 8);
+            assertEquals(12, ParcelNatives.nativeDataSize(parcel));
+
+            ParcelNatives.nativeSetDataPosition(parcel, 4);
+            assertEquals(2, ParcelNatives.nativeReadInt(parcel));
+            assertEquals(3, ParcelNatives.nativeReadInt(parcel));
+        } finally {
+            ParcelNatives.nativeDestroy(other);
+        }
+    }
+
+    @Test
+    public void keepsBindersAndFileDescriptorsAside() {
+        Object binder = new Object();
+        ParcelNatives.nativeWriteStrongBinder(parcel, binder);
+        ParcelNatives.nativeWriteFileDescriptor(parcel, FileDescriptor.in);
+        assertTrue(ParcelNatives.nativeHasFileDescriptors(parcel));
+
+        ParcelNatives.nativeSetDataPosition(parcel, 0);
+        assertSame(binder, ParcelNatives.nativeReadStrongBinder(parcel));
+        assertSame(FileDescriptor.in, ParcelNatives.nativeReadFileDescriptor(parcel));
+
+        try {
+            ParcelNatives.nativeMarshall(parcel);
+            fail();
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    @Test
+    public void refusesFileDescriptorsWhenNotAllowed() {
+        boolean lastValue = ParcelNatives.nativePushAllowFds(parcel, false);
+        try {
+            ParcelNatives.nativeWriteFileDescriptor(parcel, FileDescriptor.in);
+            fail();
+        } catch (RuntimeException expected) {
+        }
+
+        ParcelNatives.nativeRestoreAllowFds(parcel, lastValue);
+        ParcelNatives.nativeWriteFileDescriptor(parcel, FileDescriptor.in);
+    }
+
+    @Test
+    public void enforcesTheInterfaceToken() {
+        ParcelNatives.nativeWriteInterfaceToken(parcel, "android.os.IFoo");
+        ParcelNatives.nativeSetDataPosition(parcel, 0);
+        ParcelNatives.nativeEnforceInterface(parcel, "android.os.IFoo");
+
+        ParcelNatives.nativeSetDataPosition(parcel, 0);
+        try {
+            ParcelNatives.nativeEnforceInterface(parcel, "android.os.IBar");
+            fail();
+        } catch (SecurityException expected) {
+        }
+    }
+
+    @Test
+    public void growsBeyondTheInitialCapacity() {
+        for (int i = 0; i < 1000; i++) {
+            ParcelNatives.nativeWriteInt(parcel, i);
+        }
+        assertTrue(ParcelNatives.nativeDataCapacity(parcel) >= 4000);
+
+        ParcelNatives.nativeSetDataPosition(parcel, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, ParcelNatives.nativeReadInt(parcel));
+        }
+    }
+
+    @Test
+    public void destroyedParcelsAreGone() {
+        long destroyed = ParcelNatives.nativeCreate();
+        ParcelNatives.nativeDestroy(destroyed);
+        try {
+            ParcelNatives.nativeReadInt(destroyed);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
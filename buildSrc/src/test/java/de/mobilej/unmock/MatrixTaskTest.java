@@ -0,0 +1,129 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.unmock;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Builds a small Android library whose unit tests run on the JUnit Platform and need a system
+ * property of the unit test task - neither is there unless the matrix task copies them.
+ */
+public class MatrixTaskTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File projectDir;
+
+    @Before
+    public void setUp() throws IOException {
+        String sdk = System.getenv("ANDROID_HOME") != null ? System.getenv("ANDROID_HOME") : System.getenv("ANDROID_SDK_ROOT");
+        assumeTrue("needs an Android SDK", sdk != null && new File(sdk).isDirectory());
+
+        projectDir = temporaryFolder.newFolder("matrix");
+        write("local.properties", "sdk.dir=" + sdk.replace("\\", "\\\\") + "\n");
+        write("settings.gradle", ""
+                + "dependencyResolutionManagement {\n"
+                + "    repositories {\n"
+                + "        google()\n"
+                + "        mavenCentral()\n"
+                + "    }\n"
+                + "}\n"
+                + "rootProject.name = 'matrix'\n");
+        write("build.gradle", ""
+                + "plugins {\n"
+                + "    id 'com.android.library'\n"
+                + "    id 'de.mobilej.unmock'\n"
+                + "}\n"
+                + "\n"
+                + "android {\n"
+                + "    compileSdk 28\n"
+                + "    namespace 'de.mobilej.matrix'\n"
+                + "\n"
+                + "    testOptions {\n"
+                + "        unitTests.all {\n"
+                + "            useJUnitPlatform()\n"
+                + "            systemProperty 'unmock.matrix', 'copied'\n"
+                + "        }\n"
+                + "    }\n"
+                + "}\n"
+                + "\n"
+                + "unMock {\n"
+                + "    keepStartingWith 'android.text.TextUtils'\n"
+                + "    matrix 'api21', 'org.robolectric:android-all:5.0.2_r3-robolectric-r0'\n"
+                + "}\n"
+                + "\n"
+                + "dependencies {\n"
+                + "    testImplementation 'org.junit.jupiter:junit-jupiter:5.10.2'\n"
+                + "    testRuntimeOnly 'org.junit.platform:junit-platform-launcher:1.10.2'\n"
+                + "}\n");
+        write("src/test/java/de/mobilej/matrix/TextUtilsTest.java", ""
+                + "package de.mobilej.matrix;\n"
+                + "\n"
+                + "import android.text.TextUtils;\n"
+                + "import org.junit.jupiter.api.Test;\n"
+                + "\n"
+                + "import static org.junit.jupiter.api.Assertions.assertEquals;\n"
+                + "import static org.junit.jupiter.api.Assertions.assertTrue;\n"
+                + "\n"
+                + "class TextUtilsTest {\n"
+                + "    @Test\n"
+                + "    void unmocked() {\n"
+                + "        assertTrue(TextUtils.isEmpty(\"\"));\n"
+                + "        assertEquals(\"copied\", System.getProperty(\"unmock.matrix\"));\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    @Test
+    public void matrixTaskRunsTheTestsOfTheUnitTestTask() throws IOException {
+        BuildResult result = GradleRunner.create()
+                .withProjectDir(projectDir)
+                .withPluginClasspath()
+                .withArguments("testDebugUnitTestApi21", "--stacktrace")
+                .build();
+
+        assertEquals(TaskOutcome.SUCCESS, result.task(":testDebugUnitTestApi21").getOutcome());
+
+        File report = new File(projectDir, "build/test-results/testDebugUnitTestApi21/TEST-de.mobilej.matrix.TextUtilsTest.xml");
+        assertTrue("no test results in " + report, report.isFile());
+        String xml = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+        assertTrue(xml, xml.contains("tests=\"1\""));
+        assertTrue(xml, xml.contains("failures=\"0\""));
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(projectDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.mobilej.testproject;
+
+import android.os.Parcel;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.mobilej.ABridge;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+
+/**
+ * Tests that native methods can be given behavior by registering handlers at ABridge - no
+ * PowerMock needed.
+ */
+public class ABridgeHandlerTest {
+
+    @After
+    public void tearDown() {
+        ABridge.clearHandlers();
+    }
+
+    @Test
+    public void testCallIntHandler() throws Exception {
+        Parcel p = Parcel.obtain();
+        ABridge.register("android.os.Parcel.nativeReadInt(long)", (thiz, args) -> 42);
+        assertEquals(42, p.readInt());
+    }
+
+    @Test
+    public void testCallLongHandlerGetsArguments() throws Exception {
+        Parcel p = Parcel.obtain();
+        final Object[] seen = new Object[1];
+        ABridge.register("android.os.Parcel.nativeReadLong(long)", (thiz, args) -> {
+            seen[0] = args[0];
+            return 42L;
+        });
+        assertEquals(42L, p.readLong());
+        assertSame(Long.class, seen[0].getClass());
+    }
+
+    @Test
+    public void testDefaultWithoutHandler() throws Exception {
+        Parcel p = Parcel.obtain();
+        assertEquals(0d, p.readDouble(), 0d);
+    }
+
+    @Test
+    public void testUnregister() throws Exception {
+        Parcel p = Parcel.obtain();
+        ABridge.register("android.os.Parcel.nativeReadFloat(long)", (thiz, args) -> 42f);
+        assertEquals(42f, p.readFloat(), 0f);
+
+        ABridge.unregister("android.os.Parcel.nativeReadFloat(long)");
+        assertEquals(0f, p.readFloat(), 0f);
+    }
+}
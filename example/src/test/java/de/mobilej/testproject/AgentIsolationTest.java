@@ -0,0 +1,51 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.testproject;
+
+import org.junit.Test;
+
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run with -PunmockAgent these tests check the unmock agent: the classes it rewrites with must not
+ * show up on the classpath of the tests - PowerMock brings a Javassist of its own, for example.
+ * Without the agent they hold just the same.
+ */
+public class AgentIsolationTest {
+
+    @Test
+    public void testRewritingIsNotOnTheTestClasspath() throws IOException {
+        ClassLoader loader = getClass().getClassLoader();
+        assertNull(loader.getResource("de/mobilej/AsmEngine.class"));
+        assertNull(loader.getResource("org/objectweb/asm/ClassReader.class"));
+        assertNull(loader.getResource("org/slf4j/LoggerFactory.class"));
+        assertEquals(1, Collections.list(loader.getResources("javassist/CtClass.class")).size());
+    }
+
+    @Test
+    public void testKeptClassesAreUnmocked() {
+        assertTrue(TextUtils.isEmpty(""));
+        assertEquals(3, TextUtils.split("a,b,c", ",").length);
+    }
+}
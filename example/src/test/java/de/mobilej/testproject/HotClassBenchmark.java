@@ -0,0 +1,115 @@
+/*
+   Copyright (C) 2015 Björn Quentin
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package de.mobilej.testproject;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steady-state cost of commonly kept classes as the unit tests run them - from the unmocked jar on
+ * the unit test classpath. Run with "gradle :example:unmockBenchmark", the bridge variants with
+ * -PunmockSpecializedBridge and -PunmockParcelNatives (without the latter the Parcel natives go to
+ * ABridge and return default values).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HotClassBenchmark {
+
+    private static final int SIZE = 64;
+
+    private SparseArray<Object> sparseArray;
+    private ArrayMap<String, Object> arrayMap;
+    private Bundle bundle;
+    private String[] keys;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sparseArray = new SparseArray<>();
+        arrayMap = new ArrayMap<>();
+        bundle = new Bundle();
+        keys = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = "key" + i;
+            sparseArray.put(i * 3, keys[i]);
+            arrayMap.put(keys[i], i);
+            bundle.putInt(keys[i], i);
+        }
+    }
+
+    private int next() {
+        index = (index + 1) & (SIZE - 1);
+        return index;
+    }
+
+    @Benchmark
+    public Object sparseArrayGet() {
+        return sparseArray.get(next() * 3);
+    }
+
+    @Benchmark
+    public void sparseArrayPut() {
+        int i = next();
+        sparseArray.put(i * 3, keys[i]);
+    }
+
+    @Benchmark
+    public Object arrayMapGet() {
+        return arrayMap.get(keys[next()]);
+    }
+
+    @Benchmark
+    public Object arrayMapPut() {
+        int i = next();
+        return arrayMap.put(keys[i], i);
+    }
+
+    @Benchmark
+    public int bundleGetInt() {
+        return bundle.getInt(keys[next()]);
+    }
+
+    @Benchmark
+    public int parcelWriteReadInt() {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(next());
+        parcel.setDataPosition(0);
+        int result = parcel.readInt();
+        parcel.recycle();
+        return result;
+    }
+}